@@ -0,0 +1,512 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sorts newline terminated lines as raw bytes, without decoding them into Strings.
+ * <br>
+ * Lines are compared by the unsigned bytes of a delimited column, which is the order of GNU sort in the C locale and,
+ * for UTF-8, the order of the Unicode code points. Lines with a missing or empty column sort last, as with
+ * {@link org.gbif.utils.text.LineComparator}. Lines with equal keys keep their input order.
+ * <br>
+ * A chunk packs its lines into a single byte array with an index of offsets, so a buffered line costs its bytes plus
+ * {@link #BYTES_PER_LINE} instead of a String object. Chunks are sorted with a multikey quicksort on the key bytes,
+ * which suits long keys with shared prefixes such as URLs or LSIDs.
+ */
+class ByteLineSorter {
+
+  /**
+   * Estimated heap used per buffered line in addition to its bytes: the line offset, the key bounds and the two int
+   * arrays used to sort the line order.
+   */
+  static final int BYTES_PER_LINE = 20;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  // number of key bytes compared at once by the multikey quicksort
+  private static final int WORD_BYTES = 7;
+  private static final VarHandle LONG_VIEW =
+      MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+  private final int column;
+  private final byte[] delimiter;
+
+  /**
+   * @param column the column to sort on, ignored without a delimiter
+   * @param delimiter the encoded column delimiter, or null to sort on the whole line
+   */
+  ByteLineSorter(int column, byte[] delimiter) {
+    this.column = column;
+    this.delimiter = delimiter == null || delimiter.length == 0 ? null : delimiter;
+  }
+
+  Chunk newChunk() {
+    return new Chunk();
+  }
+
+  /**
+   * Merges sorted chunk files into the output, in the order of the files for equal keys.
+   */
+  void merge(List<File> sortFiles, OutputStream out) throws IOException {
+    List<LineReader> readers = new ArrayList<>(sortFiles.size());
+    try {
+      for (File f : sortFiles) {
+        readers.add(new LineReader(new FileInputStream(f)));
+      }
+      int size = 0;
+      Head[] heap = new Head[readers.size()];
+      for (int i = 0; i < readers.size(); i++) {
+        Head head = new Head(i, readers.get(i));
+        if (head.next()) {
+          heap[size++] = head;
+        }
+      }
+      for (int i = size / 2 - 1; i >= 0; i--) {
+        siftDown(heap, size, i);
+      }
+      while (size > 0) {
+        Head top = heap[0];
+        out.write(top.reader.line, 0, top.reader.length);
+        out.write('\n');
+        if (!top.next()) {
+          heap[0] = heap[--size];
+          heap[size] = null;
+        }
+        if (size > 1) {
+          siftDown(heap, size, 0);
+        }
+      }
+    } finally {
+      for (LineReader r : readers) {
+        r.close();
+      }
+    }
+  }
+
+  /**
+   * Finds the key of a line.
+   *
+   * @return the start of the key in the upper and its end in the lower 32 bits, or -1 if the key is missing or empty
+   */
+  private long findKey(byte[] bytes, int from, int to) {
+    if (delimiter == null) {
+      return from == to ? -1 : ((long) from << 32) | to;
+    }
+    int start = from;
+    int field = 0;
+    int i = from;
+    while (i <= to - delimiter.length) {
+      if (matchesDelimiter(bytes, i)) {
+        if (field == column) {
+          return keyOrMissing(start, i);
+        }
+        field++;
+        i += delimiter.length;
+        start = i;
+      } else {
+        i++;
+      }
+    }
+    return field == column ? keyOrMissing(start, to) : -1;
+  }
+
+  private static long keyOrMissing(int start, int end) {
+    return start == end ? -1 : ((long) start << 32) | end;
+  }
+
+  private boolean matchesDelimiter(byte[] bytes, int pos) {
+    for (int j = 0; j < delimiter.length; j++) {
+      if (bytes[pos + j] != delimiter[j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Compares two keys as found by {@link #findKey(byte[], int, int)}, missing keys last.
+   */
+  private static int compareKeys(byte[] a, long keyA, byte[] b, long keyB) {
+    if (keyA < 0 || keyB < 0) {
+      return keyA < 0 ? (keyB < 0 ? 0 : 1) : -1;
+    }
+    return Arrays.compareUnsigned(
+        a, (int) (keyA >>> 32), (int) keyA, b, (int) (keyB >>> 32), (int) keyB);
+  }
+
+  private static void siftDown(Head[] heap, int size, int i) {
+    Head head = heap[i];
+    int half = size >>> 1;
+    while (i < half) {
+      int child = 2 * i + 1;
+      int right = child + 1;
+      if (right < size && heap[right].before(heap[child])) {
+        child = right;
+      }
+      if (!heap[child].before(head)) {
+        break;
+      }
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = head;
+  }
+
+  private final class Head {
+    private final int index;
+    private final LineReader reader;
+    private long key;
+
+    private Head(int index, LineReader reader) {
+      this.index = index;
+      this.reader = reader;
+    }
+
+    private boolean next() throws IOException {
+      if (!reader.next()) {
+        reader.close();
+        return false;
+      }
+      key = findKey(reader.line, 0, reader.length);
+      return true;
+    }
+
+    private boolean before(Head other) {
+      int cmp = compareKeys(reader.line, key, other.reader.line, other.key);
+      return cmp < 0 || (cmp == 0 && index < other.index);
+    }
+  }
+
+  /**
+   * The lines of a chunk packed into a single byte array.
+   */
+  final class Chunk {
+    private byte[] data = new byte[BUFFER_SIZE];
+    private int used;
+    // start offsets of the lines, the end of a line is the start of the next one
+    private int[] starts = new int[1024];
+    private long[] keys = new long[1024];
+    private int size;
+
+    void add(byte[] line, int length) {
+      if (used + length > data.length) {
+        data = Arrays.copyOf(data, Math.max(data.length * 2, used + length));
+      }
+      if (size + 1 >= starts.length) {
+        starts = Arrays.copyOf(starts, starts.length * 2);
+        keys = Arrays.copyOf(keys, keys.length * 2);
+      }
+      System.arraycopy(line, 0, data, used, length);
+      keys[size] = findKey(data, used, used + length);
+      starts[size] = used;
+      used += length;
+      size++;
+      starts[size] = used;
+    }
+
+    int size() {
+      return size;
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    /**
+     * @return the estimated heap used by the buffered lines
+     */
+    long estimatedSize() {
+      return used + (long) size * BYTES_PER_LINE;
+    }
+
+    /**
+     * Sorts the lines and writes them newline terminated to the file.
+     */
+    void sortAndWrite(File sortFile) throws IOException {
+      int[] order = sort();
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(sortFile), BUFFER_SIZE)) {
+        for (int i : order) {
+          out.write(data, starts[i], starts[i + 1] - starts[i]);
+          out.write('\n');
+        }
+      }
+    }
+
+    /**
+     * Sorts the line indices with a multikey quicksort on the key bytes, which compares every byte of a shared prefix
+     * only once instead of on every comparison. Lines with equal keys are ordered by their index, lines with a missing
+     * key are moved to the end first.
+     *
+     * @return the line indices in sort order
+     */
+    int[] sort() {
+      int[] order = new int[size];
+      // the lines with a key in input order, followed by the ones without
+      int present = 0;
+      for (int i = 0; i < size; i++) {
+        if (keys[i] >= 0) {
+          order[present++] = i;
+        }
+      }
+      for (int i = 0, missing = present; i < size; i++) {
+        if (keys[i] < 0) {
+          order[missing++] = i;
+        }
+      }
+      multikeySort(order, 0, present, 0);
+      return order;
+    }
+
+    /**
+     * Sorts order[from, to), lines with keys that are equal up to depth, by the key bytes from depth on.
+     */
+    private void multikeySort(int[] order, int from, int to, int depth) {
+      while (to - from > 1) {
+        if (to - from < 16) {
+          insertionSort(order, from, to, depth);
+          return;
+        }
+        long pivot = word(medianOfThree(order, from, to, depth), depth);
+        // three way partition into words lower than, equal to and higher than the pivot
+        int lt = from;
+        int gt = to - 1;
+        int i = from;
+        while (i <= gt) {
+          int cmp = Long.compareUnsigned(word(order[i], depth), pivot);
+          if (cmp < 0) {
+            swap(order, lt++, i++);
+          } else if (cmp > 0) {
+            swap(order, i, gt--);
+          } else {
+            i++;
+          }
+        }
+        boolean keysEnded = (pivot & 0xFF) < WORD_BYTES;
+        if (keysEnded) {
+          // the keys ended and are equal, keep the input order
+          Arrays.sort(order, lt, gt + 1);
+        }
+        // recurse into the two smaller parts and loop over the largest, so the stack depth stays below log n
+        int lower = lt - from;
+        int equal = gt + 1 - lt;
+        int upper = to - gt - 1;
+        if (!keysEnded && equal >= lower && equal >= upper) {
+          multikeySort(order, from, lt, depth);
+          multikeySort(order, gt + 1, to, depth);
+          from = lt;
+          to = gt + 1;
+          depth += WORD_BYTES;
+        } else if (lower >= upper) {
+          if (!keysEnded) {
+            multikeySort(order, lt, gt + 1, depth + WORD_BYTES);
+          }
+          multikeySort(order, gt + 1, to, depth);
+          to = lt;
+        } else {
+          multikeySort(order, from, lt, depth);
+          if (!keysEnded) {
+            multikeySort(order, lt, gt + 1, depth + WORD_BYTES);
+          }
+          from = gt + 1;
+        }
+      }
+    }
+
+    private void insertionSort(int[] order, int from, int to, int depth) {
+      for (int i = from + 1; i < to; i++) {
+        int line = order[i];
+        int j = i;
+        while (j > from && compareFrom(line, order[j - 1], depth) < 0) {
+          order[j] = order[j - 1];
+          j--;
+        }
+        order[j] = line;
+      }
+    }
+
+    /**
+     * Compares the keys of two lines from depth on, then their indices.
+     */
+    private int compareFrom(int a, int b, int depth) {
+      int cmp =
+          Arrays.compareUnsigned(
+              data,
+              (int) (keys[a] >>> 32) + depth,
+              (int) keys[a],
+              data,
+              (int) (keys[b] >>> 32) + depth,
+              (int) keys[b]);
+      return cmp != 0 ? cmp : Integer.compare(a, b);
+    }
+
+    private int medianOfThree(int[] order, int from, int to, int depth) {
+      int a = order[from];
+      int b = order[(from + to) >>> 1];
+      int c = order[to - 1];
+      long x = word(a, depth);
+      long y = word(b, depth);
+      long z = word(c, depth);
+      if (Long.compareUnsigned(x, y) < 0) {
+        return Long.compareUnsigned(y, z) < 0 ? b : Long.compareUnsigned(x, z) < 0 ? c : a;
+      }
+      return Long.compareUnsigned(x, z) < 0 ? a : Long.compareUnsigned(y, z) < 0 ? c : b;
+    }
+
+    /**
+     * Packs the next {@link #WORD_BYTES} key bytes of a line from depth on into the upper bytes of a long, and their
+     * number into the lowest byte. Comparing words unsigned orders keys like comparing their bytes, a key that ends
+     * sorts before any longer key.
+     */
+    private long word(int line, int depth) {
+      long key = keys[line];
+      int pos = (int) (key >>> 32) + depth;
+      int length = Math.min((int) key - pos, WORD_BYTES);
+      if (length <= 0) {
+        return 0;
+      }
+      long word;
+      if (pos + Long.BYTES <= data.length) {
+        word = (long) LONG_VIEW.get(data, pos) & (-1L << (Long.BYTES - length) * 8);
+      } else {
+        word = 0;
+        for (int i = 0; i < length; i++) {
+          word |= (data[pos + i] & 0xFFL) << (Long.BYTES - 1 - i) * 8;
+        }
+      }
+      return word | length;
+    }
+
+    private void swap(int[] order, int i, int j) {
+      int t = order[i];
+      order[i] = order[j];
+      order[j] = t;
+    }
+  }
+
+  /**
+   * Reads newline terminated lines into a reused byte array, dropping the newline and a preceding carriage return.
+   */
+  static final class LineReader implements Closeable {
+    private final InputStream in;
+    // true to also end lines at a lone \r, like BufferedReader.readLine()
+    private final boolean carriageReturns;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+    byte[] line = new byte[256];
+    int length;
+    // the number of bytes read up to the end of the current line
+    long offset;
+
+    LineReader(InputStream in) {
+      this(in, false);
+    }
+
+    /**
+     * @param carriageReturns true to end lines at \n, \r or \r\n like {@link java.io.BufferedReader#readLine()},
+     *        false to end them at \n only and drop a preceding \r
+     */
+    LineReader(InputStream in, boolean carriageReturns) {
+      this.in = in;
+      this.carriageReturns = carriageReturns;
+    }
+
+    /**
+     * @return true if a line was read into {@link #line}, false at the end of the stream
+     */
+    boolean next() throws IOException {
+      length = 0;
+      boolean read = false;
+      while (true) {
+        if (pos == limit) {
+          limit = in.read(buffer);
+          pos = 0;
+          if (limit < 0) {
+            limit = 0;
+            if (!carriageReturns) {
+              stripCarriageReturn();
+            }
+            return read;
+          }
+        }
+        read = true;
+        int start = pos;
+        while (pos < limit && buffer[pos] != '\n' && !(carriageReturns && buffer[pos] == '\r')) {
+          pos++;
+        }
+        append(start, pos - start);
+        offset += pos - start;
+        if (pos < limit) {
+          byte terminator = buffer[pos];
+          pos++;
+          offset++;
+          if (!carriageReturns) {
+            stripCarriageReturn();
+          } else if (terminator == '\r') {
+            skipLineFeed();
+          }
+          return true;
+        }
+      }
+    }
+
+    /**
+     * Consumes the \n of a \r\n line end, so the offset after a line is never in between.
+     */
+    private void skipLineFeed() throws IOException {
+      if (pos == limit) {
+        limit = Math.max(0, in.read(buffer));
+        pos = 0;
+      }
+      if (pos < limit && buffer[pos] == '\n') {
+        pos++;
+        offset++;
+      }
+    }
+
+    private void append(int start, int count) {
+      if (length + count > line.length) {
+        line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+      }
+      System.arraycopy(buffer, start, line, length, count);
+      length += count;
+    }
+
+    private void stripCarriageReturn() {
+      if (length > 0 && line[length - 1] == '\r') {
+        length--;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sorts in Java by the raw bytes of the lines, see {@link FileUtils#sortBytesInJava}.
+ * <br>
+ * Used for single column sorts in natural order of newline terminated, unquoted files in an encoding that orders
+ * characters by their bytes, when no duplicates are dropped or folded.
+ * <br>
+ * Not one of the default engines: the byte order differs from the String order of the Java sort for characters above
+ * \uFFFF, so callers opt in to it with {@link FileUtils#setSortEngines(java.util.List)} or
+ * {@link FileUtils#registerSortEngine(SortEngine)}. It cannot sort if the spill codec, sort checkpoints, merge
+ * partitions or key extraction of the Java sort are configured, as the byte sort does not support them.
+ */
+public final class ByteSortEngine implements SortEngine {
+
+  @Override
+  public boolean canSort(SortRequest request, FileUtils settings) {
+    return request.isNaturalOrder()
+        && request.getSortKey() == null
+        && request.getEnclosedBy() == null
+        && request.isNewlineTerminated()
+        && settings.getMergeFunction() == null
+        && settings.getDistinctMode() == DistinctMode.NONE
+        && settings.getSpillCodec() == SpillCodec.TEXT
+        && settings.getSortCheckpointDir() == null
+        && settings.getMergePartitions() == 1
+        && !settings.isExtractSortKeys()
+        && isByteOrdered(request.getEncoding());
+  }
+
+  @Override
+  public boolean sort(SortRequest request, FileUtils settings) throws IOException {
+    settings.sortBytesInJava(
+        request.getInputs(),
+        request.getSorted(),
+        request.getEncoding(),
+        request.getColumn(),
+        request.getColumnDelimiter(),
+        request.getIgnoreHeaderLines());
+    return true;
+  }
+
+  /**
+   * @return true if the encoding orders characters the same way as their encoded bytes
+   */
+  static boolean isByteOrdered(String encoding) {
+    try {
+      Charset charset = Charset.forName(encoding);
+      return charset.equals(StandardCharsets.UTF_8)
+          || charset.equals(StandardCharsets.US_ASCII)
+          || charset.equals(StandardCharsets.ISO_8859_1);
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "Java byte sort";
+  }
+}
@@ -0,0 +1,33 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads back the lines of a sort chunk written by a {@link ChunkWriter}.
+ */
+interface ChunkReader extends Closeable {
+
+  /**
+   * @return the next line, or null at the end of the chunk
+   */
+  String readLine() throws IOException;
+
+  /**
+   * @return the sort key of the line read last, which is the line itself for chunks written without keys
+   */
+  String getKey();
+}
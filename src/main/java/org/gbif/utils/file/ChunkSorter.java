@@ -0,0 +1,181 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the sort-and-spill tasks of an external sort, either directly on the calling thread or on an executor.
+ * <br>
+ * When an executor is used the calling thread can keep reading the input while earlier chunks are sorted and written.
+ * The number of submitted chunks that are not yet written is bounded, so the memory used stays limited to
+ * maxChunksInFlight chunks plus the one being filled by the reader.
+ * <br>
+ * The chunk files are returned in submission order, independent of the order the tasks complete in. With a
+ * {@link SortCheckpoint} every written chunk is recorded, and written chunks are kept if the sort fails.
+ */
+class ChunkSorter implements AutoCloseable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ChunkSorter.class);
+
+  private final ExecutorService executor;
+  private final Semaphore inFlight;
+  private final SortCheckpoint checkpoint;
+  private final List<Future<File>> chunks = new ArrayList<>();
+  private boolean completed = false;
+
+  /**
+   * @param executor executor to run the sort tasks on, or null to run them on the calling thread
+   * @param maxChunksInFlight maximum number of submitted chunks that are not yet written
+   */
+  ChunkSorter(ExecutorService executor, int maxChunksInFlight) {
+    this(executor, maxChunksInFlight, null);
+  }
+
+  /**
+   * @param executor executor to run the sort tasks on, or null to run them on the calling thread
+   * @param maxChunksInFlight maximum number of submitted chunks that are not yet written
+   * @param checkpoint records the written chunks, or null
+   */
+  ChunkSorter(ExecutorService executor, int maxChunksInFlight, SortCheckpoint checkpoint) {
+    this.executor = executor;
+    this.inFlight = new Semaphore(Math.max(1, maxChunksInFlight));
+    this.checkpoint = checkpoint;
+  }
+
+  /**
+   * Submits a task that sorts a chunk and writes it to a file. Blocks while the maximum number of chunks is in flight.
+   */
+  void submit(Callable<File> task) throws IOException {
+    Callable<File> sortTask = checkpoint == null ? task : recorded(task);
+    if (executor == null) {
+      File chunk = call(sortTask);
+      chunks.add(CompletableFuture.completedFuture(chunk));
+      return;
+    }
+
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to submit a sort chunk");
+    }
+    try {
+      chunks.add(
+          executor.submit(
+              () -> {
+                try {
+                  return sortTask.call();
+                } finally {
+                  inFlight.release();
+                }
+              }));
+    } catch (RuntimeException e) {
+      inFlight.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Wraps a task to record its chunk in the checkpoint once written.
+   */
+  private Callable<File> recorded(Callable<File> task) {
+    int sequence = checkpoint.submit();
+    return () -> {
+      File chunk = task.call();
+      checkpoint.completed(sequence, chunk);
+      return chunk;
+    };
+  }
+
+  /**
+   * Waits for all submitted chunks to be written.
+   *
+   * @return the chunk files in submission order
+   */
+  List<File> await() throws IOException {
+    List<File> files = new ArrayList<>(chunks.size());
+    for (Future<File> chunk : chunks) {
+      files.add(get(chunk));
+    }
+    completed = true;
+    return files;
+  }
+
+  /**
+   * If the chunks were not all written successfully, cancels the pending tasks and deletes the chunks already written
+   * unless they are checkpointed.
+   */
+  @Override
+  public void close() {
+    if (completed) {
+      return;
+    }
+    for (Future<File> chunk : chunks) {
+      chunk.cancel(false);
+    }
+    if (checkpoint != null) {
+      return;
+    }
+    for (Future<File> chunk : chunks) {
+      try {
+        File f = chunk.get();
+        if (f != null && f.exists() && !f.delete()) {
+          LOG.warn("Could not delete sort chunk {}", f.getAbsolutePath());
+        }
+      } catch (Exception e) {
+        // cancelled or failed, nothing written to clean up
+      }
+    }
+  }
+
+  private static File call(Callable<File> sortTask) throws IOException {
+    try {
+      return sortTask.call();
+    } catch (IOException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException("Failed to sort chunk", e);
+    }
+  }
+
+  private static File get(Future<File> chunk) throws IOException {
+    try {
+      return chunk.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a sort chunk");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      } else if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException("Failed to sort chunk", e.getCause());
+    }
+  }
+}
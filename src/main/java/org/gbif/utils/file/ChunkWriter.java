@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes the lines of a sort chunk in the format of a {@link SpillCodec}.
+ */
+interface ChunkWriter extends Closeable {
+
+  void write(String line) throws IOException;
+
+  /**
+   * Writes a line together with its sort key, only supported by chunks opened for keyed records.
+   *
+   * @param key the sort key, can be null
+   */
+  void write(String key, String line) throws IOException;
+
+  /**
+   * @return the number of uncompressed bytes written so far
+   */
+  long getRawBytes();
+}
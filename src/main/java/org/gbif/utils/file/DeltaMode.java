@@ -0,0 +1,31 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+/**
+ * How {@link FileUtils#mergeDelta} combines the lines of a delta with the lines of the sorted base file that have an
+ * equal sort key.
+ */
+public enum DeltaMode {
+
+  /**
+   * Keep the base lines and add the delta lines after them.
+   */
+  INSERT,
+
+  /**
+   * Delta lines replace all base lines with an equal sort key.
+   */
+  REPLACE
+}
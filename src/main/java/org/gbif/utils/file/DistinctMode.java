@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+/**
+ * Which duplicates a file sort drops while merging the sorted chunks.
+ */
+public enum DistinctMode {
+
+  /**
+   * Keep all lines.
+   */
+  NONE,
+
+  /**
+   * Keep one of identical lines. Lines with equal sort keys are then ordered by the whole line, so that identical
+   * lines become adjacent. The equivalent of sort -u on the whole line.
+   */
+  LINES,
+
+  /**
+   * Keep only the first line, in input order, of all lines with an equal sort key. The equivalent of sort -s -u with
+   * the sort key.
+   */
+  KEYS
+}
@@ -0,0 +1,358 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.ToLongFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sorts records of any type that may not fit into memory, such as parsed rows or POJOs, without converting them to
+ * lines of text.
+ * <br>
+ * This is the external sort of {@link FileUtils#sortInJava(Iterator, Comparator)} for typed records, and uses the
+ * settings of the given FileUtils instance: the records are buffered in chunks of
+ * {@link FileUtils#getLinesPerSortChunk()} records, or of the sort memory budget if a record size estimate is given.
+ * Full chunks are sorted on the sort threads and spilled to the sort temp dir with the record codec, through the
+ * streams of the spill codec, so compressed if it is {@link SpillCodec#DEFLATE}. The sorted records are read from the
+ * {@link SortedChunkMerger} of the chunks, reduced to the maximum merge fan-in first. Input that fits into a single
+ * chunk is sorted in memory without any file.
+ * <br>
+ * Records with an equal order keep their input order. The distinct mode and merge function of the settings are not
+ * applied.
+ *
+ * @param <T> the type of the sorted records
+ */
+public class ExternalSorter<T> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ExternalSorter.class);
+
+  private final FileUtils settings;
+  private final Comparator<? super T> comparator;
+  private final RecordCodec<T> codec;
+  private final ToLongFunction<? super T> recordSize;
+
+  /**
+   * @param settings the sort settings, such as chunk size, threads and temp dir
+   * @param comparator the order of the records
+   * @param codec writes and reads the records of the spilled chunks
+   */
+  public ExternalSorter(
+      FileUtils settings, Comparator<? super T> comparator, RecordCodec<T> codec) {
+    this(settings, comparator, codec, null);
+  }
+
+  /**
+   * @param settings the sort settings, such as chunk size, threads and temp dir
+   * @param comparator the order of the records
+   * @param codec writes and reads the records of the spilled chunks
+   * @param recordSize estimates the heap retained by a record, to size chunks by the sort memory budget
+   */
+  public ExternalSorter(
+      FileUtils settings,
+      Comparator<? super T> comparator,
+      RecordCodec<T> codec,
+      ToLongFunction<? super T> recordSize) {
+    this.settings = settings;
+    this.comparator = comparator;
+    this.codec = codec;
+    this.recordSize = recordSize;
+  }
+
+  /**
+   * Sorts the records.
+   * <br>
+   * The input is consumed before this method returns, and closed if it is {@link AutoCloseable}, also if the sort
+   * fails. The returned iterator must be closed to delete the temporary chunk files.
+   *
+   * @param records To sort
+   * @return the sorted records
+   */
+  public ClosableIterator<T> sort(Iterator<T> records) throws IOException {
+    long start = System.currentTimeMillis();
+    ExecutorService executor = settings.newSortExecutor();
+    int chunksInFlight = executor == null ? 1 : settings.getMaxChunksInFlight();
+    // the budget is shared by the chunks in flight and the one being filled
+    long chunkBudget =
+        settings.getSortMemoryBudget() > 0 && recordSize != null
+            ? Math.max(1, settings.getSortMemoryBudget() / (chunksInFlight + 1))
+            : 0;
+    int chunkRecords = settings.getLinesPerSortChunk();
+    File sortDir = null;
+    List<ChunkInput<T>> chunks = new ArrayList<>();
+    boolean inputClosed = false;
+    try {
+      try (ChunkSorter chunkSorter = new ChunkSorter(executor, chunksInFlight)) {
+        List<T> recordsToSort = new ArrayList<>();
+        long bufferedBytes = 0;
+        int fileCount = 0;
+        while (records.hasNext()) {
+          T record = records.next();
+          recordsToSort.add(record);
+          boolean full;
+          if (chunkBudget > 0) {
+            bufferedBytes += recordSize.applyAsLong(record);
+            full = bufferedBytes >= chunkBudget;
+          } else {
+            full = recordsToSort.size() == chunkRecords;
+          }
+          // spill, unless it is the last chunk which is kept in memory
+          if (full && records.hasNext()) {
+            if (sortDir == null) {
+              sortDir = settings.createSortDir();
+            }
+            submitChunk(chunkSorter, recordsToSort, new File(sortDir, "chunk_" + fileCount++));
+            recordsToSort = new ArrayList<>();
+            bufferedBytes = 0;
+          }
+        }
+        inputClosed = true;
+        if (records instanceof AutoCloseable) {
+          ((AutoCloseable) records).close();
+        }
+        if (sortDir != null) {
+          // spill the last chunk too, so the memory is only used by the merge
+          submitChunk(chunkSorter, recordsToSort, new File(sortDir, "chunk_" + fileCount));
+          List<File> sortFiles = settings.reduceFanIn(chunkSorter.await(), this::mergeChunks);
+          int bufferSize = settings.mergeBufferSize(sortFiles.size());
+          for (File f : sortFiles) {
+            chunks.add(new FileChunkInput<>(f, codec, settings.getSpillCodec(), bufferSize));
+          }
+          LOG.debug(
+              "{} sorted record chunks created in {} secs",
+              chunks.size(),
+              (System.currentTimeMillis() - start) / 1000);
+        } else {
+          recordsToSort.sort(comparator);
+          chunks.add(new ListChunkInput<>(recordsToSort));
+          LOG.debug(
+              "Sorted {} records in memory in {} ms",
+              recordsToSort.size(),
+              System.currentTimeMillis() - start);
+        }
+      }
+      return new SortedRecords<>(new SortedChunkMerger<>(chunks, comparator), sortDir);
+    } catch (Exception e) {
+      if (!inputClosed && records instanceof AutoCloseable) {
+        try {
+          ((AutoCloseable) records).close();
+        } catch (Exception ignored) {
+        }
+      }
+      for (ChunkInput<T> chunk : chunks) {
+        try {
+          chunk.close();
+        } catch (IOException | RuntimeException ignored) {
+        }
+      }
+      if (sortDir != null) {
+        FileUtils.deleteDirectoryRecursively(sortDir);
+      }
+      if (e instanceof IOException) {
+        throw (IOException) e;
+      } else if (e instanceof RuntimeException) {
+        throw (RuntimeException) e;
+      }
+      throw new IOException("Failed to close the records to sort", e);
+    } finally {
+      settings.stopSortExecutor(executor);
+    }
+  }
+
+  private void submitChunk(ChunkSorter chunkSorter, List<T> records, File sortFile)
+      throws IOException {
+    chunkSorter.submit(
+        () -> {
+          long start = System.currentTimeMillis();
+          records.sort(comparator);
+          try (DataOutputStream out = openChunk(sortFile, records.size())) {
+            for (T record : records) {
+              codec.write(record, out);
+            }
+          }
+          LOG.debug(
+              "Sorted and wrote {} records in msec[{}]",
+              records.size(),
+              System.currentTimeMillis() - start);
+          return sortFile;
+        });
+  }
+
+  /**
+   * Merges sorted chunk files into a new chunk file.
+   */
+  private void mergeChunks(List<File> group, File target) throws IOException {
+    int bufferSize = settings.mergeBufferSize(group.size() * settings.getMergeParallelism());
+    List<ChunkInput<T>> chunks = new ArrayList<>(group.size());
+    try {
+      long size = 0;
+      for (File f : group) {
+        FileChunkInput<T> chunk =
+            new FileChunkInput<>(f, codec, settings.getSpillCodec(), bufferSize);
+        chunks.add(chunk);
+        size += chunk.remaining;
+      }
+      try (SortedChunkMerger<T> merger = new SortedChunkMerger<>(chunks, comparator);
+          DataOutputStream out = openChunk(target, size)) {
+        while (merger.next()) {
+          codec.write(merger.record(), out);
+        }
+      }
+    } finally {
+      for (ChunkInput<T> chunk : chunks) {
+        chunk.close();
+      }
+    }
+  }
+
+  /**
+   * Opens a chunk file for writing, starting with the number of records it holds.
+   */
+  private DataOutputStream openChunk(File sortFile, long size) throws IOException {
+    DataOutputStream data = new DataOutputStream(settings.getSpillCodec().newOutputStream(sortFile));
+    data.writeLong(size);
+    return data;
+  }
+
+  /**
+   * The records of a sorted chunk, read one after the other.
+   */
+  private abstract static class ChunkInput<T> implements SortedChunkMerger.Chunk<T> {
+    T record;
+
+    @Override
+    public T record() {
+      return record;
+    }
+  }
+
+  private static final class ListChunkInput<T> extends ChunkInput<T> {
+    private final Iterator<T> records;
+
+    private ListChunkInput(List<T> records) {
+      this.records = records.iterator();
+    }
+
+    @Override
+    public boolean next() {
+      if (!records.hasNext()) {
+        record = null;
+        return false;
+      }
+      record = records.next();
+      return true;
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  private static final class FileChunkInput<T> extends ChunkInput<T> {
+    private final RecordCodec<T> codec;
+    private final DataInputStream in;
+    private long remaining;
+
+    private FileChunkInput(
+        File sortFile, RecordCodec<T> codec, SpillCodec spillCodec, int bufferSize)
+        throws IOException {
+      this.codec = codec;
+      in = new DataInputStream(spillCodec.newInputStream(sortFile, bufferSize));
+      try {
+        remaining = in.readLong();
+      } catch (IOException e) {
+        close();
+        throw e;
+      }
+    }
+
+    @Override
+    public boolean next() throws IOException {
+      if (remaining == 0) {
+        record = null;
+        return false;
+      }
+      remaining--;
+      record = codec.read(in);
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * The sorted records, deleting the chunk files when closed.
+   */
+  private static final class SortedRecords<T> implements ClosableIterator<T> {
+    private final SortedChunkMerger<T> merger;
+    private final File sortDir;
+    private boolean hasNext;
+    private boolean closed;
+
+    private SortedRecords(SortedChunkMerger<T> merger, File sortDir) throws IOException {
+      this.merger = merger;
+      this.sortDir = sortDir;
+      hasNext = merger.next();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return hasNext;
+    }
+
+    @Override
+    public T next() {
+      if (!hasNext) {
+        throw new NoSuchElementException();
+      }
+      T record = merger.record();
+      try {
+        hasNext = merger.next();
+      } catch (IOException e) {
+        throw new UncheckedIOException("Failed to read sorted chunks", e);
+      }
+      return record;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      hasNext = false;
+      try {
+        merger.close();
+      } finally {
+        if (sortDir != null) {
+          FileUtils.deleteDirectoryRecursively(sortDir);
+        }
+      }
+    }
+  }
+}
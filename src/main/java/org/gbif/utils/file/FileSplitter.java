@@ -13,14 +13,33 @@
  */
 package org.gbif.utils.file;
 
+import org.gbif.utils.concurrent.NamedThreadFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,43 +49,127 @@ import org.slf4j.LoggerFactory;
  * This is done on file size, but then extended to read to the end of the current line.
  * Therefore a chunksize of 32meg will result in a split files of slightly more (assuming lines are
  * not very long).
- * This is done using NIO libraries for high performance.
+ * The end of a line is found by reading ahead {@value #READ_AHEAD_BYTES} bytes, doubling the read ahead until a
+ * newline or the end of the file is found, so lines of any length are kept whole.
+ * The parts are then copied in parallel using NIO positional transfers for high performance.
+ * <br>
+ * To process the lines of a large file in parallel without writing any parts, see
+ * {@link #readers(File, Charset, int)} and {@link #lines(File, Charset, long)}.
  */
 public class FileSplitter {
 
   private static final Logger LOG = LoggerFactory.getLogger(FileSplitter.class);
   public static final String SEPARATOR = "_";
   public static final int READ_AHEAD_BYTES = 256;
+  private static final int MAX_READ_AHEAD_BYTES = 1024 * 1024;
+
+  /**
+   * A part of a split file, covering the bytes from start inclusive to end exclusive of the source file.
+   */
+  public static final class Part {
+    private final File file;
+    private final long start;
+    private final long end;
+    private final long lines;
+
+    private Part(File file, long start, long end, long lines) {
+      this.file = file;
+      this.start = start;
+      this.end = end;
+      this.lines = lines;
+    }
+
+    public File getFile() {
+      return file;
+    }
+
+    /**
+     * @return the offset of the first byte of the part in the source file
+     */
+    public long getStart() {
+      return start;
+    }
+
+    /**
+     * @return the offset after the last byte of the part in the source file
+     */
+    public long getEnd() {
+      return end;
+    }
+
+    public long getLength() {
+      return end - start;
+    }
+
+    /**
+     * @return the number of lines in the part, counting a last line without newline
+     */
+    public long getLines() {
+      return lines;
+    }
+
+    @Override
+    public String toString() {
+      return file.getName() + " [" + start + ", " + end + ") " + lines + " lines";
+    }
+  }
 
   // for the file, gives the Byte markers for reading lines, such that the lines read will
   // approximately
   // equate be the chunk size (slightly more as it reads to the end of the row)
   public static List<Long> scanToChunk(File from, long chunkSizeBytes) throws IOException {
-    List<Long> chunkBytes = new ArrayList<Long>();
-    FileInputStream fis = new FileInputStream(from);
-    FileChannel fcin = fis.getChannel();
+    try (FileChannel fcin = FileChannel.open(from.toPath(), StandardOpenOption.READ)) {
+      List<Long> chunkBytes = boundaries(fcin, chunkSizeBytes);
+      // the end of the last chunk is the end of the file
+      chunkBytes.remove(chunkBytes.size() - 1);
+      return chunkBytes;
+    }
+  }
 
-    long byteCount = chunkSizeBytes;
+  /**
+   * @return the end offsets of all parts, each at least chunkSizeBytes long and ending after a newline, apart from
+   *         the last one ending at the end of the file
+   */
+  private static List<Long> boundaries(FileChannel fcin, long chunkSizeBytes) throws IOException {
+    if (chunkSizeBytes <= 0) {
+      throw new IllegalArgumentException("Chunk size must be positive");
+    }
+    List<Long> ends = new ArrayList<>();
+    long size = fcin.size();
+    long end = 0;
+    while (end < size) {
+      end = end + chunkSizeBytes >= size ? size : lineEnd(fcin, end + chunkSizeBytes - 1, size);
+      ends.add(end);
+    }
+    if (ends.isEmpty()) {
+      ends.add(0L);
+    }
+    return ends;
+  }
 
-    // now we need to read and transfer to the end of the line...
+  /**
+   * @return the offset after the first newline at or after the position, or the size if there is none
+   */
+  private static long lineEnd(FileChannel fcin, long position, long size) throws IOException {
     ByteBuffer bb = ByteBuffer.allocate(READ_AHEAD_BYTES);
-
-    while (byteCount < fcin.size()) {
-      fcin.read(bb, byteCount);
-      int i = 0;
-      for (i = 0; i < bb.limit(); i++) {
-        if ((char) bb.get(i) == '\n') {
-          i++;
-          break;
+    while (position < size) {
+      bb.clear();
+      int read = fcin.read(bb, position);
+      if (read <= 0) {
+        break;
+      }
+      for (int i = 0; i < read; i++) {
+        if (bb.get(i) == '\n') {
+          return position + i + 1;
         }
       }
-      // bb.rewind();
-      chunkBytes.add(i + byteCount);
-      byteCount += chunkSizeBytes;
+      position += read;
+      // a long line, read further ahead
+      if (bb.capacity() < MAX_READ_AHEAD_BYTES) {
+        bb = ByteBuffer.allocate(bb.capacity() * 2);
+      }
     }
-    fcin.close();
-    fis.close();
-    return chunkBytes;
+    return size;
   }
 
   /**
@@ -79,9 +182,16 @@ public class FileSplitter {
   public static List<File> split(
       File from, File targetDirectory, String suffix, long chunkSizeBytes) throws IOException {
     List<File> files = new ArrayList<File>();
-    FileInputStream fis = new FileInputStream(from);
-    FileChannel fcin = fis.getChannel();
+    for (Part part : splitParts(from, targetDirectory, suffix, chunkSizeBytes)) {
+      files.add(part.getFile());
+    }
+    return files;
+  }
 
+  /**
+   * @return the file of a part of the split file, such as pumaConcolor_part_0.txt for pumaConcolor.txt
+   */
+  public static File partFile(File from, File targetDirectory, String suffix, int filePartCount) {
     String filePartNamePrefix = "";
     String filePartNameSuffix = "";
     if (from.getName().contains(".")) {
@@ -90,59 +200,341 @@ public class FileSplitter {
     } else {
       filePartNamePrefix = from.getName();
     }
+    String fileName =
+        filePartNamePrefix + SEPARATOR + suffix + SEPARATOR + filePartCount + filePartNameSuffix;
+    return new File(targetDirectory, fileName);
+  }
 
-    long byteCount = 0;
-    int filePartCount = 0;
-
-    while (byteCount < fcin.size()) {
+  /**
+   * Splits a file like {@link #split(File, File, String, long)}, writing the parts in parallel.
+   *
+   * @return the parts with their byte range in the source file and their number of lines, in file order
+   */
+  public static List<Part> splitParts(
+      File from, File targetDirectory, String suffix, long chunkSizeBytes) throws IOException {
+    try (FileChannel fcin = FileChannel.open(from.toPath(), StandardOpenOption.READ)) {
       long time = System.currentTimeMillis();
-      // create the output file
-      String fileName =
-          filePartNamePrefix + SEPARATOR + suffix + SEPARATOR + filePartCount + filePartNameSuffix;
-      File to = new File(targetDirectory, fileName);
-      files.add(to);
-
-      // copy to the new file
-      FileOutputStream fos = new FileOutputStream(to);
-      FileChannel fcout = fos.getChannel();
-      fcin.transferTo(byteCount, chunkSizeBytes, fcout);
-      byteCount += chunkSizeBytes;
-
-      // now we need to read and transfer to the end of the line...
-      ByteBuffer bb = ByteBuffer.allocate(READ_AHEAD_BYTES);
-      fcin.read(bb, byteCount);
-      int i = 0;
-      for (i = 0; i < bb.limit(); i++) {
-        if ((char) bb.get(i) == '\n') {
-          i++;
-          break;
+      List<Long> ends = boundaries(fcin, chunkSizeBytes);
+      if (ends.get(ends.size() - 1) == 0) {
+        return new ArrayList<>();
+      }
+
+      int threads = Math.min(ends.size(), Runtime.getRuntime().availableProcessors());
+      ExecutorService executor =
+          Executors.newFixedThreadPool(threads, new NamedThreadFactory("file-split"));
+      try {
+        List<Future<Part>> futures = new ArrayList<>(ends.size());
+        long start = 0;
+        for (int filePartCount = 0; filePartCount < ends.size(); filePartCount++) {
+          File to = partFile(from, targetDirectory, suffix, filePartCount);
+          long partStart = start;
+          long partEnd = ends.get(filePartCount);
+          futures.add(executor.submit(() -> copyPart(fcin, to, partStart, partEnd)));
+          start = partEnd;
         }
+        List<Part> parts = new ArrayList<>(futures.size());
+        for (Future<Part> future : futures) {
+          parts.add(get(future));
+        }
+        LOG.debug(
+            "Split {} into {} parts in {} ms", from, parts.size(), System.currentTimeMillis() - time);
+        return parts;
+      } finally {
+        executor.shutdownNow();
       }
-      bb.rewind();
-      bb.limit(i);
-      fcout.write(bb);
-      byteCount += i;
-
-      fcout.close();
-      fos.close();
-      filePartCount++;
-      LOG.debug(
-          "Filepart["
-              + fileName
-              + "] created in "
-              + (1 + System.currentTimeMillis() - time) / 1000
-              + " secs");
-    }
-
-    // TODO - have tested but need to test thoroughly...
-    // what if the file was smaller than 32 meg?
-    // what if the chunk size was exactly the file size?
-    // did the joins line up properly?
-    // what if the read ahead line did not get to the end of the line?
-
-    fcin.close();
-    fis.close();
-    return files;
+    }
+  }
+
+  /**
+   * Copies a byte range of the source into a new part file and counts its lines.
+   * Positional reads and transfers leave the shared source channel's position untouched.
+   */
+  private static Part copyPart(FileChannel fcin, File to, long start, long end)
+      throws IOException {
+    try (FileChannel fcout =
+        FileChannel.open(
+            to.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE)) {
+      long position = start;
+      while (position < end) {
+        long transferred = fcin.transferTo(position, end - position, fcout);
+        if (transferred <= 0) {
+          throw new IOException("Failed to copy bytes " + position + "-" + end + " to " + to);
+        }
+        position += transferred;
+      }
+    }
+    return new Part(to, start, end, countLines(fcin, start, end));
+  }
+
+  private static long countLines(FileChannel fcin, long start, long end) throws IOException {
+    ByteBuffer bb = ByteBuffer.allocate(SpillCodec.BUFFER_SIZE);
+    long lines = 0;
+    byte last = '\n';
+    long position = start;
+    while (position < end) {
+      bb.clear();
+      bb.limit((int) Math.min(bb.capacity(), end - position));
+      int read = fcin.read(bb, position);
+      if (read <= 0) {
+        break;
+      }
+      for (int i = 0; i < read; i++) {
+        if (bb.get(i) == '\n') {
+          lines++;
+        }
+      }
+      last = bb.get(read - 1);
+      position += read;
+    }
+    // a last line without newline
+    return last == '\n' ? lines : lines + 1;
+  }
+
+  /**
+   * Opens independent readers over newline aligned byte ranges of a file, for example to read one file on all cores.
+   * Every reader has its own channel and only reads its range, no part files are written.
+   *
+   * @param charset the encoding of the file, which must encode the newline as its single ASCII byte
+   * @param parts the number of ranges to split the file in, fewer readers are returned if lines are long
+   * @return the readers in file order, to be closed by the caller
+   * @throws IllegalArgumentException if the encoding does not encode the newline as a single byte, e.g. UTF-16
+   */
+  public static List<BufferedReader> readers(File from, Charset charset, int parts)
+      throws IOException {
+    checkNewlineByte(charset);
+    if (parts <= 0) {
+      throw new IllegalArgumentException("Number of parts must be positive");
+    }
+    long[] bounds = bounds(from, Math.max(1, (from.length() + parts - 1) / parts));
+    List<BufferedReader> readers = new ArrayList<>(bounds.length - 1);
+    try {
+      for (int i = 0; i < bounds.length - 1; i++) {
+        readers.add(rangeReader(from, charset, bounds[i], bounds[i + 1]));
+      }
+    } catch (IOException e) {
+      for (BufferedReader reader : readers) {
+        reader.close();
+      }
+      throw e;
+    }
+    return readers;
+  }
+
+  /**
+   * Streams the lines of a file. The stream splits at newline aligned byte ranges of about chunkSizeBytes, so a
+   * {@link Stream#parallel() parallel} stream reads the ranges concurrently without writing any part files. The
+   * order of the lines is kept.
+   * <br>
+   * The stream must be closed to release the files of ranges that were not read to their end.
+   *
+   * @param charset the encoding of the file, which must encode the newline as its single ASCII byte
+   * @param chunkSizeBytes the minimum size of the ranges processed by a single thread
+   * @throws IllegalArgumentException if the encoding does not encode the newline as a single byte, e.g. UTF-16
+   */
+  public static Stream<String> lines(File from, Charset charset, long chunkSizeBytes)
+      throws IOException {
+    checkNewlineByte(charset);
+    LineSpliterator spliterator =
+        new LineSpliterator(from, charset, bounds(from, chunkSizeBytes), ConcurrentHashMap.newKeySet());
+    return StreamSupport.stream(spliterator, false).onClose(spliterator::closeAll);
+  }
+
+  /**
+   * Ranges are aligned on the \n byte, which splits a character in encodings that do not encode it as a single byte.
+   */
+  private static void checkNewlineByte(Charset charset) {
+    if (!Arrays.equals("\n".getBytes(charset), new byte[] {'\n'})) {
+      throw new IllegalArgumentException("Cannot split " + charset + " encoded files on newlines");
+    }
+  }
+
+  /**
+   * @return the start offsets of all newline aligned ranges followed by the file size
+   */
+  private static long[] bounds(File from, long chunkSizeBytes) throws IOException {
+    try (FileChannel fcin = FileChannel.open(from.toPath(), StandardOpenOption.READ)) {
+      List<Long> ends = boundaries(fcin, chunkSizeBytes);
+      long[] bounds = new long[ends.size() + 1];
+      for (int i = 0; i < ends.size(); i++) {
+        bounds[i + 1] = ends.get(i);
+      }
+      return bounds;
+    }
+  }
+
+  private static BufferedReader rangeReader(File from, Charset charset, long start, long end)
+      throws IOException {
+    return new BufferedReader(
+        new InputStreamReader(new RangeInputStream(from, start, end), charset),
+        SpillCodec.BUFFER_SIZE);
+  }
+
+  /**
+   * Reads a byte range of a file with positional reads on its own channel.
+   */
+  private static class RangeInputStream extends InputStream {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(SpillCodec.BUFFER_SIZE);
+    private final long end;
+    private long position;
+
+    private RangeInputStream(File from, long start, long end) throws IOException {
+      this.channel = FileChannel.open(from.toPath(), StandardOpenOption.READ);
+      this.position = start;
+      this.end = end;
+      buffer.limit(0);
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!fill()) {
+        return -1;
+      }
+      return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!fill()) {
+        return -1;
+      }
+      int n = Math.min(len, buffer.remaining());
+      buffer.get(b, off, n);
+      return n;
+    }
+
+    private boolean fill() throws IOException {
+      if (buffer.hasRemaining()) {
+        return true;
+      }
+      if (position >= end) {
+        return false;
+      }
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), end - position));
+      int read = channel.read(buffer, position);
+      buffer.flip();
+      if (read <= 0) {
+        return false;
+      }
+      position += read;
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  /**
+   * Splits the lines of a file at newline aligned byte ranges, reading a range only once it is traversed.
+   * A spliterator is only split before it starts reading its first range.
+   */
+  private static class LineSpliterator implements Spliterator<String> {
+    private final File from;
+    private final Charset charset;
+    private final long[] bounds;
+    // the readers opened by this and all split spliterators, closed with the stream
+    private final Set<Closeable> open;
+    private int index;
+    private final int fence;
+    private BufferedReader reader;
+
+    private LineSpliterator(File from, Charset charset, long[] bounds, Set<Closeable> open) {
+      this(from, charset, bounds, open, 0, bounds.length - 1);
+    }
+
+    private LineSpliterator(
+        File from, Charset charset, long[] bounds, Set<Closeable> open, int index, int fence) {
+      this.from = from;
+      this.charset = charset;
+      this.bounds = bounds;
+      this.open = open;
+      this.index = index;
+      this.fence = fence;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super String> action) {
+      try {
+        while (index < fence) {
+          if (reader == null) {
+            reader = rangeReader(from, charset, bounds[index], bounds[index + 1]);
+            open.add(reader);
+          }
+          String line = reader.readLine();
+          if (line != null) {
+            action.accept(line);
+            return true;
+          }
+          reader.close();
+          open.remove(reader);
+          reader = null;
+          index++;
+        }
+        return false;
+      } catch (IOException e) {
+        throw new UncheckedIOException("Failed to read " + from, e);
+      }
+    }
+
+    @Override
+    public Spliterator<String> trySplit() {
+      if (reader != null || fence - index < 2) {
+        return null;
+      }
+      int mid = (index + fence) >>> 1;
+      LineSpliterator prefix = new LineSpliterator(from, charset, bounds, open, index, mid);
+      index = mid;
+      return prefix;
+    }
+
+    /**
+     * @return the remaining bytes, an upper bound of the remaining lines
+     */
+    @Override
+    public long estimateSize() {
+      return bounds[fence] - bounds[index];
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | NONNULL;
+    }
+
+    private void closeAll() {
+      for (Closeable c : open) {
+        try {
+          c.close();
+        } catch (IOException e) {
+          LOG.warn("Failed to close a reader of {}", from, e);
+        }
+      }
+      open.clear();
+    }
+  }
+
+  private static Part get(Future<Part> part) throws IOException {
+    try {
+      return part.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while splitting a file");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      } else if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException("Failed to write file part", e.getCause());
+    }
   }
 
   private FileSplitter() {
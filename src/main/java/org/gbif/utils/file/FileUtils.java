@@ -14,43 +14,67 @@
 package org.gbif.utils.file;
 
 import org.gbif.utils.collection.CompactHashSet;
+import org.gbif.utils.concurrent.ExecutorUtils;
+import org.gbif.utils.concurrent.NamedThreadFactory;
 import org.gbif.utils.text.LineComparator;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.LineIterator;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -65,9 +89,34 @@ public final class FileUtils {
 
   public static final String UTF8 = StandardCharsets.UTF_8.name();
   public static final Pattern TAB_DELIMITED = Pattern.compile("\t");
-  private static int linesPerMemorySort = 100000;
-  private static Boolean gnuSortAvailable = null;
-  private static final Object sortLock = new Object();
+  // estimated heap used by a buffered line besides its characters: String object, array header and list reference
+  private static final int LINE_OVERHEAD_BYTES = 48;
+  private static int defaultLinesPerMemorySort = 100000;
+  private static final int DEFAULT_MAX_MERGE_FAN_IN = 256;
+  private static final int MIN_MERGE_BUFFER_SIZE = 8 * 1024;
+  private static final int MAX_MERGE_BUFFER_SIZE = 4 * 1024 * 1024;
+  // the keys sampled from all records for the key ranges of a parallel merge
+  private static final int SPLIT_SAMPLE_SIZE = 10_000;
+  // the sorted files currently being written, guarded by itself
+  private static final Set<File> sortTargets = new HashSet<>();
+  private Integer linesPerSortChunk;
+  private long sortMemoryBudget = 0;
+  private SpillCodec spillCodec = SpillCodec.TEXT;
+  private boolean extractSortKeys = false;
+  private DistinctMode distinctMode = DistinctMode.NONE;
+  private BinaryOperator<String> mergeFunction;
+  private int maxMergeFanIn = DEFAULT_MAX_MERGE_FAN_IN;
+  private int mergePartitions = 1;
+  private int sortThreads = 1;
+  private int maxChunksInFlight = 0;
+  private ExecutorService sortExecutor;
+  private File sortTempDir;
+  private String gnuSortCompressProgram;
+  private boolean gnuSortKeyPrefix = false;
+  private int sortIndexBlockSize = 0;
+  private boolean detectPresorted = true;
+  private File sortCheckpointDir;
+  private volatile List<SortEngine> sortEngines = List.of(new GnuSortEngine(), new JavaSortEngine());
 
   static {
     /* Warn when the software is not run in a Unicode environment.  This library has not been
@@ -305,9 +354,36 @@ public final class FileUtils {
    * @param linesPerMemorySort are the number of lines that should be sorted in memory, determining the number of file
    *        segments to be sorted when doing a Java file sort. Defaults to 100000, if you have
    *        memory available a higher value increases performance.
+   * @deprecated this changes the default of all instances in the JVM, use the instance setting
+   *        {@link #setLinesPerSortChunk(int)} or {@link #setSortMemoryBudget(long)} instead
    */
+  @Deprecated
   public static void setLinesPerMemorySort(int linesPerMemorySort) {
-    FileUtils.linesPerMemorySort = linesPerMemorySort;
+    FileUtils.defaultLinesPerMemorySort = linesPerMemorySort;
+  }
+
+  /**
+   * A memory budget for the Java sort derived from the maximum heap size, a quarter of {@link Runtime#maxMemory()}.
+   */
+  public static long defaultSortMemoryBudget() {
+    return Runtime.getRuntime().maxMemory() / 4;
+  }
+
+  /**
+   * Estimates the heap retained by a line buffered for sorting, assuming compact strings: one byte per character for
+   * Latin-1 content, two otherwise.
+   */
+  static long estimateRetainedSize(String line) {
+    int length = line.length();
+    long bytes = length;
+    for (int i = 0; i < length; i++) {
+      if (line.charAt(i) > 0xFF) {
+        bytes = 2L * length;
+        break;
+      }
+    }
+    // arrays are 8 byte aligned
+    return LINE_OVERHEAD_BYTES + ((bytes + 7) & ~7L);
   }
 
   public static Writer startNewUtf8File(File file) throws IOException {
@@ -513,322 +589,1321 @@ public final class FileUtils {
             + getFileExtension(original.getName()));
   }
 
-  private static boolean ignore(String line) {
-    return StringUtils.trimToNull(line) == null || line.startsWith("#");
+  /**
+   * Names a sort chunk file in the directory of a single sort. The index of the input is part of the name, as inputs
+   * from different directories can have the same name.
+   */
+  private static File getSortChunkFile(File sortDir, File input, int inputIndex, int index) {
+    return new File(sortDir, inputIndex + "_" + getChunkFile(input, index).getName());
   }
 
-  public int getLinesPerMemorySort() {
-    return linesPerMemorySort;
+  /**
+   * Creates a new directory for the chunk files of a single sort in the sort temp dir or next to the first input, so
+   * that concurrent sorts of the same input do not share chunk files. Without inputs it is created like
+   * {@link #createSortDir()}.
+   */
+  File createSortDir(List<File> inputs) throws IOException {
+    if (inputs.isEmpty()) {
+      return createSortDir();
+    }
+    File parent =
+        sortTempDir != null ? sortTempDir : inputs.get(0).getAbsoluteFile().getParentFile();
+    return Files.createTempDirectory(parent.toPath(), "sort-").toFile();
   }
 
   /**
-   * Merges a list of intermediary sort chunk files into a single sorted file. On completion, the intermediary sort
-   * chunk files are deleted.
-   *
-   * @param sortFiles sort chunk files to merge
-   * @param sortedFileWriter writer to merge to. Can already be open and contain data
-   * @param lineComparator To use when determining the order (reuse the one that was used to sort the individual
-   *        files)
+   * @return true if the sort input or output is gzip or zip compressed, judged by its name ending in .gz or .zip
    */
-  public void mergeSortedFiles(
-      List<File> sortFiles, Writer sortedFileWriter, Comparator<String> lineComparator)
-      throws IOException {
-    LinkedList<Pair<String, BufferedReader>> partReaders = new LinkedList<>();
+  static boolean isCompressedSortFile(File file) {
+    return isGzipSortFile(file) || file.getName().toLowerCase().endsWith(".zip");
+  }
+
+  private static boolean isGzipSortFile(File file) {
+    return file.getName().toLowerCase().endsWith(".gz");
+  }
+
+  /**
+   * @throws IllegalArgumentException if the sorted file is a .zip file, which is only supported as a sort input
+   */
+  private static void checkSortOutput(File sorted) {
+    if (isCompressedSortFile(sorted) && !isGzipSortFile(sorted)) {
+      throw new IllegalArgumentException("Cannot write a sorted zip archive " + sorted);
+    }
+  }
+
+  /**
+   * Opens an input of a sort, decompressing it while it is read if it is a .gz file or a .zip archive holding a single
+   * file.
+   */
+  static InputStream openSortInput(File input) throws IOException {
+    InputStream in = new FileInputStream(input);
     try {
-      for (File f : sortFiles) {
-        // Use UTF-8 sort order.
-        BufferedReader partReader =
-            new BufferedReader(
-                new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8));
-        // Load first lines
-        String partLine = partReader.readLine();
-        if (partLine != null) {
-          partReaders.add(Pair.of(partLine, partReader));
-        }
+      if (isGzipSortFile(input)) {
+        return new GZIPInputStream(in, SpillCodec.BUFFER_SIZE);
+      } else if (isCompressedSortFile(input)) {
+        return new SingleEntryZipInputStream(in, input);
       }
-      // Sort the first lines
-      Collections.sort(partReaders, (Comparator.comparing(Pair::getLeft, lineComparator)));
-
-      // Start with the first reader
-      while (partReaders.size() > 1) {
-        BufferedReader currentBuffer = partReaders.get(0).getRight();
-        String currentLine = partReaders.get(0).getLeft();
-        String nextFilesFirstLine = partReaders.get(1).getLeft();
+      return in;
+    } catch (IOException | RuntimeException e) {
+      in.close();
+      throw e;
+    }
+  }
 
-        // Read from it, until its value is greater than the second reader.
-        while (currentLine != null
-            && lineComparator.compare(currentLine, nextFilesFirstLine) <= 0) {
-          sortedFileWriter.write(currentLine);
-          sortedFileWriter.write('\n');
+  /**
+   * Opens the output of a sort, gzip compressing it while it is written if it is a .gz file.
+   *
+   * @param append true to append to the file, which adds another gzip member to a compressed file
+   * @throws IllegalArgumentException if the output is a .zip file
+   */
+  static OutputStream openSortOutput(File sorted, boolean append) throws IOException {
+    checkSortOutput(sorted);
+    OutputStream out = new FileOutputStream(sorted, append);
+    if (isGzipSortFile(sorted)) {
+      return new BufferedOutputStream(
+          new GZIPOutputStream(out, SpillCodec.BUFFER_SIZE), SpillCodec.BUFFER_SIZE);
+    }
+    return new BufferedOutputStream(out, SpillCodec.BUFFER_SIZE);
+  }
 
-          currentLine = currentBuffer.readLine();
-        }
-        partReaders.remove(0);
+  /**
+   * Reads the single file of a zip archive, failing if the archive holds more than one file.
+   */
+  private static class SingleEntryZipInputStream extends FilterInputStream {
+    private final File zipFile;
+
+    private SingleEntryZipInputStream(InputStream in, File zipFile) throws IOException {
+      super(new ZipInputStream(new BufferedInputStream(in, SpillCodec.BUFFER_SIZE)));
+      this.zipFile = zipFile;
+      if (nextFileEntry() == null) {
+        throw new IOException("Zip archive " + zipFile + " holds no file to sort");
+      }
+    }
 
-        if (currentLine == null) {
-          // If it's completed, close and remove it.
-          currentBuffer.close();
-        } else {
-          // Otherwise, insert it into the list, maintaining the order
-          Pair<String, BufferedReader> currentReaderPair = Pair.of(currentLine, currentBuffer);
-
-          // Start at 1, as we are always larger than the first (was the second) entry
-          for (int i = 1; i <= partReaders.size(); i++) {
-            // If we get here, it goes at the end of the list.
-            if (i == partReaders.size()) {
-              partReaders.add(i, currentReaderPair);
-              break;
-            }
+    private ZipEntry nextFileEntry() throws IOException {
+      ZipEntry entry = ((ZipInputStream) in).getNextEntry();
+      while (entry != null && entry.isDirectory()) {
+        entry = ((ZipInputStream) in).getNextEntry();
+      }
+      return entry;
+    }
 
-            if (lineComparator.compare(partReaders.get(i).getLeft(), currentLine) >= 0) {
-              partReaders.add(i, currentReaderPair);
-              break;
-            }
-          }
-        }
-        // mergeFileStatus("Loop "+currentLine, partReaders);
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b < 0) {
+        checkLastEntry();
       }
+      return b;
+    }
 
-      // Read the remainder of the final buffer
-      // mergeFileStatus("Final", partReaders);
-      if (partReaders.size() > 0) {
-        BufferedReader currentBuffer = partReaders.get(0).getRight();
-        String current = partReaders.get(0).getLeft();
-        while (current != null) {
-          sortedFileWriter.write(current);
-          sortedFileWriter.write('\n');
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, len);
+      if (read < 0) {
+        checkLastEntry();
+      }
+      return read;
+    }
 
-          current = currentBuffer.readLine();
-        }
-        currentBuffer.close();
+    private void checkLastEntry() throws IOException {
+      if (nextFileEntry() != null) {
+        throw new IOException("Zip archive " + zipFile + " holds more than one file");
       }
-    } finally {
-      for (Pair<String, BufferedReader> pair : partReaders) {
+    }
+  }
+
+  /**
+   * Creates a new directory for the chunk files of a sort without input files, in the sort temp dir or the default
+   * temporary directory.
+   */
+  File createSortDir() throws IOException {
+    return sortTempDir != null
+        ? Files.createTempDirectory(sortTempDir.toPath(), "gbif-sort").toFile()
+        : createTempDir("gbif-sort", ".tmp");
+  }
+
+  /**
+   * Waits until no other sort writes to the sorted file.
+   */
+  private static void lockSortTarget(File sorted) throws InterruptedIOException {
+    File target = sorted.getAbsoluteFile();
+    synchronized (sortTargets) {
+      while (!sortTargets.add(target)) {
         try {
-          pair.getRight().close();
-        } catch (RuntimeException e) {
+          sortTargets.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting to sort into " + target);
         }
       }
-      // I assume it periodically flushes anyway, so only need to do once at end...
-      sortedFileWriter.flush();
-      sortedFileWriter.close();
-      // delete (intermediary) sort chunk files, only the sorted file remains
-      for (File f : sortFiles) {
-        f.delete();
-      }
     }
   }
 
-  // Just for debugging
-  private void mergeFileStatus(String note, List<Pair<String, BufferedReader>> partReaders) {
-    LOG.trace(note);
-    for (int i = 0; i < partReaders.size(); i++) {
-      LOG.trace(i + ": " + partReaders.get(i).getLeft());
+  private static void unlockSortTarget(File sorted) {
+    synchronized (sortTargets) {
+      sortTargets.remove(sorted.getAbsoluteFile());
+      sortTargets.notifyAll();
     }
-    LOG.trace("-");
+  }
+
+  private static boolean ignore(String line) {
+    return StringUtils.trimToNull(line) == null || line.startsWith("#");
   }
 
   /**
-   * Sorts the input file into the output file using the supplied delimited line parameters.
-   *
-   * This method is not reliable when the sort field may contain Unicode codepoints outside the Basic Multilingual Plane,
-   * i.e. above \uFFFF. In that case, the sort order differs from Java's String sort order.  This should not be a problem
-   * for most usage; the Supplementary Multilingual Planes contain ancient scripts, emojis, arrows and so on.
-   *
-   * @param input To sort
-   * @param sorted The sorted version of the input excluding ignored header lines (see ignoreHeaderLines)
-   * @param column the column that keeps the values to sort on
-   * @param columnDelimiter the delimiter that separates columns in a row
-   * @param enclosedBy optional column enclosing character, e.g. a double quote for CSVs
-   * @param newlineDelimiter the chars used for new lines, usually \n, \n\r or \r
-   * @param ignoreHeaderLines number of beginning lines to ignore, e.g. headers
+   * @deprecated use {@link #getLinesPerSortChunk()}
    */
-  public void sort(
-      File input,
-      File sorted,
-      String encoding,
-      int column,
-      String columnDelimiter,
-      Character enclosedBy,
-      String newlineDelimiter,
-      int ignoreHeaderLines)
-      throws IOException {
-    sort(
-        Collections.singletonList(input),
-        sorted,
-        encoding,
-        column,
-        columnDelimiter,
-        enclosedBy,
-        newlineDelimiter,
-        ignoreHeaderLines);
+  @Deprecated
+  public int getLinesPerMemorySort() {
+    return getLinesPerSortChunk();
+  }
+
+  public int getLinesPerSortChunk() {
+    return linesPerSortChunk == null ? defaultLinesPerMemorySort : linesPerSortChunk;
   }
 
   /**
-   * Sorts the input file into the output file using the supplied delimited line parameters.
-   *
-   * This method is not reliable when the sort field may contain Unicode codepoints outside the Basic Multilingual Plane,
-   * i.e. above \uFFFF. In that case, the sort order differs from Java's String sort order.  This should not be a problem
-   * for most usage; the Supplementary Multilingual Planes contain ancient scripts, emojis, arrows and so on.
-   *
-   * @param inputs To sort
-   * @param sorted The sorted version of the input excluding ignored header lines (see ignoreHeaderLines)
-   * @param column the column that keeps the values to sort on
-   * @param columnDelimiter the delimiter that separates columns in a row
-   * @param enclosedBy optional column enclosing character, e.g. a double quote for CSVs
-   * @param newlineDelimiter the chars used for new lines, usually \n, \n\r or \r
-   * @param ignoreHeaderLines number of beginning lines to ignore, e.g. headers
+   * @param linesPerSortChunk are the number of lines that should be sorted in memory by this instance, determining
+   *        the number of file segments to be sorted when doing a Java file sort. Defaults to 100000, if you have
+   *        memory available a higher value increases performance. Not used if a memory budget is set.
    */
-  public void sort(
-      List<File> inputs,
-      File sorted,
-      String encoding,
-      int column,
-      String columnDelimiter,
-      Character enclosedBy,
-      String newlineDelimiter,
-      int ignoreHeaderLines)
-      throws IOException {
-    Comparator<String> lineComparator;
-    if (enclosedBy == null) {
-      lineComparator = new LineComparator(column, columnDelimiter);
-    } else {
-      lineComparator = new LineComparator(column, columnDelimiter, enclosedBy);
+  public void setLinesPerSortChunk(int linesPerSortChunk) {
+    if (linesPerSortChunk < 1) {
+      throw new IllegalArgumentException("At least one line per sort chunk is required");
     }
-    sort(
-        inputs,
-        sorted,
-        encoding,
-        column,
-        columnDelimiter,
-        enclosedBy,
-        newlineDelimiter,
-        ignoreHeaderLines,
-        lineComparator,
-        false);
+    this.linesPerSortChunk = linesPerSortChunk;
+  }
+
+  public long getSortMemoryBudget() {
+    return sortMemoryBudget;
   }
 
   /**
-   * Sorts the input file into the output file using the supplied delimited line parameters.
-   *
-   * This method is not reliable when the sort field may contain Unicode codepoints outside the Basic Multilingual Plane,
-   * i.e. above \uFFFF. In that case, the sort order differs from Java's String sort order.  This should not be a problem
-   * for most usage; the Supplementary Multilingual Planes contain ancient scripts, emojis, arrows and so on.
-   *
-   * This method is globally synchronized, in case multiple sorts are attempted to the same file simultaneously.
-   * This could be improved to allow synchronizing against the destination file, rather than for all sorts.
+   * Sets the heap in bytes the Java sort may use for buffering lines, e.g. {@link #defaultSortMemoryBudget()}.
+   * <br>
+   * With a budget the chunks are not cut by line count, but when the estimated size of the buffered lines reaches the
+   * budget. With parallel sorting the budget is shared by all chunks in flight. GNU sort gets the budget as its
+   * main memory buffer size.
    *
-   * @param input To sort
-   * @param sorted The sorted version of the input excluding ignored header lines (see ignoreHeaderLines)
-   * @param column the column that keeps the values to sort on
-   * @param columnDelimiter the delimiter that separates columns in a row
-   * @param enclosedBy optional column enclosing character, e.g. a double quote for CSVs
-   * @param newlineDelimiter the chars used for new lines, usually \n, \r\n or \r
-   * @param ignoreHeaderLines number of beginning lines to ignore, e.g. headers
-   * @param lineComparator used to sort the output
-   * @param ignoreCase ignore case order, this parameter couldn't have any effect if the LineComparator is used
+   * @param sortMemoryBudget the budget in bytes, 0 to cut chunks by line count (default)
    */
-  public void sort(
-      File input,
-      File sorted,
-      String encoding,
-      int column,
-      String columnDelimiter,
-      Character enclosedBy,
-      String newlineDelimiter,
-      int ignoreHeaderLines,
-      Comparator<String> lineComparator,
-      boolean ignoreCase)
-      throws IOException {
-    sort(
-        Collections.singletonList(input),
-        sorted,
-        encoding,
-        column,
-        columnDelimiter,
-        enclosedBy,
-        newlineDelimiter,
-        ignoreHeaderLines,
-        lineComparator,
-        ignoreCase);
+  public void setSortMemoryBudget(long sortMemoryBudget) {
+    if (sortMemoryBudget < 0) {
+      throw new IllegalArgumentException("The memory budget cannot be negative");
+    }
+    this.sortMemoryBudget = sortMemoryBudget;
+  }
+
+  public SpillCodec getSpillCodec() {
+    return spillCodec;
   }
 
   /**
-   * Sorts the input file into the output file using the supplied delimited line parameters.
-   *
-   * This method is not reliable when the sort field may contain Unicode codepoints outside the Basic Multilingual Plane,
-   * i.e. above \uFFFF. In that case, the sort order differs from Java's String sort order.  This should not be a problem
-   * for most usage; the Supplementary Multilingual Planes contain ancient scripts, emojis, arrows and so on.
-   *
-   * This method is globally synchronized, in case multiple sorts are attempted to the same file simultaneously.
-   * This could be improved to allow synchronizing against the destination file, rather than for all sorts.
-   *
-   * @param inputs To sort
-   * @param sorted The sorted version of the input excluding ignored header lines (see ignoreHeaderLines)
-   * @param column the column that keeps the values to sort on
-   * @param columnDelimiter the delimiter that separates columns in a row
-   * @param enclosedBy optional column enclosing character, e.g. a double quote for CSVs
-   * @param newlineDelimiter the chars used for new lines, usually \n, \r\n or \r
-   * @param ignoreHeaderLines number of beginning lines to ignore, e.g. headers
-   * @param lineComparator used to sort the output
-   * @param ignoreCase ignore case order, this parameter couldn't have any effect if the LineComparator is used
+   * @param spillCodec the format of the intermediary chunk files written by the Java sort. Defaults to
+   *        {@link SpillCodec#TEXT}, {@link SpillCodec#DEFLATE} reduces the temporary I/O on slow disks.
    */
-  public void sort(
-      List<File> inputs,
-      File sorted,
-      String encoding,
-      int column,
-      String columnDelimiter,
-      Character enclosedBy,
-      String newlineDelimiter,
-      int ignoreHeaderLines,
-      Comparator<String> lineComparator,
-      boolean ignoreCase)
-      throws IOException {
-    LOG.debug(
-        "Sorting file(s) {} as new file {}",
-        inputs.stream().map(File::getAbsolutePath).toArray(),
-        sorted.getAbsolutePath());
-    if (encoding == null) {
-      LOG.warn("No encoding specified, assume UTF-8");
-      encoding = FileUtils.UTF8;
-    }
-    synchronized (sortLock) {
-      if (sorted.exists()) {
-        // Delete a file, which will allow processes with it open to continue reading it.
-        // The GNU sort truncates and appends, which would mean a partial read otherwise.
-        LOG.warn("Deleting existed sorted file {}", sorted.getAbsoluteFile());
-        sorted.delete();
-      }
-      // if the id is in the first column, first try sorting via shell as its the fastest we can get
-      if (!sortInGnu(
-          inputs,
-          sorted,
-          encoding,
-          ignoreHeaderLines,
-          column,
-          columnDelimiter,
-          enclosedBy,
-          newlineDelimiter,
-          ignoreCase)) {
-        LOG.debug("No GNU sort available, using native Java sorting");
-        sortInJava(inputs, sorted, encoding, lineComparator, ignoreHeaderLines);
-      }
-    }
+  public void setSpillCodec(SpillCodec spillCodec) {
+    this.spillCodec = Objects.requireNonNull(spillCodec);
+  }
+
+  public boolean isExtractSortKeys() {
+    return extractSortKeys;
   }
 
   /**
-   * Sorts the input file into the output file using the supplied lineComparator.
-   *
-   * @param input To sort
-   * @param sorted The sorted version of the input excluding ignored header lines (see ignoreHeaderLines)
-   * @param lineComparator To use during comparison
-   * @param ignoreHeaderLines number of beginning lines to ignore, e.g. headers
+   * @param extractSortKeys if true the Java sort extracts the sort column of a {@link LineComparator} once per line
+   *        instead of tokenizing both lines on every comparison. Uses more memory per line for the keys.
    */
-  public void sortInJava(
-      File input,
-      File sorted,
-      String encoding,
+  public void setExtractSortKeys(boolean extractSortKeys) {
+    this.extractSortKeys = extractSortKeys;
+  }
+
+  public DistinctMode getDistinctMode() {
+    return distinctMode;
+  }
+
+  /**
+   * @param distinctMode which duplicate lines the sort drops while merging the sorted chunks. Defaults to
+   *        {@link DistinctMode#NONE}, GNU sort is given the equivalent -u option.
+   */
+  public void setDistinctMode(DistinctMode distinctMode) {
+    this.distinctMode = Objects.requireNonNull(distinctMode);
+  }
+
+  public BinaryOperator<String> getMergeFunction() {
+    return mergeFunction;
+  }
+
+  /**
+   * Sets a function folding all lines with an equal sort key into a single output line while merging the sorted
+   * chunks, which gives a group by in the same pass as the sort. It is called with the line folded so far and the next
+   * line of the group, in input order. The folded line must keep the sort key of the group.
+   * <br>
+   * The distinct mode is ignored if a merge function is set, and GNU sort is not used.
+   *
+   * @param mergeFunction the function to fold lines with equal keys, or null to keep all lines (default)
+   */
+  public void setMergeFunction(BinaryOperator<String> mergeFunction) {
+    this.mergeFunction = mergeFunction;
+  }
+
+  public int getMaxMergeFanIn() {
+    return maxMergeFanIn;
+  }
+
+  /**
+   * @param maxMergeFanIn the maximum number of chunk files merged at once, bounding the number of open files. If a
+   *        sort produces more chunks, intermediate merge passes combine groups of chunks first, in parallel with
+   *        more than one sort thread. Defaults to 256.
+   */
+  public void setMaxMergeFanIn(int maxMergeFanIn) {
+    if (maxMergeFanIn < 2) {
+      throw new IllegalArgumentException("At least two chunks must be merged at once");
+    }
+    this.maxMergeFanIn = maxMergeFanIn;
+  }
+
+  public int getMergePartitions() {
+    return mergePartitions;
+  }
+
+  /**
+   * @param mergePartitions the number of key ranges the Java sort merges in parallel, each on its own thread into its
+   *        own part file. The range boundaries are sampled from the keys of all records while they are read, then
+   *        every sorted chunk is rewritten as one file per range. The parts are joined into the sorted file, which is
+   *        the same as with a single merge.
+   *        Defaults to 1, a single merge.
+   */
+  public void setMergePartitions(int mergePartitions) {
+    if (mergePartitions < 1) {
+      throw new IllegalArgumentException("At least one merge partition is required");
+    }
+    this.mergePartitions = mergePartitions;
+  }
+
+  public int getSortThreads() {
+    return sortThreads;
+  }
+
+  /**
+   * @param sortThreads number of threads used by the Java sort to sort and write chunks while the input is still being
+   *        read. Defaults to 1, which sorts every chunk on the calling thread. With more than one thread the line
+   *        comparator must be thread safe.
+   */
+  public void setSortThreads(int sortThreads) {
+    if (sortThreads < 1) {
+      throw new IllegalArgumentException("At least one sort thread is required");
+    }
+    this.sortThreads = sortThreads;
+  }
+
+  public int getMaxChunksInFlight() {
+    return maxChunksInFlight > 0 ? maxChunksInFlight : sortThreads;
+  }
+
+  /**
+   * @param maxChunksInFlight the maximum number of chunks waiting to be sorted or being sorted in parallel, in addition
+   *        to the one being read. Bounds the memory used by a parallel Java sort to
+   *        (maxChunksInFlight + 1) * linesPerSortChunk lines, or to the memory budget if one is set. Defaults to the
+   *        number of sort threads.
+   */
+  public void setMaxChunksInFlight(int maxChunksInFlight) {
+    this.maxChunksInFlight = maxChunksInFlight;
+  }
+
+  /**
+   * @param sortExecutor executor used to sort chunks in parallel, e.g. {@link java.util.concurrent.ForkJoinPool#commonPool()}.
+   *        It is not shut down by this class. If null (default) a pool of sortThreads threads is created for each
+   *        sort when sortThreads is larger than 1.
+   */
+  public void setSortExecutor(ExecutorService sortExecutor) {
+    this.sortExecutor = sortExecutor;
+  }
+
+  public File getSortTempDir() {
+    return sortTempDir;
+  }
+
+  /**
+   * @param sortTempDir directory for the temporary files of sorts, e.g. on a fast local disk. Used by GNU sort as -T
+   *        and by the Java sort for its chunk files. If null (default) GNU sort uses java.io.tmpdir and the Java sort
+   *        writes its chunks next to the first input.
+   */
+  public void setSortTempDir(File sortTempDir) {
+    this.sortTempDir = sortTempDir;
+  }
+
+  public String getGnuSortCompressProgram() {
+    return gnuSortCompressProgram;
+  }
+
+  /**
+   * @param gnuSortCompressProgram program GNU sort compresses its temporary files with, e.g. "gzip" or "zstd", passed
+   *        as --compress-program. Null (default) for no compression.
+   */
+  public void setGnuSortCompressProgram(String gnuSortCompressProgram) {
+    this.gnuSortCompressProgram = gnuSortCompressProgram;
+  }
+
+  public boolean isGnuSortKeyPrefix() {
+    return gnuSortKeyPrefix;
+  }
+
+  /**
+   * @param gnuSortKeyPrefix if true GNU sort also sorts files it cannot read the sort columns of, e.g. quoted files or
+   *        sorts on another than the first column, by prefixing every line with its extracted key. Faster than the
+   *        Java sort for large files, but it writes the data twice more. Defaults to false.
+   */
+  public void setGnuSortKeyPrefix(boolean gnuSortKeyPrefix) {
+    this.gnuSortKeyPrefix = gnuSortKeyPrefix;
+  }
+
+  public int getSortIndexBlockSize() {
+    return sortIndexBlockSize;
+  }
+
+  /**
+   * @param sortIndexBlockSize if positive, a {@link SortedFileIndex} with an entry about every sortIndexBlockSize
+   *        bytes, e.g. 64 KB, is written next to every sorted file that is sorted by a single column in natural order.
+   *        Defaults to 0, no index.
+   */
+  public void setSortIndexBlockSize(int sortIndexBlockSize) {
+    this.sortIndexBlockSize = sortIndexBlockSize;
+  }
+
+  public boolean isDetectPresorted() {
+    return detectPresorted;
+  }
+
+  /**
+   * @param detectPresorted if true (default) a single \n terminated input is checked to be in order before it is
+   *        sorted, and its lines are written to the sorted file if it is. The check stops at the first line out of
+   *        order, and is skipped if duplicates are dropped or folded, or if an engine other than the Java sort would
+   *        sort the input.
+   */
+  public void setDetectPresorted(boolean detectPresorted) {
+    this.detectPresorted = detectPresorted;
+  }
+
+  public File getSortCheckpointDir() {
+    return sortCheckpointDir;
+  }
+
+  /**
+   * @param sortCheckpointDir if set, the Java sort of files writes its chunks into this directory together with a
+   *        manifest of the completed chunks and the input offset reached, and keeps them if the sort fails. The sort
+   *        can then be continued with {@link #resumeSortInJava(List, File, String, Comparator, int)}. The directory
+   *        must be used by a single sort only. It must be empty or hold a previous checkpoint when the sort starts,
+   *        which is then deleted, and it is deleted when the sort succeeds. Only inputs in an encoding with a single
+   *        byte newline, such as UTF-8, are checkpointed, and the merge is not partitioned. Internal sorts, e.g. of
+   *        the deltas of {@link #mergeDelta}, are not checkpointed.
+   */
+  public void setSortCheckpointDir(File sortCheckpointDir) {
+    this.sortCheckpointDir = sortCheckpointDir;
+  }
+
+  /**
+   * @return the engines sorting files, in the order they are tried
+   */
+  public List<SortEngine> getSortEngines() {
+    return sortEngines;
+  }
+
+  /**
+   * @param sortEngines the engines sorting files, in the order they are tried. Defaults to GNU sort and the Java sort,
+   *        add a {@link ByteSortEngine} to sort by the raw bytes of the lines instead. The first engine that can sort a
+   *        request is used, and the next one if it fails.
+   */
+  public synchronized void setSortEngines(List<SortEngine> sortEngines) {
+    if (sortEngines.isEmpty()) {
+      throw new IllegalArgumentException("At least one sort engine is required");
+    }
+    this.sortEngines = List.copyOf(sortEngines);
+  }
+
+  /**
+   * Adds an engine to try before the current ones.
+   */
+  public synchronized void registerSortEngine(SortEngine sortEngine) {
+    List<SortEngine> engines = new ArrayList<>(sortEngines);
+    engines.add(0, Objects.requireNonNull(sortEngine));
+    sortEngines = List.copyOf(engines);
+  }
+
+  /**
+   * Merges a list of intermediary sort chunk files into a single sorted file. On completion, the intermediary sort
+   * chunk files are deleted.
+   * <br>
+   * The merge keeps the current line of every chunk in a heap, so each output line costs O(log k) comparisons for k
+   * chunks. Equal lines are written in the order of the chunk files. Duplicates are dropped or folded according to
+   * the distinct mode and merge function of this instance.
+   *
+   * @param sortFiles sort chunk files to merge
+   * @param sortedFileWriter writer to merge to. Can already be open and contain data
+   * @param lineComparator To use when determining the order (reuse the one that was used to sort the individual
+   *        files)
+   */
+  public void mergeSortedFiles(
+      List<File> sortFiles, Writer sortedFileWriter, Comparator<String> lineComparator)
+      throws IOException {
+    mergeSortedFiles(sortFiles, SpillCodec.TEXT, false, sortedFileWriter, lineComparator, false);
+  }
+
+  /**
+   * @param keyed true if the chunks hold the extracted keys of the lines, the comparator then compares keys
+   * @param keepChunks true to keep the chunk files, only intermediate merged chunks are deleted
+   */
+  private void mergeSortedFiles(
+      List<File> sortFiles,
+      SpillCodec codec,
+      boolean keyed,
+      Writer sortedFileWriter,
+      Comparator<String> lineComparator,
+      boolean keepChunks)
+      throws IOException {
+    List<ChunkReader> partReaders = new ArrayList<>(sortFiles.size());
+    List<File> mergeFiles = sortFiles;
+    try {
+      mergeFiles =
+          reduceFanIn(
+              sortFiles,
+              (group, target) -> mergeChunks(group, codec, keyed, lineComparator, target),
+              keepChunks);
+      int bufferSize = mergeBufferSize(mergeFiles.size());
+      for (File f : mergeFiles) {
+        partReaders.add(codec.newReader(f, keyed, bufferSize));
+      }
+      try (SortedLineMerger merger =
+          new SortedLineMerger(partReaders, lineComparator, isDistinctLines())) {
+        MergedLines lines = new MergedLines(merger, lineComparator);
+        String line;
+        while ((line = lines.readLine()) != null) {
+          sortedFileWriter.write(line);
+          sortedFileWriter.write('\n');
+        }
+      }
+    } finally {
+      for (ChunkReader reader : partReaders) {
+        try {
+          reader.close();
+        } catch (IOException | RuntimeException e) {
+        }
+      }
+      // I assume it periodically flushes anyway, so only need to do once at end...
+      sortedFileWriter.flush();
+      sortedFileWriter.close();
+      // delete (intermediary) sort chunk files, only the sorted file remains
+      Set<File> keep = keepChunks ? new HashSet<>(sortFiles) : Collections.emptySet();
+      for (File f : sortFiles) {
+        if (!keep.contains(f)) {
+          f.delete();
+        }
+      }
+      for (File f : mergeFiles) {
+        if (!keep.contains(f)) {
+          f.delete();
+        }
+      }
+    }
+  }
+
+  /**
+   * Merges groups of at most maxMergeFanIn chunk files into new chunk files until no more than maxMergeFanIn remain.
+   * Groups are formed from consecutive chunks, so lines with equal keys keep the order of the chunks.
+   * <br>
+   * Merged chunks are deleted, the returned chunks are either intermediate chunks or the original ones. If a merge
+   * fails, the intermediate chunks of all passes are deleted.
+   *
+   * @param groupMerger merges a group of chunks into a new chunk
+   * @return at most maxMergeFanIn chunk files in merge order
+   */
+  List<File> reduceFanIn(List<File> sortFiles, GroupMerger groupMerger)
+      throws IOException {
+    return reduceFanIn(sortFiles, groupMerger, false);
+  }
+
+  /**
+   * @param keepChunks true to keep the given chunk files, only intermediate merged chunks are deleted
+   */
+  private List<File> reduceFanIn(List<File> sortFiles, GroupMerger groupMerger, boolean keepChunks)
+      throws IOException {
+    Set<File> keep = keepChunks ? new HashSet<>(sortFiles) : Collections.emptySet();
+    // the intermediate chunks, deleted if a later pass fails
+    List<File> created = new ArrayList<>();
+    int pass = 0;
+    try {
+      while (sortFiles.size() > maxMergeFanIn) {
+        long start = System.currentTimeMillis();
+        pass++;
+        File dir = sortFiles.get(0).getAbsoluteFile().getParentFile();
+        ExecutorService executor = newSortExecutor();
+        List<File> merged;
+        try (ChunkSorter chunkSorter =
+            new ChunkSorter(executor, executor == null ? 1 : getMaxChunksInFlight())) {
+          for (int i = 0; i < sortFiles.size(); i += maxMergeFanIn) {
+            List<File> group =
+                new ArrayList<>(sortFiles.subList(i, Math.min(i + maxMergeFanIn, sortFiles.size())));
+            if (group.size() == 1) {
+              chunkSorter.submit(() -> group.get(0));
+              continue;
+            }
+            File target = File.createTempFile("merge_" + pass + "_", ".tmp", dir);
+            created.add(target);
+            chunkSorter.submit(
+                () -> {
+                  groupMerger.merge(group, target);
+                  for (File f : group) {
+                    if (!keep.contains(f)) {
+                      f.delete();
+                    }
+                  }
+                  return target;
+                });
+          }
+          merged = chunkSorter.await();
+        } finally {
+          stopSortExecutor(executor);
+        }
+        LOG.debug(
+            "Merge pass {} combined {} chunks into {} in {} ms",
+            pass,
+            sortFiles.size(),
+            merged.size(),
+            System.currentTimeMillis() - start);
+        sortFiles = merged;
+      }
+    } catch (IOException | RuntimeException e) {
+      for (File f : created) {
+        f.delete();
+      }
+      throw e;
+    }
+    return sortFiles;
+  }
+
+  /**
+   * Merges sorted chunks into a new chunk of the same format, keeping all lines.
+   */
+  private void mergeChunks(
+      List<File> group,
+      SpillCodec codec,
+      boolean keyed,
+      Comparator<String> lineComparator,
+      File target)
+      throws IOException {
+    int bufferSize = mergeBufferSize(group.size() * getMergeParallelism());
+    List<ChunkReader> readers = new ArrayList<>(group.size());
+    try {
+      for (File f : group) {
+        readers.add(codec.newReader(f, keyed, bufferSize));
+      }
+      try (SortedLineMerger merger =
+              new SortedLineMerger(readers, lineComparator, isDistinctLines());
+          ChunkWriter writer = codec.newWriter(target, keyed)) {
+        String line;
+        while ((line = merger.readLine()) != null) {
+          if (keyed) {
+            writer.write(merger.getKey(), line);
+          } else {
+            writer.write(line);
+          }
+        }
+      }
+    } finally {
+      for (ChunkReader reader : readers) {
+        try {
+          reader.close();
+        } catch (IOException | RuntimeException e) {
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of intermediate merges run at the same time
+   */
+  int getMergeParallelism() {
+    return sortExecutor == null && sortThreads <= 1 ? 1 : getMaxChunksInFlight();
+  }
+
+  /**
+   * Sizes the read buffer of every chunk from the memory budget shared by all open chunks, defaulting to 64 KB.
+   *
+   * @param openChunks the number of chunks read at the same time
+   */
+  int mergeBufferSize(int openChunks) {
+    if (sortMemoryBudget <= 0) {
+      return SpillCodec.BUFFER_SIZE;
+    }
+    long size = sortMemoryBudget / Math.max(1, openChunks);
+    return (int) Math.max(MIN_MERGE_BUFFER_SIZE, Math.min(MAX_MERGE_BUFFER_SIZE, size));
+  }
+
+  /**
+   * Merges a group of sorted chunk files into a new one.
+   */
+  @FunctionalInterface
+  interface GroupMerger {
+    void merge(List<File> group, File target) throws IOException;
+  }
+
+  /**
+   * Reads the merged lines, dropping duplicates or folding lines with equal keys according to the distinct mode and
+   * merge function.
+   */
+  private final class MergedLines {
+    private final SortedLineMerger merger;
+    private final Comparator<String> keyComparator;
+    private final boolean grouping = mergeFunction != null || distinctMode != DistinctMode.NONE;
+    private String next;
+    private String nextKey;
+
+    private MergedLines(SortedLineMerger merger, Comparator<String> keyComparator)
+        throws IOException {
+      this.merger = merger;
+      this.keyComparator = keyComparator;
+      advance();
+    }
+
+    /**
+     * @return the next output line, or null at the end
+     */
+    private String readLine() throws IOException {
+      String group = next;
+      String groupKey = nextKey;
+      if (group == null) {
+        return null;
+      }
+      advance();
+      while (grouping && next != null && keyComparator.compare(groupKey, nextKey) == 0) {
+        if (mergeFunction != null) {
+          group = mergeFunction.apply(group, next);
+        } else if (distinctMode == DistinctMode.LINES && !group.equals(next)) {
+          break;
+        }
+        advance();
+      }
+      return group;
+    }
+
+    private void advance() throws IOException {
+      next = merger.readLine();
+      nextKey = merger.getKey();
+    }
+  }
+
+  /**
+   * @return true if lines with equal keys are ordered by the whole line to drop identical lines
+   */
+  private boolean isDistinctLines() {
+    return mergeFunction == null && distinctMode == DistinctMode.LINES;
+  }
+
+  /**
+   * Sorts the input file into the output file using the supplied delimited line parameters.
+   *
+   * This method is not reliable when the sort field may contain Unicode codepoints outside the Basic Multilingual Plane,
+   * i.e. above \uFFFF. In that case, the sort order differs from Java's String sort order.  This should not be a problem
+   * for most usage; the Supplementary Multilingual Planes contain ancient scripts, emojis, arrows and so on.
+   *
+   * @param input To sort
+   * @param sorted The sorted version of the input excluding ignored header lines (see ignoreHeaderLines)
+   * @param column the column that keeps the values to sort on
+   * @param columnDelimiter the delimiter that separates columns in a row
+   * @param enclosedBy optional column enclosing character, e.g. a double quote for CSVs
+   * @param newlineDelimiter the chars used for new lines, usually \n, \n\r or \r
+   * @param ignoreHeaderLines number of beginning lines to ignore, e.g. headers
+   */
+  public void sort(
+      File input,
+      File sorted,
+      String encoding,
+      int column,
+      String columnDelimiter,
+      Character enclosedBy,
+      String newlineDelimiter,
+      int ignoreHeaderLines)
+      throws IOException {
+    sort(
+        Collections.singletonList(input),
+        sorted,
+        encoding,
+        column,
+        columnDelimiter,
+        enclosedBy,
+        newlineDelimiter,
+        ignoreHeaderLines);
+  }
+
+  /**
+   * Sorts the input file into the output file using the supplied delimited line parameters.
+   *
+   * This method is not reliable when the sort field may contain Unicode codepoints outside the Basic Multilingual Plane,
+   * i.e. above \uFFFF. In that case, the sort order differs from Java's String sort order.  This should not be a problem
+   * for most usage; the Supplementary Multilingual Planes contain ancient scripts, emojis, arrows and so on.
+   *
+   * @param inputs To sort
+   * @param sorted The sorted version of the input excluding ignored header lines (see ignoreHeaderLines)
+   * @param column the column that keeps the values to sort on
+   * @param columnDelimiter the delimiter that separates columns in a row
+   * @param enclosedBy optional column enclosing character, e.g. a double quote for CSVs
+   * @param newlineDelimiter the chars used for new lines, usually \n, \n\r or \r
+   * @param ignoreHeaderLines number of beginning lines to ignore, e.g. headers
+   */
+  public void sort(
+      List<File> inputs,
+      File sorted,
+      String encoding,
+      int column,
+      String columnDelimiter,
+      Character enclosedBy,
+      String newlineDelimiter,
+      int ignoreHeaderLines)
+      throws IOException {
+    sort(
+        new SortRequest(
+            inputs,
+            sorted,
+            encoding,
+            null,
+            column,
+            columnDelimiter,
+            enclosedBy,
+            newlineDelimiter,
+            ignoreHeaderLines,
+            null,
+            false,
+            true));
+  }
+
+  /**
+   * Sorts the input file into the output file using the supplied delimited line parameters.
+   *
+   * This method is not reliable when the sort field may contain Unicode codepoints outside the Basic Multilingual Plane,
+   * i.e. above \uFFFF. In that case, the sort order differs from Java's String sort order.  This should not be a problem
+   * for most usage; the Supplementary Multilingual Planes contain ancient scripts, emojis, arrows and so on.
+   *
+   * Sorts into different files can run concurrently, sorts into the same file are run one after the other.
+   *
+   * @param input To sort
+   * @param sorted The sorted version of the input excluding ignored header lines (see ignoreHeaderLines)
+   * @param column the column that keeps the values to sort on
+   * @param columnDelimiter the delimiter that separates columns in a row
+   * @param enclosedBy optional column enclosing character, e.g. a double quote for CSVs
+   * @param newlineDelimiter the chars used for new lines, usually \n, \r\n or \r
+   * @param ignoreHeaderLines number of beginning lines to ignore, e.g. headers
+   * @param lineComparator used to sort the output
+   * @param ignoreCase ignore case order, this parameter couldn't have any effect if the LineComparator is used
+   */
+  public void sort(
+      File input,
+      File sorted,
+      String encoding,
+      int column,
+      String columnDelimiter,
+      Character enclosedBy,
+      String newlineDelimiter,
+      int ignoreHeaderLines,
+      Comparator<String> lineComparator,
+      boolean ignoreCase)
+      throws IOException {
+    sort(
+        Collections.singletonList(input),
+        sorted,
+        encoding,
+        column,
+        columnDelimiter,
+        enclosedBy,
+        newlineDelimiter,
+        ignoreHeaderLines,
+        lineComparator,
+        ignoreCase);
+  }
+
+  /**
+   * Sorts the input file into the output file using the supplied delimited line parameters.
+   *
+   * This method is not reliable when the sort field may contain Unicode codepoints outside the Basic Multilingual Plane,
+   * i.e. above \uFFFF. In that case, the sort order differs from Java's String sort order.  This should not be a problem
+   * for most usage; the Supplementary Multilingual Planes contain ancient scripts, emojis, arrows and so on.
+   *
+   * Sorts into different files can run concurrently, sorts into the same file are run one after the other.
+   *
+   * Inputs ending in .gz or .zip are decompressed while they are read, a zip archive must hold a single file. A sorted
+   * file ending in .gz is gzip compressed while it is written, and not indexed. A sorted file ending in .zip is rejected
+   * with an IllegalArgumentException.
+   *
+   * @param inputs To sort
+   * @param sorted The sorted version of the input excluding ignored header lines (see ignoreHeaderLines)
+   * @param column the column that keeps the values to sort on
+   * @param columnDelimiter the delimiter that separates columns in a row
+   * @param enclosedBy optional column enclosing character, e.g. a double quote for CSVs
+   * @param newlineDelimiter the chars used for new lines, usually \n, \r\n or \r
+   * @param ignoreHeaderLines number of beginning lines to ignore, e.g. headers
+   * @param lineComparator used to sort the output
+   * @param ignoreCase ignore case order, this parameter couldn't have any effect if the LineComparator is used
+   */
+  public void sort(
+      List<File> inputs,
+      File sorted,
+      String encoding,
+      int column,
+      String columnDelimiter,
+      Character enclosedBy,
+      String newlineDelimiter,
+      int ignoreHeaderLines,
+      Comparator<String> lineComparator,
+      boolean ignoreCase)
+      throws IOException {
+    sort(
+        new SortRequest(
+            inputs,
+            sorted,
+            encoding,
+            null,
+            column,
+            columnDelimiter,
+            enclosedBy,
+            newlineDelimiter,
+            ignoreHeaderLines,
+            lineComparator,
+            ignoreCase,
+            false));
+  }
+
+  /**
+   * Sorts the input file into the output file by the columns of a sort key.
+   *
+   * @param input To sort
+   * @param sorted The sorted version of the input excluding ignored header lines (see ignoreHeaderLines)
+   * @param sortKey the columns to sort on
+   * @param columnDelimiter the delimiter that separates columns in a row
+   * @param enclosedBy optional column enclosing character, e.g. a double quote for CSVs
+   * @param newlineDelimiter the chars used for new lines, usually \n, \r\n or \r
+   * @param ignoreHeaderLines number of beginning lines to ignore, e.g. headers
+   */
+  public void sort(
+      File input,
+      File sorted,
+      String encoding,
+      SortKey sortKey,
+      String columnDelimiter,
+      Character enclosedBy,
+      String newlineDelimiter,
+      int ignoreHeaderLines)
+      throws IOException {
+    sort(
+        Collections.singletonList(input),
+        sorted,
+        encoding,
+        sortKey,
+        columnDelimiter,
+        enclosedBy,
+        newlineDelimiter,
+        ignoreHeaderLines);
+  }
+
+  /**
+   * Sorts the input files into the output file by the columns of a sort key.
+   * <br>
+   * GNU sort is used with the equivalent key arguments if possible, see {@link SortKey}. Otherwise the Java sort
+   * extracts the key of every line once and sorts by the extracted keys.
+   *
+   * @param inputs To sort
+   * @param sorted The sorted version of the input excluding ignored header lines (see ignoreHeaderLines)
+   * @param sortKey the columns to sort on
+   * @param columnDelimiter the delimiter that separates columns in a row
+   * @param enclosedBy optional column enclosing character, e.g. a double quote for CSVs
+   * @param newlineDelimiter the chars used for new lines, usually \n, \r\n or \r
+   * @param ignoreHeaderLines number of beginning lines to ignore, e.g. headers
+   */
+  public void sort(
+      List<File> inputs,
+      File sorted,
+      String encoding,
+      SortKey sortKey,
+      String columnDelimiter,
+      Character enclosedBy,
+      String newlineDelimiter,
+      int ignoreHeaderLines)
+      throws IOException {
+    sort(
+        new SortRequest(
+            inputs,
+            sorted,
+            encoding,
+            sortKey,
+            0,
+            columnDelimiter,
+            enclosedBy,
+            newlineDelimiter,
+            ignoreHeaderLines,
+            null,
+            false,
+            true));
+  }
+
+  /**
+   * Writes the first k lines of the input file in the order of the line comparator, without sorting the whole file.
+   *
+   * @see #sortTopK(List, File, String, Comparator, int, int)
+   */
+  public void sortTopK(
+      File input,
+      File sorted,
+      String encoding,
+      Comparator<String> lineComparator,
+      int ignoreHeaderLines,
+      int k)
+      throws IOException {
+    sortTopK(
+        Collections.singletonList(input), sorted, encoding, lineComparator, ignoreHeaderLines, k);
+  }
+
+  /**
+   * Writes the first k lines of the input files in the order of the line comparator, without sorting the whole files.
+   * Use a reversed comparator for the last k lines.
+   * <br>
+   * The lines are streamed through a bounded heap holding the best k lines seen so far, so this takes O(n log k) time
+   * and memory for k lines only, nothing is written to temporary files. Lines with equal keys keep their input order.
+   * The distinct mode and merge function of this instance are not applied.
+   *
+   * @param inputs To sort
+   * @param sorted The first k lines in sorted order, after the header lines of the first input
+   * @param lineComparator To use during comparison
+   * @param ignoreHeaderLines number of beginning lines to ignore, e.g. headers
+   * @param k the number of lines to keep
+   */
+  public void sortTopK(
+      List<File> inputs,
+      File sorted,
+      String encoding,
+      Comparator<String> lineComparator,
+      int ignoreHeaderLines,
+      int k)
+      throws IOException {
+    if (k < 0) {
+      throw new IllegalArgumentException("k cannot be negative");
+    }
+    if (encoding == null) {
+      LOG.warn("No encoding specified, assume UTF-8");
+      encoding = FileUtils.UTF8;
+    }
+    LOG.debug("Sorting the top {} lines of file(s) {}", k, inputs);
+    long start = System.currentTimeMillis();
+    // the heap top is the worst line kept, lines read later lose ties
+    Comparator<TopLine> order =
+        Comparator.<TopLine, String>comparing(l -> l.line, lineComparator)
+            .thenComparingLong(l -> l.index);
+    // grows with the lines, k may be far larger than the input
+    PriorityQueue<TopLine> heap =
+        new PriorityQueue<>(Math.max(1, Math.min(k, 1024)), order.reversed());
+    List<String> headerLines = new ArrayList<>();
+    long index = 0;
+    for (File input : inputs) {
+      try (BufferedReader reader =
+          new BufferedReader(new InputStreamReader(openSortInput(input), encoding))) {
+        int skipHeaderLines = ignoreHeaderLines;
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (skipHeaderLines > 0) {
+            // Only add the header lines for the first file
+            if (headerLines.size() < ignoreHeaderLines) {
+              headerLines.add(line);
+            }
+            skipHeaderLines--;
+          } else if (heap.size() < k) {
+            heap.add(new TopLine(line, index++));
+          } else if (k > 0 && lineComparator.compare(line, heap.peek().line) < 0) {
+            heap.poll();
+            heap.add(new TopLine(line, index++));
+          } else {
+            index++;
+          }
+        }
+      }
+    }
+    List<TopLine> top = new ArrayList<>(heap);
+    top.sort(order);
+
+    lockSortTarget(sorted);
+    try (Writer writer =
+        new BufferedWriter(new OutputStreamWriter(openSortOutput(sorted, false), encoding))) {
+      for (String header : headerLines) {
+        writer.write(header);
+        writer.write('\n');
+      }
+      for (TopLine l : top) {
+        writer.write(l.line);
+        writer.write('\n');
+      }
+    } finally {
+      unlockSortTarget(sorted);
+    }
+    LOG.debug(
+        "Sorted the top {} of {} lines in msec[{}]", top.size(), index, System.currentTimeMillis() - start);
+  }
+
+  private static final class TopLine {
+    private final String line;
+    private final long index;
+
+    private TopLine(String line, long index) {
+      this.line = line;
+      this.index = index;
+    }
+  }
+
+  /**
+   * Merges unsorted delta files into an already sorted base file, without sorting the base file again.
+   * <br>
+   * Only the deltas are sorted, with the Java sort and the settings of this instance. They are then merged with the
+   * base file in a single sequential pass. The base file must be sorted in the order of the line comparator, e.g. by a
+   * previous sort with the same comparator.
+   * <br>
+   * For every sort key present in the deltas the mode decides whether the delta lines are added to the base lines or
+   * replace them. A delta line matching the optional deletion predicate removes all base lines with its key and is not
+   * written itself, other delta lines with the same key are still added. Lines with equal keys keep the order of the
+   * base file, followed by the order of the delta files.
+   *
+   * @param base the sorted base file, including its header lines
+   * @param deltas the unsorted files with lines to add, replace or delete
+   * @param merged the merged output, with the header lines of the base file
+   * @param lineComparator the comparator the base file is sorted with, lines are matched by comparing equal
+   * @param ignoreHeaderLines number of header lines in the base file and each delta file
+   * @param mode whether delta lines are added to or replace the base lines with an equal key
+   * @param isDeletion optional predicate marking delta lines that delete the base lines with their key
+   */
+  public void mergeDelta(
+      File base,
+      List<File> deltas,
+      File merged,
+      String encoding,
+      Comparator<String> lineComparator,
+      int ignoreHeaderLines,
+      DeltaMode mode,
+      Predicate<String> isDeletion)
+      throws IOException {
+    if (base.getAbsoluteFile().equals(merged.getAbsoluteFile())) {
+      throw new IllegalArgumentException("Cannot merge a delta into the base file itself");
+    }
+    checkSortOutput(merged);
+    if (encoding == null) {
+      LOG.warn("No encoding specified, assume UTF-8");
+      encoding = FileUtils.UTF8;
+    }
+    LOG.debug("Merging delta file(s) {} into sorted file {}", deltas, base);
+    long start = System.currentTimeMillis();
+    lockSortTarget(merged);
+    File sortDir = createSortDir(Collections.singletonList(base));
+    try {
+      File sortedDelta = new File(sortDir, "delta.txt");
+      // an internal sort, which must not replace a checkpoint of the caller
+      sortInJava(
+          deltas, sortedDelta, encoding, lineComparator, ignoreHeaderLines, CheckpointMode.NONE);
+      try (BufferedReader baseReader =
+              new BufferedReader(new InputStreamReader(openSortInput(base), encoding));
+          BufferedReader deltaReader =
+              new BufferedReader(
+                  new InputStreamReader(new FileInputStream(sortedDelta), encoding));
+          Writer writer =
+              new BufferedWriter(new OutputStreamWriter(openSortOutput(merged, false), encoding))) {
+        String b = baseReader.readLine();
+        for (int i = 0; i < ignoreHeaderLines && b != null; i++) {
+          writer.write(b);
+          writer.write('\n');
+          b = baseReader.readLine();
+        }
+        String d = deltaReader.readLine();
+        for (int i = 0; i < ignoreHeaderLines && d != null; i++) {
+          d = deltaReader.readLine();
+        }
+
+        List<String> deltaLines = new ArrayList<>();
+        while (b != null || d != null) {
+          int cmp = b == null ? 1 : d == null ? -1 : lineComparator.compare(b, d);
+          if (cmp < 0) {
+            writer.write(b);
+            writer.write('\n');
+            b = baseReader.readLine();
+            continue;
+          }
+          // collect the delta lines of the next key
+          String key = d;
+          boolean deleted = false;
+          deltaLines.clear();
+          while (d != null && lineComparator.compare(d, key) == 0) {
+            if (isDeletion != null && isDeletion.test(d)) {
+              deleted = true;
+            } else {
+              deltaLines.add(d);
+            }
+            d = deltaReader.readLine();
+          }
+          // keep or drop the base lines of the key
+          boolean keepBase = mode == DeltaMode.INSERT && !deleted;
+          while (cmp == 0 && b != null && lineComparator.compare(b, key) == 0) {
+            if (keepBase) {
+              writer.write(b);
+              writer.write('\n');
+            }
+            b = baseReader.readLine();
+          }
+          for (String line : deltaLines) {
+            writer.write(line);
+            writer.write('\n');
+          }
+        }
+      }
+      LOG.debug(
+          "Merged delta file(s) into sorted file in msec[{}]", System.currentTimeMillis() - start);
+    } finally {
+      deleteDirectoryRecursively(sortDir);
+      unlockSortTarget(merged);
+    }
+  }
+
+  /**
+   * Sorts with the first engine that can sort the request.
+   */
+  private void sort(SortRequest request) throws IOException {
+    File sorted = request.getSorted();
+    checkSortOutput(sorted);
+    LOG.debug(
+        "Sorting file(s) {} as new file {}",
+        request.getInputs().stream().map(File::getAbsolutePath).toArray(),
+        sorted.getAbsolutePath());
+    lockSortTarget(sorted);
+    try {
+      File index = SortedFileIndex.indexFile(sorted);
+      if (index.exists()) {
+        LOG.debug("Deleting index {} of existing sorted file", index.getAbsoluteFile());
+        index.delete();
+      }
+      if (copyPresorted(request)) {
+        writeSortIndex(request);
+        return;
+      }
+      for (SortEngine engine : sortEngines) {
+        if (sorted.exists()) {
+          // Delete a file, which will allow processes with it open to continue reading it.
+          // The GNU sort truncates and appends, which would mean a partial read otherwise.
+          LOG.warn("Deleting existed sorted file {}", sorted.getAbsoluteFile());
+          sorted.delete();
+        }
+        if (engine.canSort(request, this)) {
+          LOG.debug("Sorting with {}", engine);
+          if (engine.sort(request, this)) {
+            writeSortIndex(request);
+            return;
+          }
+          LOG.debug("Sorting with {} failed, trying the next engine", engine);
+        }
+      }
+      throw new IOException("No sort engine can sort " + request);
+    } finally {
+      unlockSortTarget(sorted);
+    }
+  }
+
+  /**
+   * Writes a single input that is already in order to the sorted file, line by line as the Java sort writes it.
+   * Only used if the Java sort would sort the request, as other engines may order lines differently.
+   *
+   * @return true if the input was in order and written
+   */
+  private boolean copyPresorted(SortRequest request) throws IOException {
+    if (!detectPresorted
+        || request.getInputs().size() != 1
+        || !"\n".equals(request.getNewlineDelimiter())
+        || request.isIgnoreCase()
+        || mergeFunction != null
+        || distinctMode != DistinctMode.NONE
+        || !(sortEngine(request) instanceof JavaSortEngine)) {
+      return false;
+    }
+    File input = request.getInputs().get(0);
+    File sorted = request.getSorted();
+    Comparator<String> lineComparator = request.getLineComparator();
+    boolean inOrder = true;
+    try (BufferedReader reader =
+            new BufferedReader(
+                new InputStreamReader(openSortInput(input), request.getEncoding()));
+        Writer writer =
+            new BufferedWriter(
+                new OutputStreamWriter(openSortOutput(sorted, false), request.getEncoding()))) {
+      String line;
+      for (int i = 0; i < request.getIgnoreHeaderLines() && (line = reader.readLine()) != null; i++) {
+        writer.write(line);
+        writer.write("\n");
+      }
+      String previous = null;
+      while ((line = reader.readLine()) != null) {
+        if (previous != null && lineComparator.compare(previous, line) > 0) {
+          inOrder = false;
+          break;
+        }
+        writer.write(line);
+        writer.write("\n");
+        previous = line;
+      }
+    }
+    if (!inOrder) {
+      sorted.delete();
+      return false;
+    }
+    LOG.debug("File {} is already sorted, copied it", input.getAbsolutePath());
+    return true;
+  }
+
+  /**
+   * @return the first engine able to sort the request, or null if there is none
+   */
+  private SortEngine sortEngine(SortRequest request) {
+    for (SortEngine engine : sortEngines) {
+      if (engine.canSort(request, this)) {
+        return engine;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Writes the index of a sorted file if enabled and the file is sorted by a single column in natural order.
+   */
+  private void writeSortIndex(SortRequest request) throws IOException {
+    if (sortIndexBlockSize <= 0) {
+      return;
+    }
+    if (request.getSortKey() != null
+        || !request.isNaturalOrder()
+        || !ByteSortEngine.isByteOrdered(request.getEncoding())
+        || isCompressedSortFile(request.getSorted())) {
+      LOG.debug("Cannot index sorted file {}", request.getSorted());
+      return;
+    }
+    SortedFileIndex.write(
+        request.getSorted(),
+        request.getEncoding(),
+        new LineComparator(
+            request.getColumn(), request.getColumnDelimiter(), request.getEnclosedBy()),
+        request.getIgnoreHeaderLines(),
+        sortIndexBlockSize);
+  }
+
+  /**
+   * Sorts the input file into the output file using the supplied lineComparator.
+   *
+   * @param input To sort
+   * @param sorted The sorted version of the input excluding ignored header lines (see ignoreHeaderLines)
+   * @param lineComparator To use during comparison
+   * @param ignoreHeaderLines number of beginning lines to ignore, e.g. headers
+   */
+  public void sortInJava(
+      File input,
+      File sorted,
+      String encoding,
       Comparator<String> lineComparator,
       int ignoreHeaderLines)
       throws IOException {
@@ -837,61 +1912,799 @@ public final class FileUtils {
   }
 
   /**
-   * Sorts the input file into the output file using the supplied lineComparator.
+   * Sorts the input file into the output file using the supplied lineComparator.
+   * <br>
+   * If sort key extraction is enabled and the comparator is a {@link LineComparator}, the sort column is extracted
+   * once per line as in {@link #sortInJava(List, File, String, Function, Comparator, int)}.
+   *
+   * @param inputs To sort
+   * @param sorted The sorted version of the input excluding ignored header lines (see ignoreHeaderLines)
+   * @param lineComparator To use during comparison
+   * @param ignoreHeaderLines number of beginning lines to ignore, e.g. headers
+   */
+  public void sortInJava(
+      List<File> inputs,
+      File sorted,
+      String encoding,
+      Comparator<String> lineComparator,
+      int ignoreHeaderLines)
+      throws IOException {
+    sortInJava(inputs, sorted, encoding, lineComparator, ignoreHeaderLines, CheckpointMode.START);
+  }
+
+  /**
+   * Continues a sort into the {@link #setSortCheckpointDir(File) checkpoint directory} that failed, keeping the
+   * chunks it completed and reading the inputs from the offset reached.
+   * <br>
+   * The inputs, header lines, spill codec and key extraction must be the same as in the failed sort, and the inputs
+   * unchanged.
+   *
+   * @throws IOException if the checkpoint directory holds no checkpoint of the same sort
+   * @see #sortInJava(List, File, String, Comparator, int)
+   */
+  public void resumeSortInJava(
+      List<File> inputs,
+      File sorted,
+      String encoding,
+      Comparator<String> lineComparator,
+      int ignoreHeaderLines)
+      throws IOException {
+    if (sortCheckpointDir == null) {
+      throw new IllegalStateException("No sort checkpoint directory set");
+    }
+    sortInJava(inputs, sorted, encoding, lineComparator, ignoreHeaderLines, CheckpointMode.RESUME);
+  }
+
+  private void sortInJava(
+      List<File> inputs,
+      File sorted,
+      String encoding,
+      Comparator<String> lineComparator,
+      int ignoreHeaderLines,
+      CheckpointMode checkpointMode)
+      throws IOException {
+    if (extractSortKeys && lineComparator instanceof LineComparator) {
+      LineComparator columnComparator = (LineComparator) lineComparator;
+      sortInJava(
+          inputs,
+          sorted,
+          encoding,
+          columnComparator::getKey,
+          columnComparator.getKeyComparator(),
+          ignoreHeaderLines,
+          checkpointMode);
+      return;
+    }
+    LOG.debug("Sorting file(s) {}", inputs);
+    long start = System.currentTimeMillis();
+
+    SortCheckpoint checkpoint =
+        openCheckpoint(inputs, encoding, spillCodec, false, ignoreHeaderLines, checkpointMode);
+    KeySample<String> keySample =
+        checkpoint == null && mergePartitions > 1 ? new KeySample<>(line -> line) : null;
+    File sortDir = checkpoint == null ? createSortDir(inputs) : sortCheckpointDir;
+    boolean success = false;
+    try {
+      List<String> headerLines = new LinkedList<>();
+      List<File> sortFiles =
+          writeSortedChunks(
+              inputs,
+              encoding,
+              ignoreHeaderLines,
+              sortDir,
+              headerLines,
+              line -> line,
+              FileUtils::estimateRetainedSize,
+              isDistinctLines()
+                  ? lineComparator.thenComparing(Comparator.naturalOrder())
+                  : lineComparator,
+              spillCodec,
+              false,
+              ChunkWriter::write,
+              keySample,
+              checkpoint);
+      mergeSortedChunks(
+          inputs,
+          sorted,
+          encoding,
+          headerLines,
+          sortFiles,
+          spillCodec,
+          false,
+          lineComparator,
+          keySample,
+          checkpoint != null,
+          start);
+      success = true;
+    } finally {
+      closeSortDir(sortDir, checkpoint, success);
+    }
+  }
+
+  /**
+   * Whether a Java sort starts or resumes a checkpoint in the {@link #setSortCheckpointDir(File) checkpoint directory}.
+   * Internal sorts are never checkpointed, they would replace the checkpoint of the caller.
+   */
+  private enum CheckpointMode {
+    NONE,
+    START,
+    RESUME
+  }
+
+  /**
+   * Starts or resumes the checkpoint of a sort, if a checkpoint directory is set.
+   *
+   * @return the checkpoint, or null if the sort is not checkpointed
+   */
+  private SortCheckpoint openCheckpoint(
+      List<File> inputs,
+      String encoding,
+      SpillCodec codec,
+      boolean keyed,
+      int ignoreHeaderLines,
+      CheckpointMode checkpointMode)
+      throws IOException {
+    if (sortCheckpointDir == null || checkpointMode == CheckpointMode.NONE) {
+      return null;
+    }
+    boolean resume = checkpointMode == CheckpointMode.RESUME;
+    if (!ByteSortEngine.isByteOrdered(encoding)) {
+      if (resume) {
+        throw new IllegalArgumentException("Cannot resume sorts of " + encoding + " encoded files");
+      }
+      LOG.warn("Cannot checkpoint sorts of {} encoded files, sorting without", encoding);
+      return null;
+    }
+    return resume
+        ? SortCheckpoint.resume(sortCheckpointDir, inputs, codec, keyed, ignoreHeaderLines)
+        : SortCheckpoint.start(sortCheckpointDir, inputs, codec, keyed, ignoreHeaderLines);
+  }
+
+  /**
+   * Deletes the chunk directory of a sort, unless it is the checkpoint of a failed sort.
+   */
+  private static void closeSortDir(File sortDir, SortCheckpoint checkpoint, boolean success)
+      throws IOException {
+    if (checkpoint == null) {
+      deleteDirectoryRecursively(sortDir);
+      return;
+    }
+    checkpoint.close();
+    if (success) {
+      deleteDirectoryRecursively(sortDir);
+    } else {
+      LOG.info("Keeping the checkpoint of the failed sort in {}", sortDir);
+    }
+  }
+
+  /**
+   * Sorts the input file into the output file by a key extracted from every line.
+   * <br>
+   * The key of a line is extracted only once when the line is read, instead of on every comparison. Chunks are sorted
+   * by their keys, and the merge of the chunks compares only the keys stored alongside the lines. Chunk files are
+   * therefore written in the {@link SpillCodec#BINARY} format if the spill codec is {@link SpillCodec#TEXT}.
+   *
+   * @param inputs To sort
+   * @param sorted The sorted version of the input excluding ignored header lines (see ignoreHeaderLines)
+   * @param keyExtractor extracts the sort key of a line, e.g. {@link LineComparator#getKey(String)}
+   * @param keyComparator compares the extracted keys, must handle null keys if the extractor returns them
+   * @param ignoreHeaderLines number of beginning lines to ignore, e.g. headers
+   */
+  public void sortInJava(
+      List<File> inputs,
+      File sorted,
+      String encoding,
+      Function<String, String> keyExtractor,
+      Comparator<String> keyComparator,
+      int ignoreHeaderLines)
+      throws IOException {
+    sortInJava(
+        inputs, sorted, encoding, keyExtractor, keyComparator, ignoreHeaderLines, CheckpointMode.START);
+  }
+
+  private void sortInJava(
+      List<File> inputs,
+      File sorted,
+      String encoding,
+      Function<String, String> keyExtractor,
+      Comparator<String> keyComparator,
+      int ignoreHeaderLines,
+      CheckpointMode checkpointMode)
+      throws IOException {
+    LOG.debug("Sorting file(s) {} by extracted keys", inputs);
+    long start = System.currentTimeMillis();
+
+    SpillCodec codec = spillCodec == SpillCodec.TEXT ? SpillCodec.BINARY : spillCodec;
+    SortCheckpoint checkpoint =
+        openCheckpoint(inputs, encoding, codec, true, ignoreHeaderLines, checkpointMode);
+    KeySample<KeyedLine> keySample =
+        checkpoint == null && mergePartitions > 1 ? new KeySample<>(KeyedLine::getKey) : null;
+    File sortDir = checkpoint == null ? createSortDir(inputs) : sortCheckpointDir;
+    boolean success = false;
+    try {
+      List<String> headerLines = new LinkedList<>();
+      List<File> sortFiles =
+          writeSortedChunks(
+              inputs,
+              encoding,
+              ignoreHeaderLines,
+              sortDir,
+              headerLines,
+              line -> new KeyedLine(keyExtractor.apply(line), line),
+              KeyedLine::estimateRetainedSize,
+              isDistinctLines()
+                  ? Comparator.comparing(KeyedLine::getKey, keyComparator)
+                      .thenComparing(KeyedLine::getLine)
+                  : Comparator.comparing(KeyedLine::getKey, keyComparator),
+              codec,
+              true,
+              (writer, record) -> writer.write(record.getKey(), record.getLine()),
+              keySample,
+              checkpoint);
+      mergeSortedChunks(
+          inputs,
+          sorted,
+          encoding,
+          headerLines,
+          sortFiles,
+          codec,
+          true,
+          keyComparator,
+          keySample,
+          checkpoint != null,
+          start);
+      success = true;
+    } finally {
+      closeSortDir(sortDir, checkpoint, success);
+    }
+  }
+
+  /**
+   * Sorts lines without reading them from or writing them to a file.
+   * <br>
+   * The lines are buffered in memory as long as they fit into a single sort chunk (see
+   * {@link #setLinesPerSortChunk(int)} and {@link #setSortMemoryBudget(long)}), and returned straight from the
+   * sorted buffer. Larger inputs are spilled as sorted chunks to a temporary directory, and the returned iterator reads
+   * the lines directly from the merge of the chunks. The distinct mode and merge function of this instance apply.
+   * Chunks are spilled in the {@link SpillCodec#BINARY} format if the spill codec is {@link SpillCodec#TEXT}, so lines
+   * containing line breaks are returned whole, the same as if they fit into memory.
+   * <br>
+   * The input is consumed before this method returns, and closed if it is {@link AutoCloseable}, also if the sort
+   * fails. The returned iterator
+   * must be closed to delete the temporary chunk files. See {@link ExternalSorter} to sort records other than lines.
+   *
+   * @param lines To sort
+   * @param lineComparator To use during comparison
+   * @return the sorted lines
+   */
+  public ClosableIterator<String> sortInJava(Iterator<String> lines, Comparator<String> lineComparator)
+      throws IOException {
+    long start = System.currentTimeMillis();
+    Comparator<String> sortComparator =
+        isDistinctLines() ? lineComparator.thenComparing(Comparator.naturalOrder()) : lineComparator;
+    // the lines are not read back from a text file, so they may contain line breaks
+    SpillCodec codec = spillCodec == SpillCodec.TEXT ? SpillCodec.BINARY : spillCodec;
+    ExecutorService executor = newSortExecutor();
+    int chunksInFlight = executor == null ? 1 : getMaxChunksInFlight();
+    long chunkBudget =
+        sortMemoryBudget > 0 ? Math.max(1, sortMemoryBudget / (chunksInFlight + 1)) : 0;
+    int chunkLines = getLinesPerSortChunk();
+    File sortDir = null;
+    List<ChunkReader> readers = new ArrayList<>();
+    boolean inputClosed = false;
+    try {
+      try (ChunkSorter chunkSorter = new ChunkSorter(executor, chunksInFlight)) {
+        List<String> linesToSort = new ArrayList<>();
+        long bufferedBytes = 0;
+        int fileCount = 0;
+        while (lines.hasNext()) {
+          String line = lines.next();
+          linesToSort.add(line);
+          boolean full;
+          if (chunkBudget > 0) {
+            bufferedBytes += estimateRetainedSize(line);
+            full = bufferedBytes >= chunkBudget;
+          } else {
+            full = linesToSort.size() == chunkLines;
+          }
+          // spill, unless it is the last chunk which is kept in memory
+          if (full && lines.hasNext()) {
+            if (sortDir == null) {
+              sortDir = createSortDir();
+            }
+            submitChunk(
+                chunkSorter,
+                new File(sortDir, "chunk_" + fileCount++ + ".txt"),
+                sortComparator,
+                linesToSort,
+                codec,
+                false,
+                ChunkWriter::write);
+            linesToSort = new ArrayList<>();
+            bufferedBytes = 0;
+          }
+        }
+        inputClosed = true;
+        if (lines instanceof AutoCloseable) {
+          ((AutoCloseable) lines).close();
+        }
+        if (sortDir != null) {
+          // spill the last chunk too, so the memory is only used by the merge
+          submitChunk(
+              chunkSorter,
+              new File(sortDir, "chunk_" + fileCount + ".txt"),
+              sortComparator,
+              linesToSort,
+              codec,
+              false,
+              ChunkWriter::write);
+          List<File> sortFiles =
+              reduceFanIn(
+                  chunkSorter.await(),
+                  (group, target) -> mergeChunks(group, codec, false, lineComparator, target));
+          int bufferSize = mergeBufferSize(sortFiles.size());
+          for (File f : sortFiles) {
+            readers.add(codec.newReader(f, false, bufferSize));
+          }
+          LOG.debug(
+              "{} sorted chunks created in {} secs",
+              readers.size(),
+              (System.currentTimeMillis() - start) / 1000);
+        } else {
+          linesToSort.sort(sortComparator);
+          readers.add(new ListChunkReader(linesToSort));
+          LOG.debug(
+              "Sorted {} lines in memory in {} ms",
+              linesToSort.size(),
+              System.currentTimeMillis() - start);
+        }
+      }
+      SortedLineMerger merger = new SortedLineMerger(readers, lineComparator, isDistinctLines());
+      return new SortedLinesIterator(new MergedLines(merger, lineComparator), merger, sortDir);
+    } catch (Exception e) {
+      if (!inputClosed && lines instanceof AutoCloseable) {
+        try {
+          ((AutoCloseable) lines).close();
+        } catch (Exception ignored) {
+        }
+      }
+      for (ChunkReader reader : readers) {
+        try {
+          reader.close();
+        } catch (IOException | RuntimeException ignored) {
+        }
+      }
+      if (sortDir != null) {
+        deleteDirectoryRecursively(sortDir);
+      }
+      if (e instanceof IOException) {
+        throw (IOException) e;
+      } else if (e instanceof RuntimeException) {
+        throw (RuntimeException) e;
+      }
+      throw new IOException("Failed to close the lines to sort", e);
+    } finally {
+      stopSortExecutor(executor);
+    }
+  }
+
+  /**
+   * The sorted lines of {@link #sortInJava(Iterator, Comparator)}, deleting the chunk files when closed.
+   */
+  private static final class SortedLinesIterator implements ClosableIterator<String> {
+    private final MergedLines lines;
+    private final SortedLineMerger merger;
+    private final File sortDir;
+    private String next;
+    private boolean closed;
+
+    private SortedLinesIterator(MergedLines lines, SortedLineMerger merger, File sortDir)
+        throws IOException {
+      this.lines = lines;
+      this.merger = merger;
+      this.sortDir = sortDir;
+      next = lines.readLine();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public String next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      String line = next;
+      try {
+        next = lines.readLine();
+      } catch (IOException e) {
+        throw new UncheckedIOException("Failed to read sorted chunks", e);
+      }
+      return line;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      next = null;
+      try {
+        merger.close();
+      } finally {
+        if (sortDir != null) {
+          deleteDirectoryRecursively(sortDir);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the lines of a sorted in memory chunk.
+   */
+  private static final class ListChunkReader implements ChunkReader {
+    private final Iterator<String> lines;
+    private String line;
+
+    private ListChunkReader(List<String> lines) {
+      this.lines = lines.iterator();
+    }
+
+    @Override
+    public String readLine() {
+      line = lines.hasNext() ? lines.next() : null;
+      return line;
+    }
+
+    @Override
+    public String getKey() {
+      return line;
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  /**
+   * Sorts the input files into the output file by a column, comparing the raw bytes of the lines.
+   * <br>
+   * Lines are never decoded: they are packed into byte arrays with an index of offsets and compared as unsigned bytes,
+   * the order GNU sort uses in the C locale. For UTF-8 this is the order of the Unicode code points, which only
+   * differs from the String order of {@link #sortInJava(List, File, String, Comparator, int)} for code points above
+   * \uFFFF. Lines with a missing or empty column are sorted last, lines with equal columns keep their input order.
+   * <br>
+   * Lines are terminated by \n, a preceding \r is dropped. Quoted columns are not supported.
    *
    * @param inputs To sort
    * @param sorted The sorted version of the input excluding ignored header lines (see ignoreHeaderLines)
-   * @param lineComparator To use during comparison
+   * @param encoding the encoding of the inputs, which must preserve the order of characters in the order of their
+   *        bytes such as UTF-8, US-ASCII or ISO-8859-1
+   * @param column the column that keeps the values to sort on
+   * @param columnDelimiter the delimiter that separates columns in a row, null to sort on the whole line
    * @param ignoreHeaderLines number of beginning lines to ignore, e.g. headers
    */
-  public void sortInJava(
+  public void sortBytesInJava(
       List<File> inputs,
       File sorted,
       String encoding,
-      Comparator<String> lineComparator,
+      int column,
+      String columnDelimiter,
       int ignoreHeaderLines)
       throws IOException {
-    LOG.debug("Sorting file(s) {}", inputs);
+    if (!ByteSortEngine.isByteOrdered(encoding)) {
+      throw new IllegalArgumentException("Cannot sort " + encoding + " encoded files by their bytes");
+    }
+    LOG.debug("Sorting file(s) {} by their bytes", inputs);
     long start = System.currentTimeMillis();
 
-    List<File> sortFiles = new LinkedList<>();
-    List<String> headerLines = new LinkedList<>();
-    for (File input : inputs) {
-      BufferedReader br =
-          new BufferedReader(new InputStreamReader(new FileInputStream(input), encoding));
-      int skipHeaderLines = ignoreHeaderLines;
-      try {
-        String line = br.readLine();
-        int fileCount = 0;
-
-        List<String> linesToSort = new LinkedList<>();
-        while (line != null) {
-          if (skipHeaderLines > 0) {
-            // Only add the header lines for the first file
-            if (headerLines.size() < ignoreHeaderLines) {
-              headerLines.add(line);
+    ByteLineSorter sorter =
+        new ByteLineSorter(
+            column, columnDelimiter == null ? null : columnDelimiter.getBytes(encoding));
+    ByteArrayOutputStream headerLines = new ByteArrayOutputStream();
+    List<File> sortFiles;
+    File sortDir = createSortDir(inputs);
+    ExecutorService executor = newSortExecutor();
+    int chunksInFlight = executor == null ? 1 : getMaxChunksInFlight();
+    long chunkBudget =
+        sortMemoryBudget > 0 ? Math.max(1, sortMemoryBudget / (chunksInFlight + 1)) : 0;
+    int chunkLines = getLinesPerSortChunk();
+    try (ChunkSorter chunkSorter = new ChunkSorter(executor, chunksInFlight)) {
+      for (int f = 0; f < inputs.size(); f++) {
+        File input = inputs.get(f);
+        try (ByteLineSorter.LineReader reader =
+            new ByteLineSorter.LineReader(openSortInput(input))) {
+          int skipHeaderLines = ignoreHeaderLines;
+          int fileCount = 0;
+          ByteLineSorter.Chunk chunk = sorter.newChunk();
+          while (reader.next()) {
+            if (skipHeaderLines > 0) {
+              // Only add the header lines for the first file
+              if (f == 0) {
+                headerLines.write(reader.line, 0, reader.length);
+                headerLines.write('\n');
+              }
+              skipHeaderLines--;
+              continue;
             }
-            skipHeaderLines--;
-          } else {
-            linesToSort.add(line);
-
-            // if buffer is full, then sort and write to file
-            if (linesToSort.size() == linesPerMemorySort) {
-              sortFiles.add(sortAndWrite(input, encoding, lineComparator, fileCount, linesToSort));
-              linesToSort = new LinkedList<>();
-              fileCount++;
+            chunk.add(reader.line, reader.length);
+            boolean full =
+                chunkBudget > 0
+                    ? chunk.estimatedSize() >= chunkBudget
+                    : chunk.size() == chunkLines;
+            if (full) {
+              submitByteChunk(
+                  chunkSorter, chunk, getSortChunkFile(sortDir, input, f, fileCount++));
+              chunk = sorter.newChunk();
             }
           }
-          line = br.readLine();
+          // catch the last lot
+          if (!chunk.isEmpty()) {
+            submitByteChunk(chunkSorter, chunk, getSortChunkFile(sortDir, input, f, fileCount));
+          }
+        }
+      }
+      sortFiles = chunkSorter.await();
+    } catch (IOException | RuntimeException e) {
+      deleteDirectoryRecursively(sortDir);
+      throw e;
+    } finally {
+      stopSortExecutor(executor);
+    }
+    LOG.debug(
+        "{} sorted file chunks created in {} secs",
+        sortFiles.size(),
+        (System.currentTimeMillis() - start) / 1000);
+
+    try {
+      sortFiles =
+          reduceFanIn(
+              sortFiles,
+              (group, target) -> {
+                try (OutputStream out =
+                    new BufferedOutputStream(new FileOutputStream(target), 64 * 1024)) {
+                  sorter.merge(group, out);
+                }
+              });
+      try (OutputStream out = openSortOutput(sorted, false)) {
+        headerLines.writeTo(out);
+        sorter.merge(sortFiles, out);
+      }
+    } finally {
+      deleteDirectoryRecursively(sortDir);
+    }
+    LOG.debug(
+        "File(s) {} sorted by their bytes using {} parts in {}s",
+        inputs.stream().map(File::getAbsolutePath).toArray(),
+        sortFiles.size(),
+        (System.currentTimeMillis() - start) / 1000);
+  }
+
+  private static void submitByteChunk(
+      ChunkSorter chunkSorter, ByteLineSorter.Chunk chunk, File sortFile) throws IOException {
+    chunkSorter.submit(
+        () -> {
+          long start = System.currentTimeMillis();
+          chunk.sortAndWrite(sortFile);
+          LOG.debug(
+              "Byte sort took msec[{}] to sort and write records[{}]",
+              System.currentTimeMillis() - start,
+              chunk.size());
+          return sortFile;
+        });
+  }
+
+  /**
+   * @return the configured sort executor, a new pool if more than one sort thread is configured, or null
+   */
+  ExecutorService newSortExecutor() {
+    if (sortExecutor == null && sortThreads > 1) {
+      return Executors.newFixedThreadPool(sortThreads, new NamedThreadFactory("file-sort"));
+    }
+    return sortExecutor;
+  }
+
+  /**
+   * Stops an executor returned by {@link #newSortExecutor()}, unless it is the configured sort executor.
+   */
+  void stopSortExecutor(ExecutorService executor) {
+    if (executor != null && executor != sortExecutor) {
+      ExecutorUtils.stop(executor);
+    }
+  }
+
+  /**
+   * Reads the inputs into chunks of records, then sorts and writes every chunk to a file.
+   *
+   * @param sortDir directory to write the chunk files to
+   * @param headerLines receives the header lines of the first input
+   * @param toRecord creates the buffered record of a line
+   * @param recordSize estimates the heap retained by a record, for the memory budget
+   * @param keySample receives the keys of the records for the key ranges of a parallel merge, or null
+   * @param checkpoint records the written chunks and continues after the chunks it holds already, or null
+   * @return the chunk files in input order
+   */
+  private <T> List<File> writeSortedChunks(
+      List<File> inputs,
+      String encoding,
+      int ignoreHeaderLines,
+      File sortDir,
+      List<String> headerLines,
+      Function<String, T> toRecord,
+      ToLongFunction<T> recordSize,
+      Comparator<? super T> comparator,
+      SpillCodec codec,
+      boolean keyed,
+      RecordWriter<T> recordWriter,
+      KeySample<T> keySample,
+      SortCheckpoint checkpoint)
+      throws IOException {
+    // the chunks of a resumed sort, and the input and offset to continue at
+    List<File> resumed = new ArrayList<>();
+    int firstInput = 0;
+    long firstOffset = 0;
+    if (checkpoint != null && !checkpoint.getChunks().isEmpty()) {
+      resumed.addAll(checkpoint.getChunks());
+      firstInput = checkpoint.getInputIndex();
+      firstOffset = checkpoint.getOffset();
+      try (BufferedReader br =
+          new BufferedReader(new InputStreamReader(openSortInput(inputs.get(0)), encoding))) {
+        String line;
+        while (headerLines.size() < ignoreHeaderLines && (line = br.readLine()) != null) {
+          headerLines.add(line);
         }
-        // catch the last lot
-        if (!linesToSort.isEmpty()) {
-          sortFiles.add(sortAndWrite(input, encoding, lineComparator, fileCount, linesToSort));
+      }
+    }
+    ExecutorService executor = newSortExecutor();
+    int chunksInFlight = executor == null ? 1 : getMaxChunksInFlight();
+    // the budget is shared by the chunks in flight and the one being filled
+    long chunkBudget =
+        sortMemoryBudget > 0 ? Math.max(1, sortMemoryBudget / (chunksInFlight + 1)) : 0;
+    int chunkLines = getLinesPerSortChunk();
+    try (ChunkSorter chunkSorter = new ChunkSorter(executor, chunksInFlight, checkpoint)) {
+      for (int inputIndex = firstInput; inputIndex < inputs.size(); inputIndex++) {
+        File input = inputs.get(inputIndex);
+        boolean resumedInput = !resumed.isEmpty() && inputIndex == firstInput;
+        SortInputReader br =
+            new SortInputReader(
+                input, encoding, resumedInput ? firstOffset : 0, checkpoint != null);
+        int skipHeaderLines = resumedInput ? 0 : ignoreHeaderLines;
+        // an ascending run longer than a chunk, written as it is read
+        RunWriter<T> run = null;
+        try {
+          String line = br.readLine();
+          int fileCount = resumedInput ? checkpoint.countChunks(inputIndex) : 0;
+
+          List<T> linesToSort = new ArrayList<>();
+          long bufferedBytes = 0;
+          // the last record added, and whether the chunk is in order so far
+          T last = null;
+          boolean inOrder = true;
+          while (line != null) {
+            if (skipHeaderLines > 0) {
+              // Only add the header lines for the first file
+              if (headerLines.size() < ignoreHeaderLines) {
+                headerLines.add(line);
+              }
+              skipHeaderLines--;
+            } else {
+              T record = toRecord.apply(line);
+              if (keySample != null) {
+                keySample.add(record);
+              }
+              if (run != null) {
+                if (comparator.compare(last, record) <= 0) {
+                  run.write(record);
+                  last = record;
+                  line = br.readLine();
+                  continue;
+                }
+                // the run ends before this line
+                setCheckpointPosition(checkpoint, inputIndex, br.getLineStart());
+                submitRun(chunkSorter, run);
+                run = null;
+                last = null;
+              }
+              inOrder = inOrder && (last == null || comparator.compare(last, record) <= 0);
+              last = record;
+              linesToSort.add(record);
+
+              // if buffer is full, then sort and write to file
+              boolean full;
+              if (chunkBudget > 0) {
+                bufferedBytes += recordSize.applyAsLong(record);
+                full = bufferedBytes >= chunkBudget;
+              } else {
+                full = linesToSort.size() == chunkLines;
+              }
+              if (full) {
+                if (chunkBudget > 0) {
+                  LOG.debug(
+                      "Sort chunk {} of {} reached the memory budget with {} lines of about {}",
+                      fileCount,
+                      input.getName(),
+                      linesToSort.size(),
+                      humanReadableByteCount(bufferedBytes, false));
+                }
+                File chunkFile = getSortChunkFile(sortDir, input, inputIndex, fileCount);
+                if (inOrder) {
+                  // a natural run, continue writing it without sorting until a line is out of order
+                  LOG.debug("Sort chunk {} of {} starts an ascending run", fileCount, input.getName());
+                  run = new RunWriter<>(chunkFile, codec, keyed, recordWriter);
+                  for (T r : linesToSort) {
+                    run.write(r);
+                  }
+                } else {
+                  setCheckpointPosition(checkpoint, inputIndex, br.getOffset());
+                  submitChunk(
+                      chunkSorter,
+                      chunkFile,
+                      comparator,
+                      linesToSort,
+                      codec,
+                      keyed,
+                      recordWriter);
+                  last = null;
+                }
+                linesToSort = new ArrayList<>();
+                bufferedBytes = 0;
+                inOrder = true;
+                fileCount++;
+              }
+            }
+            line = br.readLine();
+          }
+          setCheckpointPosition(checkpoint, inputIndex, br.getOffset());
+          if (run != null) {
+            submitRun(chunkSorter, run);
+            run = null;
+          }
+          // catch the last lot
+          if (!linesToSort.isEmpty()) {
+            submitChunk(
+                chunkSorter,
+                getSortChunkFile(sortDir, input, inputIndex, fileCount),
+                comparator,
+                linesToSort,
+                codec,
+                keyed,
+                recordWriter);
+          }
+        } finally {
+          br.close();
+          if (run != null) {
+            run.close();
+          }
         }
-      } finally {
-        br.close();
       }
+      resumed.addAll(chunkSorter.await());
+      return resumed;
+    } finally {
+      stopSortExecutor(executor);
     }
+  }
+
+  /**
+   * Writes the header lines and merges the sorted chunk files into the sorted file, in the encoding of the inputs.
+   *
+   * @param keySample the keys to choose the key ranges of a parallel merge from, or null to merge on a single thread
+   * @param keepChunks true to keep the chunk files, e.g. for a checkpoint
+   */
+  private void mergeSortedChunks(
+      List<File> inputs,
+      File sorted,
+      String encoding,
+      List<String> headerLines,
+      List<File> sortFiles,
+      SpillCodec codec,
+      boolean keyed,
+      Comparator<String> comparator,
+      KeySample<?> keySample,
+      boolean keepChunks,
+      long start)
+      throws IOException {
     LOG.debug(
         sortFiles.size()
             + " sorted file chunks created in "
@@ -899,13 +2712,21 @@ public final class FileUtils {
             + " secs");
 
     // now merge the sorted files into one single sorted file
-    Writer sortedFileWriter = new BufferedWriter(new FileWriter(sorted));
+    Writer sortedFileWriter =
+        new BufferedWriter(new OutputStreamWriter(openSortOutput(sorted, false), encoding));
     // first write the old header lines if existing
     for (String h : headerLines) {
       sortedFileWriter.write(h);
       sortedFileWriter.write("\n");
     }
-    mergeSortedFiles(sortFiles, sortedFileWriter, lineComparator);
+    if (keySample != null) {
+      sortedFileWriter.close();
+      List<String> splits = keySample.splits(comparator, mergePartitions);
+      List<File> chunkDirs = partitionChunks(sortFiles, splits, codec, keyed, comparator);
+      mergePartitions(chunkDirs, splits.size() + 1, codec, keyed, comparator, sorted, encoding);
+    } else {
+      mergeSortedFiles(sortFiles, codec, keyed, sortedFileWriter, comparator, keepChunks);
+    }
 
     LOG.debug(
         "File(s) {} sorted successfully using {} parts to do sorting in {}s",
@@ -914,8 +2735,334 @@ public final class FileUtils {
         (System.currentTimeMillis() - start) / 1000);
   }
 
+  /**
+   * Merges every key range of the partitioned chunks on its own thread into a part file, then appends the parts to
+   * the sorted file in range order.
+   *
+   * @param chunkDirs the directories holding the range files of every chunk
+   */
+  private void mergePartitions(
+      List<File> chunkDirs,
+      int partitions,
+      SpillCodec codec,
+      boolean keyed,
+      Comparator<String> comparator,
+      File sorted,
+      String encoding)
+      throws IOException {
+    if (chunkDirs.isEmpty()) {
+      return;
+    }
+    long start = System.currentTimeMillis();
+    File dir = chunkDirs.get(0).getAbsoluteFile().getParentFile();
+    // a pool of its own, the merges may wait for fan-in reductions running on the sort executor
+    ExecutorService executor =
+        Executors.newFixedThreadPool(partitions, new NamedThreadFactory("file-sort-merge"));
+    List<File> parts;
+    try (ChunkSorter merges = new ChunkSorter(executor, partitions)) {
+      for (int p = 0; p < partitions; p++) {
+        List<File> rangeFiles = new ArrayList<>(chunkDirs.size());
+        for (File chunkDir : chunkDirs) {
+          rangeFiles.add(getPartitionFile(chunkDir, p));
+        }
+        File part = new File(dir, "part_" + p + ".txt");
+        merges.submit(
+            () -> {
+              mergeSortedFiles(
+                  rangeFiles,
+                  codec,
+                  keyed,
+                  new BufferedWriter(
+                      new OutputStreamWriter(new FileOutputStream(part), encoding)),
+                  comparator,
+                  false);
+              return part;
+            });
+      }
+      parts = merges.await();
+    } finally {
+      ExecutorUtils.stop(executor);
+    }
+    if (isCompressedSortFile(sorted)) {
+      // the parts are compressed while they are appended
+      try (OutputStream out = openSortOutput(sorted, true)) {
+        for (File part : parts) {
+          Files.copy(part.toPath(), out);
+          part.delete();
+        }
+      }
+      return;
+    }
+    try (FileChannel out =
+        FileChannel.open(sorted.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      for (File part : parts) {
+        try (FileChannel in = FileChannel.open(part.toPath(), StandardOpenOption.READ)) {
+          long size = in.size();
+          long position = 0;
+          while (position < size) {
+            position += in.transferTo(position, size - position, out);
+          }
+        }
+        part.delete();
+      }
+    }
+    LOG.debug(
+        "Merged {} key ranges in parallel in {} ms", partitions, System.currentTimeMillis() - start);
+  }
+
+  private static File getPartitionFile(File chunkDir, int partition) {
+    return new File(chunkDir, "range_" + partition);
+  }
+
+  /**
+   * Writes every sorted chunk into one file per key range in a directory of its own, on the sort threads. All ranges
+   * are written even if empty, so every chunk has splits.size() + 1 range files, which {@link #mergePartitions}
+   * merges.
+   *
+   * @param splits the first keys of the ranges after the first
+   * @return the directories holding the range files, in chunk order
+   */
+  private List<File> partitionChunks(
+      List<File> chunks,
+      List<String> splits,
+      SpillCodec codec,
+      boolean keyed,
+      Comparator<String> comparator)
+      throws IOException {
+    long start = System.currentTimeMillis();
+    ExecutorService executor = newSortExecutor();
+    List<File> chunkDirs;
+    try (ChunkSorter chunkSorter =
+        new ChunkSorter(executor, executor == null ? 1 : getMaxChunksInFlight())) {
+      for (File chunk : chunks) {
+        chunkSorter.submit(() -> partitionChunk(chunk, splits, codec, keyed, comparator));
+      }
+      chunkDirs = chunkSorter.await();
+    } finally {
+      stopSortExecutor(executor);
+    }
+    LOG.debug(
+        "Wrote {} chunks in {} key ranges in {} ms",
+        chunks.size(),
+        splits.size() + 1,
+        System.currentTimeMillis() - start);
+    return chunkDirs;
+  }
+
+  /**
+   * Writes a sorted chunk into one file per key range and deletes it.
+   *
+   * @return the directory holding the range files
+   */
+  private static File partitionChunk(
+      File chunk,
+      List<String> splits,
+      SpillCodec codec,
+      boolean keyed,
+      Comparator<String> comparator)
+      throws IOException {
+    File chunkDir = new File(chunk.getPath() + ".ranges");
+    if (!chunkDir.mkdir()) {
+      throw new IOException("Could not create sort chunk directory " + chunkDir);
+    }
+    try (ChunkReader reader = codec.newReader(chunk, keyed, SpillCodec.BUFFER_SIZE)) {
+      String line = reader.readLine();
+      for (int range = 0; range <= splits.size(); range++) {
+        try (ChunkWriter writer = codec.newWriter(getPartitionFile(chunkDir, range), keyed)) {
+          // keys equal to a boundary start its range, so equal keys are never split
+          while (line != null
+              && (range == splits.size()
+                  || comparator.compare(reader.getKey(), splits.get(range)) < 0)) {
+            if (keyed) {
+              writer.write(reader.getKey(), line);
+            } else {
+              writer.write(line);
+            }
+            line = reader.readLine();
+          }
+        }
+      }
+    }
+    chunk.delete();
+    return chunkDir;
+  }
+
+  /**
+   * A uniform sample of the keys of all records of a sort, drawn while the records are read, to choose the key ranges
+   * of a parallel merge. Sampling all chunks keeps the ranges balanced for presorted or skewed input.
+   */
+  static final class KeySample<T> {
+    private final Function<? super T, String> toKey;
+    private final List<String> keys = new ArrayList<>();
+    private long records;
+
+    KeySample(Function<? super T, String> toKey) {
+      this.toKey = toKey;
+    }
+
+    /**
+     * Adds a record to the reservoir of at most SPLIT_SAMPLE_SIZE keys.
+     */
+    void add(T record) {
+      records++;
+      if (keys.size() < SPLIT_SAMPLE_SIZE) {
+        keys.add(toKey.apply(record));
+      } else {
+        long i = ThreadLocalRandom.current().nextLong(records);
+        if (i < SPLIT_SAMPLE_SIZE) {
+          keys.set((int) i, toKey.apply(record));
+        }
+      }
+    }
+
+    /**
+     * @return at most partitions - 1 keys in sort order, the first keys of the ranges after the first. Boundaries may
+     *         repeat if the records have few distinct keys, the ranges between them are then empty. Empty if no record
+     *         was sampled.
+     */
+    List<String> splits(Comparator<String> comparator, int partitions) {
+      List<String> sorted = new ArrayList<>(keys);
+      sorted.sort(comparator);
+      List<String> splits = new ArrayList<>(partitions - 1);
+      for (int i = 1; i < partitions && !sorted.isEmpty(); i++) {
+        splits.add(sorted.get(i * sorted.size() / partitions));
+      }
+      return splits;
+    }
+  }
+
+  private <T> void submitChunk(
+      ChunkSorter chunkSorter,
+      File sortFile,
+      Comparator<? super T> comparator,
+      List<T> linesToSort,
+      SpillCodec codec,
+      boolean keyed,
+      RecordWriter<T> recordWriter)
+      throws IOException {
+    chunkSorter.submit(
+        () -> sortAndWrite(sortFile, comparator, linesToSort, codec, keyed, recordWriter));
+  }
+
+  private static void setCheckpointPosition(
+      SortCheckpoint checkpoint, int inputIndex, long offset) {
+    if (checkpoint != null) {
+      checkpoint.setPosition(inputIndex, offset);
+    }
+  }
+
+  /**
+   * Reads the lines of a sort input. For a checkpoint the lines are read as bytes, to know the offset of every line.
+   */
+  private static final class SortInputReader implements Closeable {
+    private final BufferedReader reader;
+    private final ByteLineSorter.LineReader lines;
+    private final Charset charset;
+    private long lineStart;
+
+    /**
+     * @param offset the byte offset to start reading at, only used if tracked
+     * @param tracked true to read the lines as bytes and track their offset
+     */
+    private SortInputReader(File input, String encoding, long offset, boolean tracked)
+        throws IOException {
+      InputStream in = openSortInput(input);
+      if (tracked) {
+        try {
+          in.skipNBytes(offset);
+        } catch (IOException e) {
+          in.close();
+          throw e;
+        }
+        reader = null;
+        // split lines like the BufferedReader, so a resumed sort reads the same lines
+        lines = new ByteLineSorter.LineReader(in, true);
+        lines.offset = offset;
+        charset = Charset.forName(encoding);
+      } else {
+        reader = new BufferedReader(new InputStreamReader(in, encoding));
+        lines = null;
+        charset = null;
+      }
+    }
+
+    private String readLine() throws IOException {
+      if (reader != null) {
+        return reader.readLine();
+      }
+      lineStart = lines.offset;
+      return lines.next() ? new String(lines.line, 0, lines.length, charset) : null;
+    }
+
+    /**
+     * @return the offset after the line read last
+     */
+    private long getOffset() {
+      return lines == null ? -1 : lines.offset;
+    }
+
+    /**
+     * @return the offset of the line read last
+     */
+    private long getLineStart() {
+      return lines == null ? -1 : lineStart;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (reader != null) {
+        reader.close();
+      } else {
+        lines.close();
+      }
+    }
+  }
+
+  /**
+   * Closes a natural run and adds it to the chunks in input order.
+   */
+  private static <T> void submitRun(ChunkSorter chunkSorter, RunWriter<T> run) throws IOException {
+    run.close();
+    LOG.debug("Wrote an ascending run of {} records to {}", run.records, run.file.getName());
+    chunkSorter.submit(() -> run.file);
+  }
+
+  /**
+   * Writes an ascending run of records to a chunk file as they are read.
+   */
+  private static final class RunWriter<T> implements Closeable {
+    private final File file;
+    private final RecordWriter<T> recordWriter;
+    private ChunkWriter writer;
+    private long records;
+
+    private RunWriter(File file, SpillCodec codec, boolean keyed, RecordWriter<T> recordWriter)
+        throws IOException {
+      this.file = file;
+      this.recordWriter = recordWriter;
+      writer = codec.newWriter(file, keyed);
+    }
+
+    private void write(T record) throws IOException {
+      recordWriter.write(writer, record);
+      records++;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (writer == null) {
+        return;
+      }
+      writer.close();
+      writer = null;
+    }
+  }
+
   /**
    * Splits the supplied file into files of set line size and with a suffix.
+   * <br>
+   * Every newline ends a line, also one inside a quoted value, so a quoted CSV or tab file can be split inside a
+   * record. Use {@link org.gbif.utils.file.tabular.TabularFileSplitter} to split such files on record boundaries.
    *
    * @param input To split up
    * @param linesPerOutput Lines per split file
@@ -971,43 +3118,6 @@ public final class FileUtils {
     return splitFiles;
   }
 
-  /**
-   * Test whether we have a new enough version of GNU Sort that supports (primarily) the -k option with a start and end
-   * column.
-   *
-   * Mac OS only includes an old version of GNU sort, and will fail this test.
-   */
-  private boolean gnuSortAvailable() {
-    if (gnuSortAvailable != null) {
-      return gnuSortAvailable;
-    }
-
-    try {
-      String command = "sort -k1,1 -t',' --ignore-case /dev/null";
-      LOG.debug("Testing capability of 'sort' with command: {}", command);
-
-      Process process = new ProcessBuilder("/bin/sh", "-c", command).start();
-      int exitValue = process.waitFor();
-
-      if (exitValue == 0) {
-        LOG.debug("GNU sort is capable");
-        gnuSortAvailable = true;
-      } else {
-        LOG.warn(
-            "GNU sort does not exist or is too old, and will not be used.  Sorting large files will be slow.",
-            new InputStreamUtils().readEntireStream(process.getErrorStream()).replace('\n', ' '));
-        gnuSortAvailable = false;
-      }
-    } catch (Exception e) {
-      LOG.warn(
-          "GNU sort does not exist or is too old, and will not be used.  Sorting large files will be slow.",
-          e);
-      gnuSortAvailable = false;
-    }
-
-    return gnuSortAvailable;
-  }
-
   /**
    * sort a text file via an external GNU sort command:
    * sorting tabs at 3rd column, numerical reverse order
@@ -1051,122 +3161,39 @@ public final class FileUtils {
       String lineDelimiter,
       boolean ignoreCase)
       throws IOException {
-    String command;
-    // GNU sort is available for use when:
-    // • line delimiter is \n
-    // • no enclosed by/quote character is in use
-    // • sorting is using the first column
-    // • sort version is sufficient to include start and end column (-k 1,1).
-    // Use the --debug option to sort if working on this code.
-    if (lineDelimiter == null || !lineDelimiter.contains("\n")) {
-      LOG.debug("Cannot use GNU sort on this file: line delimiter does not contain newline.");
-      return false;
-    } else if (columnDelimiter != null && column > 0) {
-      LOG.debug("Cannot use GNU sort on this file: sort column is not the first.");
-      return false;
-    } else if (enclosedBy != null) {
-      LOG.debug("Cannot use GNU sort on this file: enclosed by character set.");
-      return false;
-    } else if (!gnuSortAvailable()) {
-      LOG.debug("Cannot use GNU sort on this file: command unavailable.");
-      return false;
-    }
-
-    // keep header rows
-    boolean success = false;
-    try {
-      LinkedList<String> cmds = new LinkedList<>();
-      cmds.add("/bin/sh");
-      cmds.add("-c");
-      cmds.add("");
-      ProcessBuilder pb = new ProcessBuilder(cmds);
-      Map<String, String> env = pb.environment();
-
-      // clear the environment, but keep specified temp working directory
-      env.keySet().removeIf(key -> !(key.equals("TMPDIR")));
-      if (System.getProperty("java.io.tmpdir") != null) {
-        env.put("TMPDIR", System.getProperty("java.io.tmpdir"));
-      }
-      // make sure we use the C locale for sorting
-      env.put("LC_ALL", "C");
-
-      String sortArgs =
-          String.format(
-              " %s -k%d,%d -t'%s'",
-              ignoreCase ? "--ignore-case" : "", column + 1, column + 1, columnDelimiter);
-
-      String fileList = inputs.stream().map(File::getAbsolutePath).collect(Collectors.joining(" "));
-      if (ignoreHeaderLines > 0) {
-        // copy header lines
-        command =
-            "head -n "
-                + ignoreHeaderLines
-                + ' '
-                + inputs.get(0).getAbsolutePath()
-                + " > "
-                + sorted.getAbsolutePath();
-        LOG.debug("Issue external command: {}", command);
-        cmds.removeLast();
-        cmds.add(command);
-        Process process = pb.start();
-        int exitValue = process.waitFor();
-        if (exitValue != 0) {
-          LOG.warn("Error sorting file (copying header lines) with GNU head");
-          return false;
-        }
-
-        // do the sorting ignoring the header rows
-        command =
-            "tail -q -n +"
-                + (ignoreHeaderLines + 1)
-                + " "
-                + fileList
-                + " | "
-                + "sort "
-                + sortArgs
-                + " >> "
-                + sorted.getAbsolutePath();
-      } else {
-        // do sorting directly, we don't have header rows
-        command = "sort " + sortArgs + " -o " + sorted.getAbsolutePath() + ' ' + fileList;
-      }
-
-      LOG.debug("Issue external command: {}", command);
-      cmds.removeLast();
-      cmds.add(command);
-      Process process = pb.start();
-      // get the stdout and stderr from the command that was run
-      InputStream err = process.getErrorStream();
-      int exitValue = process.waitFor();
-      if (exitValue == 0) {
-        LOG.debug("Successfully sorted file with GNU sort");
-        success = true;
-      } else {
-        LOG.warn("Error sorting file with GNU sort");
-        InputStreamUtils isu = new InputStreamUtils();
-        System.err.append(isu.readEntireStream(err));
-      }
-    } catch (Exception e) {
-      LOG.warn("Caught Exception using GNU sort", e);
-    }
-    return success;
+    SortRequest request =
+        new SortRequest(
+            inputs,
+            sorted,
+            encoding,
+            null,
+            column,
+            columnDelimiter,
+            enclosedBy,
+            lineDelimiter,
+            ignoreHeaderLines,
+            null,
+            ignoreCase,
+            false);
+    GnuSortEngine gnu = new GnuSortEngine();
+    return gnu.canSort(request, this) && gnu.sort(request, this);
   }
 
   /**
    * Sorts the lines and writes to file using the
    *
-   * @param input File to base the name on
+   * @param sortFile The file to write to
    * @param lineComparator To compare the lines for sorting
-   * @param fileCount Used for the file name
    * @param linesToSort To actually sort
    * @return The written file
    */
-  private File sortAndWrite(
-      File input,
-      String encoding,
-      Comparator<String> lineComparator,
-      int fileCount,
-      List<String> linesToSort)
+  private <T> File sortAndWrite(
+      File sortFile,
+      Comparator<? super T> lineComparator,
+      List<T> linesToSort,
+      SpillCodec codec,
+      boolean keyed,
+      RecordWriter<T> recordWriter)
       throws IOException {
     long start = System.currentTimeMillis();
     linesToSort.sort(lineComparator);
@@ -1177,16 +3204,33 @@ public final class FileUtils {
             + "] to sort records["
             + linesToSort.size()
             + ']');
-    File sortFile = getChunkFile(input, fileCount);
-    try (Writer fw = new OutputStreamWriter(new FileOutputStream(sortFile), encoding)) {
-      for (String s : linesToSort) {
-        fw.write(s);
-        fw.write("\n");
+    long rawBytes;
+    try (ChunkWriter fw = codec.newWriter(sortFile, keyed)) {
+      for (T record : linesToSort) {
+        recordWriter.write(fw, record);
       }
+      rawBytes = fw.getRawBytes();
+    }
+    if (codec != SpillCodec.TEXT && LOG.isDebugEnabled()) {
+      long spilled = sortFile.length();
+      LOG.debug(
+          "Spilled {} of records as {} in {} chunk, compression ratio {}",
+          humanReadableByteCount(rawBytes, false),
+          humanReadableByteCount(spilled, false),
+          codec,
+          String.format("%.2f", spilled == 0 ? 1.0 : (double) rawBytes / spilled));
     }
     return sortFile;
   }
 
+  /**
+   * Writes a buffered record to a chunk.
+   */
+  @FunctionalInterface
+  private interface RecordWriter<T> {
+    void write(ChunkWriter writer, T record) throws IOException;
+  }
+
   /**
    * Creates an empty file or updates the last updated timestamp on the same as the unix command of
    * the same name.
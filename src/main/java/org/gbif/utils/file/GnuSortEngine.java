@@ -0,0 +1,564 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import org.gbif.utils.text.LineComparator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sorts by running the external GNU sort command in the C locale, by far the fastest engine for large files.
+ * <br>
+ * GNU sort is used when:
+ * <ul>
+ *   <li>the line delimiter contains \n</li>
+ *   <li>no merge function is set</li>
+ *   <li>the installed sort supports start and end columns (-k 1,1), Mac OS only includes an old version</li>
+ * </ul>
+ * GNU sort reads the sort columns itself if no enclosed by/quote character is in use, the column delimiter is a
+ * single character and a single column sort uses the first column, as GNU sort orders missing columns first.
+ * Otherwise, if enabled with {@link FileUtils#setGnuSortKeyPrefix(boolean)}, every line is prefixed with its key as
+ * extracted by the Java sort, sorted on the prefix and written without it. This supports any column and quoting at
+ * the cost of an extra pass over the data, unless the lines are ordered by a custom comparator.
+ * Sort keys are run with -s, so lines with equal keys keep their input order as in the Java sort. The threads,
+ * memory budget and temporary directory of the FileUtils settings are passed as --parallel, -S and -T, and the
+ * compress program of {@link FileUtils#setGnuSortCompressProgram(String)} as --compress-program.
+ * <br>
+ * Use the --debug option of sort if working on this code.
+ */
+public final class GnuSortEngine implements SortEngine {
+
+  private static final Logger LOG = LoggerFactory.getLogger(GnuSortEngine.class);
+
+  private static volatile Boolean available = null;
+
+  // key prefix markers, present keys sort before missing keys as in the LineComparator
+  private static final char PRESENT_KEY = '0';
+  private static final char MISSING_KEY = '1';
+  // the control characters up to and including the newline are escaped in key prefixes
+  private static final char MAX_ESCAPED = '\n';
+  private static final char ESCAPE = '\u0001';
+  private static final char ESCAPE_OFFSET = ' ';
+  // surrogates are escaped with the highest character below them, supplementary characters sort above U+E000 in UTF-8
+  private static final char SURROGATE_ESCAPE = '\uD7FF';
+
+  @Override
+  public boolean canSort(SortRequest request, FileUtils settings) {
+    if (!request.isNewlineTerminated()) {
+      LOG.debug("Cannot use GNU sort on this file: line delimiter does not contain newline.");
+      return false;
+    } else if (settings.getMergeFunction() != null) {
+      LOG.debug("Cannot use GNU sort on this file: lines are folded by a merge function.");
+      return false;
+    } else if (!isAvailable()) {
+      LOG.debug("Cannot use GNU sort on this file: command unavailable.");
+      return false;
+    }
+    return canSortColumns(request) || canSortKeyPrefixed(request, settings);
+  }
+
+  /**
+   * @return true if GNU sort can read the sort columns of the lines itself
+   */
+  private static boolean canSortColumns(SortRequest request) {
+    String columnDelimiter = request.getColumnDelimiter();
+    if (request.getEnclosedBy() != null) {
+      LOG.debug("Cannot use GNU sort on this file: enclosed by character set.");
+      return false;
+    } else if (columnDelimiter == null
+        ? request.getSortKey() != null
+        : columnDelimiter.length() != 1 || "\n\0".contains(columnDelimiter)) {
+      LOG.debug("Cannot use GNU sort on this file: column delimiter is not a single character.");
+      return false;
+    } else if (request.getSortKey() == null && columnDelimiter != null && request.getColumn() > 0) {
+      LOG.debug("Cannot use GNU sort on this file: sort column is not the first.");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return true if the lines can be sorted by GNU sort on their extracted key, see
+   *         {@link FileUtils#setGnuSortKeyPrefix(boolean)}
+   */
+  private static boolean canSortKeyPrefixed(SortRequest request, FileUtils settings) {
+    if (!settings.isGnuSortKeyPrefix()) {
+      return false;
+    } else if (request.getSortKey() == null && !request.isNaturalOrder()) {
+      LOG.debug("Cannot use GNU sort on this file: lines are ordered by a custom comparator.");
+      return false;
+    }
+    LOG.debug("Using GNU sort on the extracted keys of the lines.");
+    return true;
+  }
+
+  @Override
+  public boolean sort(SortRequest request, FileUtils settings) throws IOException {
+    if (!canSortColumns(request)) {
+      return sortKeyPrefixed(request, settings);
+    }
+    return sort(
+        request.getInputs(),
+        request.getSorted(),
+        request.getIgnoreHeaderLines(),
+        sortCommand(request, settings),
+        settings);
+  }
+
+  /**
+   * Runs the sort command on the inputs, keeping the header lines of the first input.
+   */
+  private static boolean sort(
+      List<File> inputs,
+      File sorted,
+      int ignoreHeaderLines,
+      List<String> sortCommand,
+      FileUtils settings) {
+    if (inputs.stream().anyMatch(FileUtils::isCompressedSortFile)
+        || FileUtils.isCompressedSortFile(sorted)) {
+      return sortStreams(inputs, sorted, ignoreHeaderLines, sortCommand, settings);
+    }
+    try {
+      List<Process> processes;
+      if (ignoreHeaderLines > 0) {
+        copyHeaderLines(inputs.get(0), sorted, ignoreHeaderLines);
+        // sort the lines after the header rows of all inputs, appending to the copied header
+        List<String> tailCommand = new ArrayList<>();
+        tailCommand.add("tail");
+        tailCommand.add("-q");
+        tailCommand.add("-n");
+        tailCommand.add("+" + (ignoreHeaderLines + 1));
+        inputs.forEach(f -> tailCommand.add(f.getAbsolutePath()));
+        ProcessBuilder tail = processBuilder(tailCommand, settings);
+        ProcessBuilder sort =
+            processBuilder(sortCommand, settings)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(sorted));
+        LOG.debug("Issue external command: {} | {}", tailCommand, sortCommand);
+        processes = ProcessBuilder.startPipeline(Arrays.asList(tail, sort));
+      } else {
+        // sort directly, we don't have header rows
+        sortCommand.add("-o");
+        sortCommand.add(sorted.getAbsolutePath());
+        inputs.forEach(f -> sortCommand.add(f.getAbsolutePath()));
+        LOG.debug("Issue external command: {}", sortCommand);
+        processes = Arrays.asList(processBuilder(sortCommand, settings).start());
+      }
+
+      return waitFor(processes);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOG.warn("Interrupted while sorting with GNU sort", e);
+      return false;
+    } catch (IOException e) {
+      LOG.warn("Caught Exception using GNU sort", e);
+      return false;
+    }
+  }
+
+  /**
+   * Runs the sort command on its standard input and output, for compressed inputs or a compressed sorted file. The
+   * inputs are decompressed in Java while they are fed to the command unless they can be read by sort directly, and
+   * the sorted lines are compressed while they are written.
+   */
+  private static boolean sortStreams(
+      List<File> inputs,
+      File sorted,
+      int ignoreHeaderLines,
+      List<String> sortCommand,
+      FileUtils settings) {
+    boolean feedInputs =
+        ignoreHeaderLines > 0 || inputs.stream().anyMatch(FileUtils::isCompressedSortFile);
+    if (!feedInputs) {
+      inputs.forEach(f -> sortCommand.add(f.getAbsolutePath()));
+    }
+    LOG.debug("Issue external command: {} on streams", sortCommand);
+    Process process = null;
+    try (OutputStream out = FileUtils.openSortOutput(sorted, false)) {
+      if (ignoreHeaderLines > 0) {
+        try (InputStream in = FileUtils.openSortInput(inputs.get(0))) {
+          copyHeaderLines(in, out, ignoreHeaderLines);
+        }
+      }
+      process = processBuilder(sortCommand, settings).start();
+      FutureTask<Void> feeder = null;
+      if (feedInputs) {
+        Process sort = process;
+        feeder =
+            new FutureTask<>(
+                () -> {
+                  try (OutputStream stdin = sort.getOutputStream()) {
+                    feedInputs(inputs, ignoreHeaderLines, stdin);
+                  }
+                  return null;
+                });
+        Thread thread = new Thread(feeder, "gnu-sort-input");
+        thread.setDaemon(true);
+        thread.start();
+      } else {
+        process.getOutputStream().close();
+      }
+      process.getInputStream().transferTo(out);
+      boolean success = waitFor(Collections.singletonList(process));
+      if (feeder != null) {
+        try {
+          feeder.get();
+        } catch (ExecutionException e) {
+          LOG.warn("Error feeding the inputs to GNU sort", e.getCause());
+          success = false;
+        }
+      }
+      return success;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOG.warn("Interrupted while sorting with GNU sort", e);
+      return false;
+    } catch (IOException e) {
+      LOG.warn("Caught Exception using GNU sort", e);
+      return false;
+    } finally {
+      if (process != null) {
+        process.destroy();
+      }
+    }
+  }
+
+  /**
+   * Writes the lines of all inputs after their header lines to the stream, decompressing them if needed.
+   */
+  private static void feedInputs(List<File> inputs, int ignoreHeaderLines, OutputStream out)
+      throws IOException {
+    byte[] buffer = new byte[SpillCodec.BUFFER_SIZE];
+    for (File input : inputs) {
+      try (InputStream in = FileUtils.openSortInput(input)) {
+        int skipHeaderLines = ignoreHeaderLines;
+        boolean newline = true;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          int from = 0;
+          while (skipHeaderLines > 0 && from < read) {
+            if (buffer[from++] == '\n') {
+              skipHeaderLines--;
+            }
+          }
+          if (from < read) {
+            out.write(buffer, from, read - from);
+            newline = buffer[read - 1] == '\n';
+          }
+        }
+        if (!newline) {
+          // sort would join the last line of an input with the first line of the next
+          out.write('\n');
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits for the processes of a pipeline to finish.
+   *
+   * @return true if all processes were successful
+   */
+  private static boolean waitFor(List<Process> processes) throws IOException, InterruptedException {
+    boolean success = true;
+    for (Process process : processes) {
+      // the error output is small, it only holds the messages of a failing command
+      String error = new InputStreamUtils().readEntireStream(process.getErrorStream());
+      if (process.waitFor() != 0) {
+        LOG.warn("Error sorting file with GNU sort: {}", error.trim());
+        success = false;
+      }
+    }
+    if (success) {
+      LOG.debug("Successfully sorted file with GNU sort");
+    }
+    return success;
+  }
+
+  /**
+   * @return the sort command with its options, without output and input files
+   */
+  List<String> sortCommand(SortRequest request, FileUtils settings) {
+    List<String> cmd = new ArrayList<>();
+    cmd.add("sort");
+    if (!canSortColumns(request)) {
+      // lines prefixed with their key, see sortKeyPrefixed
+      cmd.add("-t");
+      cmd.add("\t");
+      cmd.add("-s");
+      cmd.add("-k1,1");
+    } else {
+      addColumnArgs(request, cmd);
+    }
+    if (settings.getDistinctMode() == DistinctMode.LINES) {
+      // the whole line as last key makes identical lines adjacent
+      cmd.add("-k1");
+      cmd.add("-u");
+    } else if (settings.getDistinctMode() == DistinctMode.KEYS) {
+      cmd.add("-u");
+    }
+    if (settings.getSortMemoryBudget() > 0) {
+      cmd.add("-S");
+      cmd.add(settings.getSortMemoryBudget() + "b");
+    }
+    if (settings.getSortThreads() > 1) {
+      cmd.add("--parallel=" + settings.getSortThreads());
+    }
+    if (settings.getSortTempDir() != null) {
+      cmd.add("-T");
+      cmd.add(settings.getSortTempDir().getAbsolutePath());
+    }
+    if (settings.getGnuSortCompressProgram() != null) {
+      cmd.add("--compress-program=" + settings.getGnuSortCompressProgram());
+    }
+    return cmd;
+  }
+
+  private static void addColumnArgs(SortRequest request, List<String> cmd) {
+    if (request.isIgnoreCase()) {
+      cmd.add("--ignore-case");
+    }
+    if (request.getColumnDelimiter() != null) {
+      cmd.add("-t");
+      cmd.add(request.getColumnDelimiter());
+    }
+    if (request.getSortKey() != null) {
+      cmd.add("-s");
+      cmd.addAll(Arrays.asList(request.getSortKey().toGnuSortArgs().split(" ")));
+    } else if (request.getColumnDelimiter() != null) {
+      cmd.add("-k" + (request.getColumn() + 1) + ',' + (request.getColumn() + 1));
+    }
+  }
+
+  /**
+   * Sorts lines GNU sort cannot read the key of by prefixing every line with its extracted key and a tab. The keys
+   * are written in UTF-8, which GNU sort compares in code point order, while the Java sort compares UTF-16 code units.
+   * The orders differ for supplementary characters, so the keys are escaped to sort in the order of the Java sort, see
+   * {@link #appendKeyPrefix(String, StringBuilder)}. Present keys start with 0 and sort before missing keys, which are a
+   * single 1. The prefixes are removed again while copying the sorted lines into the sorted file.
+   */
+  private boolean sortKeyPrefixed(SortRequest request, FileUtils settings)
+      throws IOException {
+    Function<String, String> keyExtractor =
+        request.getSortKey() != null
+            ? request.getSortKey().keyExtractor(request.getColumnDelimiter(), request.getEnclosedBy())
+            : new LineComparator(
+                    request.getColumn(), request.getColumnDelimiter(), request.getEnclosedBy())
+                ::getKey;
+    String encoding = request.getEncoding();
+    int ignoreHeaderLines = request.getIgnoreHeaderLines();
+    File sortDir = settings.createSortDir(request.getInputs());
+    try {
+      File prefixed = new File(sortDir, "prefixed.txt");
+      File prefixedSorted = new File(sortDir, "sorted.txt");
+      List<String> headerLines = new ArrayList<>();
+      try (Writer writer =
+          new BufferedWriter(
+              new OutputStreamWriter(new FileOutputStream(prefixed), StandardCharsets.UTF_8),
+              SpillCodec.BUFFER_SIZE)) {
+        StringBuilder sb = new StringBuilder();
+        for (File input : request.getInputs()) {
+          try (BufferedReader reader =
+              new BufferedReader(new InputStreamReader(FileUtils.openSortInput(input), encoding))) {
+            int skipHeaderLines = ignoreHeaderLines;
+            String line;
+            while ((line = reader.readLine()) != null) {
+              if (skipHeaderLines > 0) {
+                // Only keep the header lines of the first file
+                if (headerLines.size() < ignoreHeaderLines) {
+                  headerLines.add(line);
+                }
+                skipHeaderLines--;
+                continue;
+              }
+              sb.setLength(0);
+              appendKeyPrefix(keyExtractor.apply(line), sb);
+              sb.append(line).append('\n');
+              writer.write(sb.toString());
+            }
+          }
+        }
+      }
+
+      if (!sort(
+          Collections.singletonList(prefixed),
+          prefixedSorted,
+          0,
+          sortCommand(request, settings),
+          settings)) {
+        return false;
+      }
+
+      try (BufferedReader reader =
+              new BufferedReader(
+                  new InputStreamReader(new FileInputStream(prefixedSorted), StandardCharsets.UTF_8),
+                  SpillCodec.BUFFER_SIZE);
+          Writer writer =
+              new BufferedWriter(
+                  new OutputStreamWriter(FileUtils.openSortOutput(request.getSorted(), false), encoding),
+                  SpillCodec.BUFFER_SIZE)) {
+        for (String header : headerLines) {
+          writer.write(header);
+          writer.write('\n');
+        }
+        String line;
+        while ((line = reader.readLine()) != null) {
+          writer.write(line, line.indexOf('\t') + 1, line.length() - line.indexOf('\t') - 1);
+          writer.write('\n');
+        }
+      }
+      return true;
+    } finally {
+      FileUtils.deleteDirectoryRecursively(sortDir);
+    }
+  }
+
+  /**
+   * Appends the key escaped so that it contains no tab or newline and its UTF-8 bytes sort in the UTF-16 order of the
+   * key, followed by a tab.
+   * <br>
+   * The UTF-8 bytes of a supplementary character sort above U+E000 to U+FFFF, but its surrogate code units sort below
+   * them. Every surrogate code unit, paired or not, is therefore escaped as U+D7FF followed by its offset from U+D800,
+   * and U+D7FF itself as U+D7FF followed by the lower escape character.
+   */
+  static void appendKeyPrefix(String key, StringBuilder sb) {
+    if (key == null) {
+      sb.append(MISSING_KEY);
+    } else {
+      sb.append(PRESENT_KEY);
+      for (int i = 0; i < key.length(); i++) {
+        char ch = key.charAt(i);
+        if (ch <= MAX_ESCAPED) {
+          // the escape is lower than all unescaped characters, the escaped characters keep their order
+          sb.append(ESCAPE).append((char) (ch + ESCAPE_OFFSET));
+        } else if (ch == SURROGATE_ESCAPE) {
+          sb.append(SURROGATE_ESCAPE).append(ESCAPE);
+        } else if (Character.isSurrogate(ch)) {
+          sb.append(SURROGATE_ESCAPE).append((char) (ch - Character.MIN_SURROGATE + ESCAPE_OFFSET));
+        } else {
+          sb.append(ch);
+        }
+      }
+    }
+    sb.append('\t');
+  }
+
+  private static ProcessBuilder processBuilder(List<String> command, FileUtils settings) {
+    ProcessBuilder pb = new ProcessBuilder(command);
+    Map<String, String> env = pb.environment();
+    // clear the environment, but keep the path to find the commands and the temp working directory
+    env.keySet().removeIf(key -> !(key.equals("TMPDIR") || key.equals("PATH")));
+    if (settings.getSortTempDir() != null) {
+      env.put("TMPDIR", settings.getSortTempDir().getAbsolutePath());
+    } else if (System.getProperty("java.io.tmpdir") != null) {
+      env.put("TMPDIR", System.getProperty("java.io.tmpdir"));
+    }
+    // make sure we use the C locale for sorting
+    env.put("LC_ALL", "C");
+    return pb;
+  }
+
+  /**
+   * Copies the first lines of the input as they are, the same as head -n.
+   */
+  private static void copyHeaderLines(File input, File sorted, int lines) throws IOException {
+    try (InputStream in = new BufferedInputStream(new FileInputStream(input));
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(sorted))) {
+      copyHeaderLines(in, out, lines);
+    }
+  }
+
+  private static void copyHeaderLines(InputStream in, OutputStream out, int lines)
+      throws IOException {
+    int copied = 0;
+    int b;
+    while (copied < lines && (b = in.read()) != -1) {
+      out.write(b);
+      if (b == '\n') {
+        copied++;
+      }
+    }
+  }
+
+  /**
+   * Tests once whether we have a new enough version of GNU Sort that supports (primarily) the -k option with a start
+   * and end column.
+   */
+  static boolean isAvailable() {
+    Boolean result = available;
+    if (result == null) {
+      // probe only once, even if several sorts start at the same time
+      synchronized (GnuSortEngine.class) {
+        if (available == null) {
+          available = probe();
+        }
+        result = available;
+      }
+    }
+    return result;
+  }
+
+  private static boolean probe() {
+    try {
+      String command = "sort -k1,1 -t',' --ignore-case /dev/null";
+      LOG.debug("Testing capability of 'sort' with command: {}", command);
+
+      Process process = new ProcessBuilder("/bin/sh", "-c", command).start();
+      int exitValue = process.waitFor();
+
+      if (exitValue == 0) {
+        LOG.debug("GNU sort is capable");
+        return true;
+      } else {
+        LOG.warn(
+            "GNU sort does not exist or is too old, and will not be used.  Sorting large files will be slow.",
+            new InputStreamUtils().readEntireStream(process.getErrorStream()).replace('\n', ' '));
+        return false;
+      }
+    } catch (Exception e) {
+      LOG.warn(
+          "GNU sort does not exist or is too old, and will not be used.  Sorting large files will be slow.",
+          e);
+      return false;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "GNU sort";
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import java.io.IOException;
+import java.util.Comparator;
+
+/**
+ * Sorts in Java with a merge sort of sorted chunk files, see
+ * {@link FileUtils#sortInJava(java.util.List, java.io.File, String, Comparator, int)}. Supports every request and
+ * is the last engine by default.
+ * <br>
+ * Sort keys are extracted once per line and sorted in natural order.
+ */
+public final class JavaSortEngine implements SortEngine {
+
+  @Override
+  public boolean canSort(SortRequest request, FileUtils settings) {
+    return true;
+  }
+
+  @Override
+  public boolean sort(SortRequest request, FileUtils settings) throws IOException {
+    if (request.getSortKey() != null) {
+      settings.sortInJava(
+          request.getInputs(),
+          request.getSorted(),
+          request.getEncoding(),
+          request
+              .getSortKey()
+              .keyExtractor(request.getColumnDelimiter(), request.getEnclosedBy()),
+          Comparator.naturalOrder(),
+          request.getIgnoreHeaderLines());
+    } else {
+      settings.sortInJava(
+          request.getInputs(),
+          request.getSorted(),
+          request.getEncoding(),
+          request.getLineComparator(),
+          request.getIgnoreHeaderLines());
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return "Java sort";
+  }
+}
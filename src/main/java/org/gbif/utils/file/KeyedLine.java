@@ -0,0 +1,50 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+/**
+ * A line buffered for sorting together with its sort key, extracted once when the line is read.
+ */
+final class KeyedLine {
+
+  // object header and two references
+  private static final int OVERHEAD_BYTES = 24;
+
+  private final String key;
+  private final String line;
+
+  KeyedLine(String key, String line) {
+    this.key = key;
+    this.line = line;
+  }
+
+  String getKey() {
+    return key;
+  }
+
+  String getLine() {
+    return line;
+  }
+
+  /**
+   * Estimates the heap retained by this record, including the key if it is not the line itself.
+   */
+  long estimateRetainedSize() {
+    long size = OVERHEAD_BYTES + FileUtils.estimateRetainedSize(line);
+    if (key != null && key != line) {
+      size += FileUtils.estimateRetainedSize(key);
+    }
+    return size;
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes records of an {@link ExternalSorter} to its chunk files and reads them back.
+ * <br>
+ * A codec must read exactly the bytes it wrote for a record, the records of a chunk are written one after the other.
+ */
+public interface RecordCodec<T> {
+
+  void write(T record, DataOutput out) throws IOException;
+
+  T read(DataInput in) throws IOException;
+
+  /**
+   * @return a codec for Strings of any length, including null
+   */
+  static RecordCodec<String> strings() {
+    return new RecordCodec<String>() {
+      @Override
+      public void write(String record, DataOutput out) throws IOException {
+        writeString(record, out);
+      }
+
+      @Override
+      public String read(DataInput in) throws IOException {
+        return readString(in);
+      }
+    };
+  }
+
+  /**
+   * @return a codec for lists of Strings such as the rows of a
+   *         {@link org.gbif.utils.file.tabular.TabularDataFileReader}, null lists and values included
+   */
+  static RecordCodec<List<String>> stringLists() {
+    return new RecordCodec<List<String>>() {
+      @Override
+      public void write(List<String> record, DataOutput out) throws IOException {
+        if (record == null) {
+          out.writeInt(-1);
+          return;
+        }
+        out.writeInt(record.size());
+        for (String value : record) {
+          writeString(value, out);
+        }
+      }
+
+      @Override
+      public List<String> read(DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+          return null;
+        }
+        List<String> record = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+          record.add(readString(in));
+        }
+        return record;
+      }
+    };
+  }
+
+  /**
+   * Writes the UTF-8 bytes prefixed by their length, or -1 for null. Unlike {@link DataOutput#writeUTF(String)} this
+   * is not limited to 64 KB.
+   */
+  private static void writeString(String value, DataOutput out) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInput in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
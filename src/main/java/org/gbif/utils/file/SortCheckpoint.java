@@ -0,0 +1,257 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The manifest of the chunks written by a Java sort into a checkpoint directory, see
+ * {@link FileUtils#setSortCheckpointDir(File)}.
+ * <br>
+ * Every chunk is recorded once it is completely written, together with the input and byte offset the sort reached
+ * after reading its lines. Chunks are recorded in input order, a chunk finished by another thread before an earlier
+ * one waits for it. A sort resumed from the manifest keeps the recorded chunks and continues reading at the offset of
+ * the last one, all other files in the directory are deleted.
+ * <br>
+ * The manifest is a text file with one tab separated entry per line: the sort settings, the inputs with their length
+ * and modification time, then the chunks.
+ */
+class SortCheckpoint implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SortCheckpoint.class);
+
+  static final String MANIFEST = "manifest.txt";
+
+  private final File dir;
+  private final List<File> chunks = new ArrayList<>();
+  private final List<Position> positions = new ArrayList<>();
+  private Writer manifest;
+
+  // the position reached by the reading thread, captured for every submitted chunk
+  private int inputIndex;
+  private long offset;
+  private int submitted;
+  private int recorded;
+  private final Map<Integer, Position> pending = new HashMap<>();
+  private final Map<Integer, File> completed = new HashMap<>();
+
+  private static final class Position {
+    private final int inputIndex;
+    private final long offset;
+
+    private Position(int inputIndex, long offset) {
+      this.inputIndex = inputIndex;
+      this.offset = offset;
+    }
+  }
+
+  private SortCheckpoint(File dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * Starts a new manifest, deleting a previous checkpoint in the directory.
+   *
+   * @throws IOException if the directory is not empty and holds no checkpoint, so it is not deleted by mistake
+   */
+  static SortCheckpoint start(
+      File dir, List<File> inputs, SpillCodec codec, boolean keyed, int ignoreHeaderLines)
+      throws IOException {
+    if (dir.exists()) {
+      String[] files = dir.list();
+      if (files == null || (files.length > 0 && !new File(dir, MANIFEST).exists())) {
+        throw new IOException(
+            "Sort checkpoint directory " + dir + " is not an empty directory or a sort checkpoint");
+      }
+      FileUtils.deleteDirectoryRecursively(dir);
+    }
+    FileUtils.createParentDirs(new File(dir, MANIFEST));
+    SortCheckpoint checkpoint = new SortCheckpoint(dir);
+    checkpoint.writeManifest(header(inputs, codec, keyed, ignoreHeaderLines));
+    return checkpoint;
+  }
+
+  /**
+   * Reads the manifest of an interrupted sort of the same inputs with the same settings.
+   *
+   * @throws IOException if there is no manifest or it was written for other inputs or settings
+   */
+  static SortCheckpoint resume(
+      File dir, List<File> inputs, SpillCodec codec, boolean keyed, int ignoreHeaderLines)
+      throws IOException {
+    File manifestFile = new File(dir, MANIFEST);
+    if (!manifestFile.exists()) {
+      throw new IOException("No sort checkpoint to resume in " + dir);
+    }
+    List<String> header = header(inputs, codec, keyed, ignoreHeaderLines);
+    List<String> lines = Files.readAllLines(manifestFile.toPath(), StandardCharsets.UTF_8);
+    if (lines.size() < header.size() || !header.equals(lines.subList(0, header.size()))) {
+      throw new IOException("Sort checkpoint in " + dir + " was written for other inputs or settings");
+    }
+    SortCheckpoint checkpoint = new SortCheckpoint(dir);
+    for (String line : lines.subList(header.size(), lines.size())) {
+      String[] entry = line.split("\t");
+      // the last line may be incomplete, and chunks after a missing one are not usable
+      if (entry.length != 4 || !"chunk".equals(entry[0])) {
+        break;
+      }
+      File chunk = new File(dir, entry[1]);
+      if (!chunk.exists()) {
+        break;
+      }
+      checkpoint.chunks.add(chunk);
+      checkpoint.positions.add(
+          new Position(Integer.parseInt(entry[2]), Long.parseLong(entry[3])));
+    }
+    // remove chunks that were not recorded and the files of an interrupted merge
+    Set<File> keep = new HashSet<>(checkpoint.chunks);
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        if (!keep.contains(f)) {
+          if (f.isDirectory()) {
+            FileUtils.deleteDirectoryRecursively(f);
+          } else {
+            f.delete();
+          }
+        }
+      }
+    }
+    List<String> manifestLines = new ArrayList<>(header);
+    for (int i = 0; i < checkpoint.chunks.size(); i++) {
+      manifestLines.add(checkpoint.entry(checkpoint.chunks.get(i), checkpoint.positions.get(i)));
+    }
+    checkpoint.writeManifest(manifestLines);
+    LOG.info(
+        "Resuming sort from {} chunks in {}, at byte {} of input {}",
+        checkpoint.chunks.size(),
+        dir,
+        checkpoint.getOffset(),
+        checkpoint.getInputIndex());
+    return checkpoint;
+  }
+
+  private static List<String> header(
+      List<File> inputs, SpillCodec codec, boolean keyed, int ignoreHeaderLines) {
+    List<String> header = new ArrayList<>();
+    header.add(
+        "sort\t" + codec + '\t' + keyed + '\t' + ignoreHeaderLines + '\t' + inputs.size());
+    for (File input : inputs) {
+      header.add(
+          "input\t" + input.getAbsolutePath() + '\t' + input.length() + '\t' + input.lastModified());
+    }
+    return header;
+  }
+
+  private void writeManifest(List<String> lines) throws IOException {
+    manifest =
+        new BufferedWriter(
+            new OutputStreamWriter(
+                new FileOutputStream(new File(dir, MANIFEST)), StandardCharsets.UTF_8));
+    for (String line : lines) {
+      manifest.write(line);
+      manifest.write('\n');
+    }
+    manifest.flush();
+  }
+
+  private String entry(File chunk, Position position) {
+    return "chunk\t" + chunk.getName() + '\t' + position.inputIndex + '\t' + position.offset;
+  }
+
+  /**
+   * @return the recorded chunks in input order
+   */
+  List<File> getChunks() {
+    return chunks;
+  }
+
+  /**
+   * @return the input to continue reading
+   */
+  int getInputIndex() {
+    return positions.isEmpty() ? 0 : positions.get(positions.size() - 1).inputIndex;
+  }
+
+  /**
+   * @return the byte offset to continue reading the input at
+   */
+  long getOffset() {
+    return positions.isEmpty() ? 0 : positions.get(positions.size() - 1).offset;
+  }
+
+  /**
+   * @return the number of recorded chunks read from the input
+   */
+  int countChunks(int inputIndex) {
+    return (int) positions.stream().filter(p -> p.inputIndex == inputIndex).count();
+  }
+
+  /**
+   * Sets the position reached by the reading thread, recorded with the next submitted chunk.
+   */
+  synchronized void setPosition(int inputIndex, long offset) {
+    this.inputIndex = inputIndex;
+    this.offset = offset;
+  }
+
+  /**
+   * Registers a submitted chunk at the current position.
+   *
+   * @return the sequence number of the chunk
+   */
+  synchronized int submit() {
+    pending.put(submitted, new Position(inputIndex, offset));
+    return submitted++;
+  }
+
+  /**
+   * Records a completely written chunk, once all chunks submitted before it are recorded too.
+   */
+  synchronized void completed(int sequence, File chunk) throws IOException {
+    completed.put(sequence, chunk);
+    while (completed.containsKey(recorded)) {
+      File f = completed.remove(recorded);
+      Position position = pending.remove(recorded);
+      recorded++;
+      chunks.add(f);
+      positions.add(position);
+      manifest.write(entry(f, position));
+      manifest.write('\n');
+      manifest.flush();
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    manifest.close();
+  }
+}
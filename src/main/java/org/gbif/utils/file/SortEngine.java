@@ -0,0 +1,39 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import java.io.IOException;
+
+/**
+ * Sorts files for {@link FileUtils#sort}.
+ * <br>
+ * FileUtils asks its engines in order (see {@link FileUtils#setSortEngines(java.util.List)}) and runs the first that
+ * can sort the request. The engine reads its settings, such as threads, memory budget and temporary directory, from
+ * the FileUtils instance. Engines must be safe to use from several threads at once.
+ */
+public interface SortEngine {
+
+  /**
+   * @return true if this engine supports the columns, quoting, encoding and settings of the sort
+   */
+  boolean canSort(SortRequest request, FileUtils settings);
+
+  /**
+   * Sorts the inputs of the request into the sorted file, including the header lines of the first input.
+   *
+   * @return false if the engine failed in a way that allows the next engine to try, e.g. an external command that
+   *         exited with an error
+   */
+  boolean sort(SortRequest request, FileUtils settings) throws IOException;
+}
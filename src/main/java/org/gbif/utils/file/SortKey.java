@@ -0,0 +1,321 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.text.StrTokenizer;
+
+/**
+ * Specifies how delimited lines are sorted: by one or more columns, each compared as a string or a number, in
+ * ascending or descending order.
+ * <br>
+ * For example, to sort by datasetKey, then taxonKey numerically, then eventDate with the latest first:
+ * <pre>
+ * SortKey.by(0).thenBy(3, SortKey.Type.NUMERIC, false).thenBy(5, SortKey.Type.STRING, true)
+ * </pre>
+ * Columns are compared the way GNU sort compares them in the C locale with -s, so both sort engines produce the same
+ * order:
+ * <ul>
+ *   <li>strings are compared by their characters, a missing or empty column is an empty string</li>
+ *   <li>numbers are decimals with an optional leading minus, read from the start of the column after leading blanks.
+ *   Columns that do not start with a number compare as zero</li>
+ *   <li>lines with equal keys keep their input order</li>
+ * </ul>
+ * The Java sort extracts the key of every line once as a single String which sorts in natural order, see
+ * {@link #keyExtractor(String, Character)}.
+ */
+public final class SortKey {
+
+  public enum Type {
+    STRING,
+    NUMERIC
+  }
+
+  /**
+   * A single column of the key.
+   */
+  public static final class Column {
+    private final int column;
+    private final Type type;
+    private final boolean descending;
+
+    private Column(int column, Type type, boolean descending) {
+      if (column < 0) {
+        throw new IllegalArgumentException("Column index cannot be negative");
+      }
+      this.column = column;
+      this.type = Objects.requireNonNull(type);
+      this.descending = descending;
+    }
+
+    public int getColumn() {
+      return column;
+    }
+
+    public Type getType() {
+      return type;
+    }
+
+    public boolean isDescending() {
+      return descending;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      Column that = (Column) o;
+      return column == that.column && descending == that.descending && type == that.type;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(column, type, descending);
+    }
+
+    @Override
+    public String toString() {
+      return column + " " + type + (descending ? " desc" : "");
+    }
+  }
+
+  // the leading decimal number of a column as read by sort -n
+  private static final Pattern NUMBER = Pattern.compile("^[ \\t]*(-?)(\\d*)(?:\\.(\\d*))?");
+
+  // terminates an ascending segment, lower than any escaped character
+  private static final char END = '\u0000';
+  // escapes the characters 0 and 1 in a segment
+  private static final char ESCAPE = '\u0001';
+  // terminates a negative number, higher than any complemented digit
+  private static final char NEGATIVE_END = '\uFFFE';
+
+  private final List<Column> columns;
+
+  private SortKey(List<Column> columns) {
+    this.columns = Collections.unmodifiableList(columns);
+  }
+
+  /**
+   * @return a key sorting by the string value of the column in ascending order
+   */
+  public static SortKey by(int column) {
+    return by(column, Type.STRING, false);
+  }
+
+  public static SortKey by(int column, Type type, boolean descending) {
+    List<Column> columns = new ArrayList<>();
+    columns.add(new Column(column, type, descending));
+    return new SortKey(columns);
+  }
+
+  /**
+   * @return a new key sorting lines with equal values in the columns of this key by the string value of the column in
+   *         ascending order
+   */
+  public SortKey thenBy(int column) {
+    return thenBy(column, Type.STRING, false);
+  }
+
+  /**
+   * @return a new key sorting lines with equal values in the columns of this key by the given column
+   */
+  public SortKey thenBy(int column, Type type, boolean descending) {
+    List<Column> extended = new ArrayList<>(columns);
+    extended.add(new Column(column, type, descending));
+    return new SortKey(extended);
+  }
+
+  public List<Column> getColumns() {
+    return columns;
+  }
+
+  /**
+   * Creates a thread safe function that extracts the key of a line. The keys sort in natural String order.
+   *
+   * @param columnDelimiter the delimiter that separates columns in a row
+   * @param quoteChar optional column enclosing character, e.g. a double quote for CSVs
+   */
+  public Function<String, String> keyExtractor(String columnDelimiter, Character quoteChar) {
+    ThreadLocal<StrTokenizer> tokenizer =
+        ThreadLocal.withInitial(
+            () -> {
+              StrTokenizer t = new StrTokenizer();
+              t.setEmptyTokenAsNull(true);
+              t.setIgnoreEmptyTokens(false);
+              if (quoteChar != null) {
+                t.setQuoteChar(quoteChar);
+              }
+              t.setDelimiterString(columnDelimiter);
+              return t;
+            });
+    return line -> {
+      StrTokenizer t = tokenizer.get();
+      t.reset(line);
+      return encode(t.getTokenArray());
+    };
+  }
+
+  /**
+   * Creates a thread safe comparator for lines ordering them by this key. Prefer sorting by extracted keys, this
+   * comparator extracts the keys of both lines on every comparison.
+   *
+   * @param columnDelimiter the delimiter that separates columns in a row
+   * @param quoteChar optional column enclosing character, e.g. a double quote for CSVs
+   */
+  public Comparator<String> comparator(String columnDelimiter, Character quoteChar) {
+    return Comparator.comparing(keyExtractor(columnDelimiter, quoteChar));
+  }
+
+  /**
+   * @return the GNU sort key arguments equivalent to this key, e.g. "-k1,1 -k4,4n -k6,6r", columns counted from 1
+   */
+  String toGnuSortArgs() {
+    StringBuilder sb = new StringBuilder();
+    for (Column c : columns) {
+      if (sb.length() > 0) {
+        sb.append(' ');
+      }
+      sb.append("-k").append(c.column + 1).append(',').append(c.column + 1);
+      if (c.type == Type.NUMERIC) {
+        sb.append('n');
+      }
+      if (c.descending) {
+        sb.append('r');
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Encodes the key columns into a single String that sorts in natural order as the columns do.
+   * <br>
+   * Every column becomes a segment with the characters 0 and 1 escaped and terminated by 0, so a shorter value sorts
+   * before a longer one it is a prefix of. Descending segments are complemented character by character, with the
+   * highest character as terminator.
+   */
+  String encode(String[] tokens) {
+    StringBuilder key = new StringBuilder();
+    StringBuilder segment = new StringBuilder();
+    for (Column c : columns) {
+      String value = tokens != null && tokens.length > c.column ? tokens[c.column] : null;
+      segment.setLength(0);
+      if (c.type == Type.NUMERIC) {
+        encodeNumber(value, segment);
+      } else if (value != null) {
+        segment.append(value);
+      }
+      for (int i = 0; i < segment.length(); i++) {
+        char ch = segment.charAt(i);
+        if (ch <= ESCAPE) {
+          appendSegmentChar(key, ESCAPE, c.descending);
+          appendSegmentChar(key, (char) (ch + 1), c.descending);
+        } else {
+          appendSegmentChar(key, ch, c.descending);
+        }
+      }
+      key.append(c.descending ? Character.MAX_VALUE : END);
+    }
+    return key.toString();
+  }
+
+  private static void appendSegmentChar(StringBuilder key, char ch, boolean descending) {
+    key.append(descending ? (char) (Character.MAX_VALUE - ch) : ch);
+  }
+
+  /**
+   * Encodes a number so that the encodings sort in numeric order: a sign class, then for non zero numbers the decimal
+   * exponent and the significant digits, both complemented for negative numbers.
+   */
+  static void encodeNumber(String value, StringBuilder sb) {
+    BigDecimal number = parseNumber(value);
+    int signum = number.signum();
+    if (signum == 0) {
+      sb.append('1');
+      return;
+    }
+    BigDecimal magnitude = number.abs().stripTrailingZeros();
+    String digits = magnitude.unscaledValue().toString();
+    // the exponent of the first significant digit, as an unsigned value of two chars
+    long exponent = (long) digits.length() - magnitude.scale() - 1 + Integer.MAX_VALUE + 1;
+    boolean negative = signum < 0;
+    sb.append(negative ? '0' : '2');
+    appendNumberChar(sb, (char) (exponent >>> 16), negative);
+    appendNumberChar(sb, (char) exponent, negative);
+    for (int i = 0; i < digits.length(); i++) {
+      appendNumberChar(sb, digits.charAt(i), negative);
+    }
+    if (negative) {
+      sb.append(NEGATIVE_END);
+    }
+  }
+
+  private static void appendNumberChar(StringBuilder sb, char ch, boolean negative) {
+    sb.append(negative ? (char) (Character.MAX_VALUE - ch) : ch);
+  }
+
+  /**
+   * @return the leading decimal number of the value, zero if there is none
+   */
+  static BigDecimal parseNumber(String value) {
+    if (value == null) {
+      return BigDecimal.ZERO;
+    }
+    Matcher m = NUMBER.matcher(value);
+    if (!m.find()) {
+      return BigDecimal.ZERO;
+    }
+    String integer = m.group(2);
+    String fraction = m.group(3) == null ? "" : m.group(3);
+    if (integer.isEmpty() && fraction.isEmpty()) {
+      return BigDecimal.ZERO;
+    }
+    BigDecimal number =
+        new BigDecimal((integer.isEmpty() ? "0" : integer) + '.' + fraction + '0');
+    return m.group(1).isEmpty() ? number : number.negate();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    return columns.equals(((SortKey) o).columns);
+  }
+
+  @Override
+  public int hashCode() {
+    return columns.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "SortKey" + columns;
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import org.gbif.utils.text.LineComparator;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A single file sort as requested from {@link FileUtils}, handed to the {@link SortEngine}s to select one and run it.
+ */
+public final class SortRequest {
+
+  private final List<File> inputs;
+  private final File sorted;
+  private final String encoding;
+  private final SortKey sortKey;
+  private final int column;
+  private final String columnDelimiter;
+  private final Character enclosedBy;
+  private final String newlineDelimiter;
+  private final int ignoreHeaderLines;
+  private final Comparator<String> lineComparator;
+  private final boolean ignoreCase;
+  private final boolean naturalOrder;
+
+  /**
+   * @param sortKey the columns to sort on, or null to sort on the single column
+   * @param lineComparator the comparator of the Java sort, or null for the default of the sort key or column
+   * @param naturalOrder true if the lineComparator compares the column in natural order
+   */
+  SortRequest(
+      List<File> inputs,
+      File sorted,
+      String encoding,
+      SortKey sortKey,
+      int column,
+      String columnDelimiter,
+      Character enclosedBy,
+      String newlineDelimiter,
+      int ignoreHeaderLines,
+      Comparator<String> lineComparator,
+      boolean ignoreCase,
+      boolean naturalOrder) {
+    this.inputs = Collections.unmodifiableList(inputs);
+    this.sorted = sorted;
+    this.encoding = encoding == null ? FileUtils.UTF8 : encoding;
+    this.sortKey = sortKey;
+    this.column = column;
+    this.columnDelimiter = columnDelimiter;
+    this.enclosedBy = enclosedBy;
+    this.newlineDelimiter = newlineDelimiter;
+    this.ignoreHeaderLines = ignoreHeaderLines;
+    if (lineComparator != null) {
+      this.lineComparator = lineComparator;
+    } else if (sortKey != null) {
+      this.lineComparator = sortKey.comparator(columnDelimiter, enclosedBy);
+    } else {
+      this.lineComparator = new LineComparator(column, columnDelimiter, enclosedBy);
+    }
+    this.ignoreCase = ignoreCase;
+    this.naturalOrder = naturalOrder;
+  }
+
+  public List<File> getInputs() {
+    return inputs;
+  }
+
+  public File getSorted() {
+    return sorted;
+  }
+
+  public String getEncoding() {
+    return encoding;
+  }
+
+  /**
+   * @return the columns to sort on, or null if the lines are sorted on {@link #getColumn()}
+   */
+  public SortKey getSortKey() {
+    return sortKey;
+  }
+
+  /**
+   * @return the single column to sort on, if no sort key is given
+   */
+  public int getColumn() {
+    return column;
+  }
+
+  public String getColumnDelimiter() {
+    return columnDelimiter;
+  }
+
+  public Character getEnclosedBy() {
+    return enclosedBy;
+  }
+
+  public String getNewlineDelimiter() {
+    return newlineDelimiter;
+  }
+
+  public int getIgnoreHeaderLines() {
+    return ignoreHeaderLines;
+  }
+
+  /**
+   * @return the comparator defining the order of the lines, used by engines sorting in Java
+   */
+  public Comparator<String> getLineComparator() {
+    return lineComparator;
+  }
+
+  public boolean isIgnoreCase() {
+    return ignoreCase;
+  }
+
+  /**
+   * @return true if the lines are ordered by the natural String order of the column, which engines can reproduce
+   *         without the line comparator
+   */
+  public boolean isNaturalOrder() {
+    return naturalOrder;
+  }
+
+  /**
+   * @return true if lines are terminated by \n, optionally preceded by \r
+   */
+  public boolean isNewlineTerminated() {
+    return newlineDelimiter != null && newlineDelimiter.contains("\n");
+  }
+
+  @Override
+  public String toString() {
+    return "SortRequest{"
+        + "inputs="
+        + inputs
+        + ", sorted="
+        + sorted
+        + ", sortKey="
+        + (sortKey == null ? column : sortKey)
+        + '}';
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * K-way merge of sorted chunks into a single sorted sequence of records.
+ * <br>
+ * The current record of every chunk is kept in a binary min-heap, so producing a record costs O(log k) comparisons
+ * for k chunks. Equal records are returned in the order of the chunks, which keeps the merge stable across chunks.
+ * <br>
+ * A chunk only moves on to its next record when the merger does, so a chunk may return itself or any other mutable
+ * holder as its record, see {@link SortedLineMerger}.
+ *
+ * @param <T> the type of the merged records
+ */
+class SortedChunkMerger<T> implements Closeable {
+
+  /**
+   * A sorted chunk, read one record after the other.
+   */
+  interface Chunk<T> extends Closeable {
+
+    /**
+     * Moves to the next record.
+     *
+     * @return false at the end of the chunk
+     */
+    boolean next() throws IOException;
+
+    /**
+     * @return the current record
+     */
+    T record();
+  }
+
+  private final Comparator<? super T> comparator;
+  private final Head<T>[] heap;
+  private int size;
+  // false until the first call of next(), later calls first move the chunk of the last record on
+  private boolean started;
+
+  private static final class Head<T> {
+    private final int index;
+    private final Chunk<T> chunk;
+
+    private Head(int index, Chunk<T> chunk) {
+      this.index = index;
+      this.chunk = chunk;
+    }
+  }
+
+  /**
+   * @param chunks sorted chunks to merge, closed by this merger
+   * @param comparator comparator the chunks are sorted with
+   */
+  @SuppressWarnings("unchecked")
+  SortedChunkMerger(List<? extends Chunk<T>> chunks, Comparator<? super T> comparator)
+      throws IOException {
+    this.comparator = comparator;
+    this.heap = new Head[chunks.size()];
+    try {
+      for (int i = 0; i < chunks.size(); i++) {
+        Chunk<T> chunk = chunks.get(i);
+        if (chunk.next()) {
+          heap[size++] = new Head<>(i, chunk);
+        } else {
+          chunk.close();
+        }
+      }
+      for (int i = size / 2 - 1; i >= 0; i--) {
+        siftDown(i);
+      }
+    } catch (IOException | RuntimeException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Moves to the next record in sort order.
+   *
+   * @return false when all chunks are exhausted
+   */
+  boolean next() throws IOException {
+    if (started && size > 0) {
+      Head<T> top = heap[0];
+      if (!top.chunk.next()) {
+        top.chunk.close();
+        heap[0] = heap[--size];
+        heap[size] = null;
+      }
+      if (size > 1) {
+        siftDown(0);
+      }
+    }
+    started = true;
+    return size > 0;
+  }
+
+  /**
+   * @return the record {@link #next()} moved to
+   */
+  T record() {
+    return heap[0].chunk.record();
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOException error = null;
+    for (int i = 0; i < size; i++) {
+      try {
+        heap[i].chunk.close();
+      } catch (IOException e) {
+        error = e;
+      }
+      heap[i] = null;
+    }
+    size = 0;
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  private void siftDown(int i) {
+    Head<T> head = heap[i];
+    int half = size >>> 1;
+    while (i < half) {
+      int child = 2 * i + 1;
+      int right = child + 1;
+      if (right < size && less(heap[right], heap[child])) {
+        child = right;
+      }
+      if (!less(heap[child], head)) {
+        break;
+      }
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = head;
+  }
+
+  private boolean less(Head<T> a, Head<T> b) {
+    int cmp = comparator.compare(a.chunk.record(), b.chunk.record());
+    return cmp < 0 || (cmp == 0 && a.index < b.index);
+  }
+}
@@ -0,0 +1,369 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import org.gbif.utils.text.LineComparator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A sparse index over a file sorted by a single column, for lookups by key without reading the whole file.
+ * <br>
+ * The index keeps the first key of every block of about blockSize bytes together with the byte offset of the block.
+ * It is stored next to the sorted file with the suffix {@value #SUFFIX}, see {@link FileUtils#setSortIndexBlockSize(int)}
+ * to write it as part of the sort.
+ * <br>
+ * A lookup finds the block with a binary search in memory and reads the file from there, so it costs O(log n) plus
+ * usually a single block read. Lines with a missing or empty key are never returned, they may be sorted first or last.
+ * Lookups are thread safe.
+ * <br>
+ * The index records the length and modification time of the sorted file, and is refused if the file has changed
+ * since.
+ */
+public class SortedFileIndex implements Closeable {
+
+  public static final String SUFFIX = ".idx";
+
+  // the second version of the format, with the length and modification time of the sorted file
+  private static final int MAGIC = 0x47534932;
+
+  private final String encoding;
+  private final LineComparator lineComparator;
+  private final Comparator<String> keyComparator;
+  private final int blockSize;
+  private final String[] keys;
+  private final long[] offsets;
+  private final long dataStart;
+  private final FileChannel channel;
+
+  private SortedFileIndex(
+      File sorted,
+      String encoding,
+      LineComparator lineComparator,
+      int blockSize,
+      long dataStart,
+      String[] keys,
+      long[] offsets)
+      throws IOException {
+    this.encoding = encoding;
+    this.lineComparator = lineComparator;
+    this.keyComparator = lineComparator.getColumnComparator();
+    this.blockSize = blockSize;
+    this.dataStart = dataStart;
+    this.keys = keys;
+    this.offsets = offsets;
+    this.channel = FileChannel.open(sorted.toPath(), StandardOpenOption.READ);
+  }
+
+  /**
+   * @return the file the index of the sorted file is stored in
+   */
+  public static File indexFile(File sorted) {
+    return new File(sorted.getPath() + SUFFIX);
+  }
+
+  /**
+   * Scans a sorted file and writes its index.
+   *
+   * @param sorted the file sorted by the column of the comparator
+   * @param encoding the encoding of the file, which must encode the newline as a single byte, such as UTF-8
+   * @param lineComparator the comparator the file is sorted with, comparing the column in natural order
+   * @param ignoreHeaderLines number of beginning lines that are not sorted
+   * @param blockSize the approximate number of bytes per index entry
+   */
+  public static void write(
+      File sorted,
+      String encoding,
+      LineComparator lineComparator,
+      int ignoreHeaderLines,
+      int blockSize)
+      throws IOException {
+    checkEncoding(encoding);
+    if (blockSize <= 0) {
+      throw new IllegalArgumentException("Block size must be positive");
+    }
+    Charset charset = Charset.forName(encoding);
+    // taken before the scan, so a change during the scan makes the index stale
+    long fileLength = sorted.length();
+    long lastModified = sorted.lastModified();
+    List<String> keys = new ArrayList<>();
+    List<Long> offsets = new ArrayList<>();
+    long dataStart = 0;
+    try (InputStream in = new FileInputStream(sorted)) {
+      byte[] buffer = new byte[SpillCodec.BUFFER_SIZE];
+      byte[] line = new byte[256];
+      int length = 0;
+      long offset = 0;
+      long lineStart = 0;
+      long nextBlock = 0;
+      long blockStart = 0;
+      boolean inBlock = false;
+      int headerLines = ignoreHeaderLines;
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        for (int i = 0; i < read; i++) {
+          offset++;
+          if (buffer[i] != '\n') {
+            // only lines that may hold the first key of a block are kept
+            if (inBlock || lineStart >= nextBlock) {
+              if (length == line.length) {
+                line = Arrays.copyOf(line, length * 2);
+              }
+              line[length++] = buffer[i];
+            }
+            continue;
+          }
+          if (headerLines > 0) {
+            headerLines--;
+            dataStart = offset;
+            nextBlock = offset;
+          } else {
+            if (lineStart >= nextBlock) {
+              // a new block starts with this line
+              inBlock = true;
+              blockStart = lineStart;
+              nextBlock = lineStart + blockSize;
+            }
+            if (inBlock) {
+              String key = key(lineComparator, line, length, charset);
+              if (key != null) {
+                keys.add(key);
+                offsets.add(blockStart);
+                inBlock = false;
+              }
+            }
+          }
+          length = 0;
+          lineStart = offset;
+        }
+      }
+      // a last line without newline
+      if (offset > lineStart && headerLines == 0 && (inBlock || lineStart >= nextBlock)) {
+        String key = key(lineComparator, line, length, charset);
+        if (key != null) {
+          keys.add(key);
+          offsets.add(inBlock ? blockStart : lineStart);
+        }
+      }
+    }
+
+    try (DataOutputStream out =
+        new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(indexFile(sorted)), SpillCodec.BUFFER_SIZE))) {
+      out.writeInt(MAGIC);
+      out.writeLong(fileLength);
+      out.writeLong(lastModified);
+      out.writeInt(blockSize);
+      out.writeLong(dataStart);
+      out.writeInt(keys.size());
+      for (int i = 0; i < keys.size(); i++) {
+        byte[] key = keys.get(i).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(key.length);
+        out.write(key);
+        out.writeLong(offsets.get(i));
+      }
+    }
+  }
+
+  private static String key(LineComparator lineComparator, byte[] line, int length, Charset charset) {
+    if (length > 0 && line[length - 1] == '\r') {
+      length--;
+    }
+    return lineComparator.getKey(new String(line, 0, length, charset));
+  }
+
+  /**
+   * Opens the index written for a sorted file.
+   *
+   * @param sorted the sorted file, its index is read from {@link #indexFile(File)}
+   * @param encoding the encoding of the sorted file
+   * @param lineComparator the comparator the file is sorted with, comparing the column in natural order
+   * @throws IOException if the index is missing or was written for a different version of the sorted file
+   */
+  public static SortedFileIndex open(File sorted, String encoding, LineComparator lineComparator)
+      throws IOException {
+    checkEncoding(encoding);
+    try (DataInputStream in =
+        new DataInputStream(
+            new BufferedInputStream(new FileInputStream(indexFile(sorted)), SpillCodec.BUFFER_SIZE))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a sorted file index of this version: " + indexFile(sorted));
+      }
+      long fileLength = in.readLong();
+      long lastModified = in.readLong();
+      if (fileLength != sorted.length() || lastModified != sorted.lastModified()) {
+        throw new IOException(
+            "Index " + indexFile(sorted) + " is stale, sorted file " + sorted + " has changed since it was written");
+      }
+      int blockSize = in.readInt();
+      long dataStart = in.readLong();
+      int size = in.readInt();
+      String[] keys = new String[size];
+      long[] offsets = new long[size];
+      for (int i = 0; i < size; i++) {
+        byte[] key = new byte[in.readInt()];
+        in.readFully(key);
+        keys[i] = new String(key, StandardCharsets.UTF_8);
+        offsets[i] = in.readLong();
+      }
+      return new SortedFileIndex(
+          sorted, encoding, lineComparator, blockSize, dataStart, keys, offsets);
+    }
+  }
+
+  private static void checkEncoding(String encoding) {
+    if (!ByteSortEngine.isByteOrdered(encoding)) {
+      throw new IllegalArgumentException("Cannot index " + encoding + " encoded files");
+    }
+  }
+
+  /**
+   * @return the number of index entries
+   */
+  public int size() {
+    return keys.length;
+  }
+
+  /**
+   * @return all lines with the key, in file order
+   */
+  public List<String> get(String key) throws IOException {
+    return range(key, key, true);
+  }
+
+  /**
+   * @return all lines with a key from fromKey inclusive to toKey exclusive, in file order
+   */
+  public List<String> range(String fromKey, String toKey) throws IOException {
+    return range(fromKey, toKey, false);
+  }
+
+  private List<String> range(String fromKey, String toKey, boolean toInclusive)
+      throws IOException {
+    List<String> lines = new ArrayList<>();
+    // lines with the first key can start in the block before the first block starting with a larger or equal key
+    int block = lowerBlock(fromKey);
+    long start = block < 0 ? dataStart : offsets[block];
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(new ChannelInputStream(start), encoding), blockSize)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String key = lineComparator.getKey(line);
+        if (key == null) {
+          continue;
+        }
+        if (keyComparator.compare(key, fromKey) < 0) {
+          continue;
+        }
+        int cmp = keyComparator.compare(key, toKey);
+        if (cmp > 0 || (cmp == 0 && !toInclusive)) {
+          break;
+        }
+        lines.add(line);
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * @return the last block with a first key smaller than the key, or -1 if there is none
+   */
+  private int lowerBlock(String key) {
+    int low = 0;
+    int high = keys.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (keyComparator.compare(keys[mid], key) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low - 1;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Reads the file from an offset with positional reads, so concurrent lookups do not share a position.
+   */
+  private class ChannelInputStream extends InputStream {
+    private final ByteBuffer buffer = ByteBuffer.allocate(Math.max(blockSize, 8 * 1024));
+    private long position;
+
+    private ChannelInputStream(long position) {
+      this.position = position;
+      buffer.limit(0);
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!fill()) {
+        return -1;
+      }
+      return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!fill()) {
+        return -1;
+      }
+      int n = Math.min(len, buffer.remaining());
+      buffer.get(b, off, n);
+      return n;
+    }
+
+    private boolean fill() throws IOException {
+      if (buffer.hasRemaining()) {
+        return true;
+      }
+      buffer.clear();
+      int read = channel.read(buffer, position);
+      buffer.flip();
+      if (read <= 0) {
+        return false;
+      }
+      position += read;
+      return true;
+    }
+  }
+}
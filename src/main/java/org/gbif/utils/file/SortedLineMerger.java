@@ -0,0 +1,117 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * K-way merge of sorted chunk readers into a single sorted sequence of lines, on a {@link SortedChunkMerger}.
+ * <br>
+ * The comparator is applied to the {@link ChunkReader#getKey() keys} of the readers, which are the lines themselves
+ * unless the chunks were written with extracted sort keys. Optionally lines with equal keys are ordered by the whole
+ * line before the order of the readers.
+ */
+class SortedLineMerger implements Closeable {
+
+  private final SortedChunkMerger<LineChunk> merger;
+  private String key;
+
+  /**
+   * The current line and key of a reader. The chunk is its own record, as the merger only reads the next line once
+   * the current one was returned.
+   */
+  private static final class LineChunk implements SortedChunkMerger.Chunk<LineChunk> {
+    private final ChunkReader reader;
+    private String line;
+    private String key;
+
+    private LineChunk(ChunkReader reader) {
+      this.reader = reader;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+      line = reader.readLine();
+      key = reader.getKey();
+      return line != null;
+    }
+
+    @Override
+    public LineChunk record() {
+      return this;
+    }
+
+    @Override
+    public void close() throws IOException {
+      reader.close();
+    }
+  }
+
+  /**
+   * @param readers sorted readers to merge, closed by this merger
+   * @param lineComparator comparator the readers are sorted with, comparing their keys
+   */
+  SortedLineMerger(List<? extends ChunkReader> readers, Comparator<String> lineComparator)
+      throws IOException {
+    this(readers, lineComparator, false);
+  }
+
+  /**
+   * @param readers sorted readers to merge, closed by this merger
+   * @param lineComparator comparator the readers are sorted with, comparing their keys
+   * @param thenByLine true if lines with equal keys are sorted in natural order in the readers
+   */
+  SortedLineMerger(
+      List<? extends ChunkReader> readers, Comparator<String> lineComparator, boolean thenByLine)
+      throws IOException {
+    List<LineChunk> chunks = new ArrayList<>(readers.size());
+    for (ChunkReader reader : readers) {
+      chunks.add(new LineChunk(reader));
+    }
+    Comparator<LineChunk> comparator = (a, b) -> lineComparator.compare(a.key, b.key);
+    if (thenByLine) {
+      comparator = comparator.thenComparing(c -> c.line);
+    }
+    merger = new SortedChunkMerger<>(chunks, comparator);
+  }
+
+  /**
+   * @return the next line in sort order, or null when all readers are exhausted
+   */
+  String readLine() throws IOException {
+    if (!merger.next()) {
+      key = null;
+      return null;
+    }
+    LineChunk chunk = merger.record();
+    key = chunk.key;
+    return chunk.line;
+  }
+
+  /**
+   * @return the key of the line returned last by {@link #readLine()}
+   */
+  String getKey() {
+    return key;
+  }
+
+  @Override
+  public void close() throws IOException {
+    merger.close();
+  }
+}
@@ -0,0 +1,347 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The format used to write the intermediary chunk files of the Java sort.
+ * <br>
+ * Chunks are always written and read in UTF-8, independent of the encoding of the sorted file. The binary formats can
+ * also store the extracted sort key of every line.
+ */
+public enum SpillCodec {
+
+  /**
+   * Newline terminated UTF-8 text, the same as the merged output.
+   */
+  TEXT {
+    @Override
+    ChunkWriter newWriter(File file, boolean keyed) throws IOException {
+      if (keyed) {
+        throw new IllegalArgumentException("Text chunks cannot store sort keys");
+      }
+      OutputStream out = newOutputStream(file);
+      return new ChunkWriter() {
+        private long rawBytes;
+
+        @Override
+        public void write(String line) throws IOException {
+          byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+          out.write(bytes);
+          out.write('\n');
+          rawBytes += bytes.length + 1;
+        }
+
+        @Override
+        public void write(String key, String line) {
+          throw new UnsupportedOperationException("Text chunks cannot store sort keys");
+        }
+
+        @Override
+        public long getRawBytes() {
+          return rawBytes;
+        }
+
+        @Override
+        public void close() throws IOException {
+          out.close();
+        }
+      };
+    }
+
+    @Override
+    ChunkReader newReader(File file, boolean keyed, int bufferSize) throws IOException {
+      if (keyed) {
+        throw new IllegalArgumentException("Text chunks cannot store sort keys");
+      }
+      BufferedReader reader =
+          new BufferedReader(
+              new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8),
+              bufferSize);
+      return new ChunkReader() {
+        private String line;
+
+        @Override
+        public String readLine() throws IOException {
+          line = reader.readLine();
+          return line;
+        }
+
+        @Override
+        public String getKey() {
+          return line;
+        }
+
+        @Override
+        public void close() throws IOException {
+          reader.close();
+        }
+      };
+    }
+  },
+
+  /**
+   * Length prefixed UTF-8 records without compression.
+   */
+  BINARY {
+    @Override
+    ChunkWriter newWriter(File file, boolean keyed) throws IOException {
+      return new RecordWriter(newOutputStream(file), keyed);
+    }
+
+    @Override
+    ChunkReader newReader(File file, boolean keyed, int bufferSize) throws IOException {
+      return new RecordReader(newInputStream(file, bufferSize), keyed);
+    }
+  },
+
+  /**
+   * Length prefixed UTF-8 records compressed with Deflate at its fastest level. Reduces the temporary disk space and
+   * I/O considerably at a small CPU cost, useful on slow or network disks.
+   */
+  DEFLATE {
+    @Override
+    ChunkWriter newWriter(File file, boolean keyed) throws IOException {
+      return new RecordWriter(newOutputStream(file), keyed);
+    }
+
+    @Override
+    ChunkReader newReader(File file, boolean keyed, int bufferSize) throws IOException {
+      return new RecordReader(newInputStream(file, bufferSize), keyed);
+    }
+
+    @Override
+    OutputStream newOutputStream(File file) throws IOException {
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      return new BufferedOutputStream(
+          new DeflaterOutputStream(new FileOutputStream(file), deflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+              try {
+                super.close();
+              } finally {
+                deflater.end();
+              }
+            }
+          },
+          BUFFER_SIZE);
+    }
+
+    @Override
+    InputStream newInputStream(File file, int bufferSize) throws IOException {
+      Inflater inflater = new Inflater();
+      return new BufferedInputStream(
+          new InflaterInputStream(new FileInputStream(file), inflater, bufferSize) {
+            @Override
+            public void close() throws IOException {
+              try {
+                super.close();
+              } finally {
+                inflater.end();
+              }
+            }
+          },
+          bufferSize);
+    }
+  };
+
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Opens a chunk file for writing raw bytes, compressed if the codec compresses. Also used for the chunks of an
+   * {@link ExternalSorter}.
+   */
+  OutputStream newOutputStream(File file) throws IOException {
+    return new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+  }
+
+  /**
+   * Opens a chunk file written by {@link #newOutputStream(File)} for reading.
+   *
+   * @param bufferSize the size of the read buffer in bytes
+   */
+  InputStream newInputStream(File file, int bufferSize) throws IOException {
+    return new BufferedInputStream(new FileInputStream(file), bufferSize);
+  }
+
+  ChunkWriter newWriter(File file) throws IOException {
+    return newWriter(file, false);
+  }
+
+  ChunkReader newReader(File file) throws IOException {
+    return newReader(file, false);
+  }
+
+  /**
+   * @param keyed if true every line is written together with its sort key
+   */
+  abstract ChunkWriter newWriter(File file, boolean keyed) throws IOException;
+
+  ChunkReader newReader(File file, boolean keyed) throws IOException {
+    return newReader(file, keyed, BUFFER_SIZE);
+  }
+
+  /**
+   * @param keyed if true the chunk was written with the sort key of every line
+   * @param bufferSize the size of the read buffer in bytes
+   */
+  abstract ChunkReader newReader(File file, boolean keyed, int bufferSize) throws IOException;
+
+  /**
+   * Writes each line as its UTF-8 byte length in a variable length encoding followed by the bytes.
+   * Keyed records start with the key, its length incremented by one so that zero marks a null key.
+   */
+  private static class RecordWriter implements ChunkWriter {
+    private final OutputStream out;
+    private final boolean keyed;
+    private long rawBytes;
+
+    private RecordWriter(OutputStream out, boolean keyed) {
+      this.out = out;
+      this.keyed = keyed;
+    }
+
+    @Override
+    public void write(String line) throws IOException {
+      if (keyed) {
+        throw new IllegalStateException("Chunk requires a sort key for every line");
+      }
+      writeString(line, 0);
+    }
+
+    @Override
+    public void write(String key, String line) throws IOException {
+      if (!keyed) {
+        throw new IllegalStateException("Chunk was not opened for keyed records");
+      }
+      if (key == null) {
+        writeLength(0);
+      } else {
+        writeString(key, 1);
+      }
+      writeString(line, 0);
+    }
+
+    private void writeString(String value, int lengthOffset) throws IOException {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeLength(bytes.length + lengthOffset);
+      out.write(bytes);
+      rawBytes += bytes.length;
+    }
+
+    private void writeLength(int length) throws IOException {
+      while ((length & ~0x7F) != 0) {
+        out.write((length & 0x7F) | 0x80);
+        length >>>= 7;
+        rawBytes++;
+      }
+      out.write(length);
+      rawBytes++;
+    }
+
+    @Override
+    public long getRawBytes() {
+      return rawBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  private static class RecordReader implements ChunkReader {
+    private final InputStream in;
+    private final boolean keyed;
+    private String key;
+
+    private RecordReader(InputStream in, boolean keyed) {
+      this.in = in;
+      this.keyed = keyed;
+    }
+
+    @Override
+    public String readLine() throws IOException {
+      int length = readLength();
+      if (length < 0) {
+        key = null;
+        return null;
+      }
+      if (keyed) {
+        key = length == 0 ? null : readString(length - 1);
+        length = readLength();
+        if (length < 0) {
+          throw new EOFException("Truncated sort chunk record");
+        }
+        return readString(length);
+      }
+      key = readString(length);
+      return key;
+    }
+
+    @Override
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * @return the length, or -1 at the end of the stream
+     */
+    private int readLength() throws IOException {
+      int length = 0;
+      int shift = 0;
+      int b;
+      while ((b = in.read()) >= 0x80) {
+        length |= (b & 0x7F) << shift;
+        shift += 7;
+      }
+      if (b < 0) {
+        if (shift == 0) {
+          return -1;
+        }
+        throw new EOFException("Truncated sort chunk record");
+      }
+      return length | b << shift;
+    }
+
+    private String readString(int length) throws IOException {
+      byte[] bytes = in.readNBytes(length);
+      if (bytes.length < length) {
+        throw new EOFException("Truncated sort chunk record");
+      }
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
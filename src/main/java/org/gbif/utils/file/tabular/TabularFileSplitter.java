@@ -0,0 +1,197 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file.tabular;
+
+import org.gbif.utils.file.FileSplitter;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Splits a tabular file (e.g. CSV) into parts that only end on record boundaries, so every part can be parsed on its
+ * own, for example in parallel.
+ * Unlike {@link FileSplitter} a newline inside a quoted value does not end a record. A quote only starts a quoted
+ * value at the beginning of a field, and a doubled quote inside a quoted value is an escaped quote.
+ */
+public class TabularFileSplitter {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TabularFileSplitter.class);
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private enum State {
+    FIELD_START,
+    UNQUOTED,
+    QUOTED,
+    QUOTE_IN_QUOTED
+  }
+
+  /**
+   * Splits a tabular file into the target directory, named like the parts of
+   * {@link FileSplitter#split(File, File, String, long)}.
+   * Every part holds at least chunkSizeBytes bytes, read to the end of the current record, apart from the last one.
+   * Records are expected to end with \n, optionally preceded by \r.
+   *
+   * @param source the tabular file
+   * @param targetDirectory the directory to write the parts to
+   * @param suffix the suffix of the part names, e.g. "part"
+   * @param chunkSizeBytes the minimum size of a part
+   * @param metadata the delimiter, optional quote character and optional encoding (UTF-8 if null) of the file. The
+   *        encoding must encode the delimiter, the quote and the newline as their single ASCII byte.
+   * @param repeatHeader true if the first record is a header that is repeated at the start of every part
+   *
+   * @return the parts in file order
+   */
+  public static List<File> split(
+      File source,
+      File targetDirectory,
+      String suffix,
+      long chunkSizeBytes,
+      TabularFileMetadata metadata,
+      boolean repeatHeader)
+      throws IOException {
+    Objects.requireNonNull(metadata.getDelimiter(), "A delimiter must be provided");
+    if (chunkSizeBytes <= 0) {
+      throw new IllegalArgumentException("Chunk size must be positive");
+    }
+    Charset charset = Optional.ofNullable(metadata.getEncoding()).orElse(StandardCharsets.UTF_8);
+    byte delimiter = asciiByte(charset, metadata.getDelimiter());
+    int quote = metadata.getQuotedBy() == null ? -1 : asciiByte(charset, metadata.getQuotedBy());
+    asciiByte(charset, '\n');
+
+    long time = System.currentTimeMillis();
+    List<File> parts = new ArrayList<>();
+    ByteArrayOutputStream header = repeatHeader ? new ByteArrayOutputStream() : null;
+    boolean inHeader = repeatHeader;
+    State state = State.FIELD_START;
+    OutputStream out = null;
+    long partBytes = 0;
+    try (InputStream in = new FileInputStream(source)) {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        // the first byte of the buffer not written yet
+        int start = 0;
+        for (int i = 0; i < read; i++) {
+          if (out == null) {
+            File part = FileSplitter.partFile(source, targetDirectory, suffix, parts.size());
+            out = new BufferedOutputStream(new FileOutputStream(part), BUFFER_SIZE);
+            partBytes = 0;
+            if (header != null && !parts.isEmpty()) {
+              header.writeTo(out);
+              partBytes = header.size();
+            }
+            parts.add(part);
+          }
+          byte b = buffer[i];
+          boolean recordEnd = false;
+          switch (state) {
+            case FIELD_START:
+            case UNQUOTED:
+              if (b == quote && state == State.FIELD_START) {
+                state = State.QUOTED;
+              } else if (b == delimiter) {
+                state = State.FIELD_START;
+              } else if (b == '\n') {
+                state = State.FIELD_START;
+                recordEnd = true;
+              } else {
+                state = State.UNQUOTED;
+              }
+              break;
+            case QUOTED:
+              if (b == quote) {
+                state = State.QUOTE_IN_QUOTED;
+              }
+              break;
+            case QUOTE_IN_QUOTED:
+              if (b == quote) {
+                // an escaped quote
+                state = State.QUOTED;
+              } else if (b == delimiter) {
+                state = State.FIELD_START;
+              } else if (b == '\n') {
+                state = State.FIELD_START;
+                recordEnd = true;
+              } else {
+                state = State.UNQUOTED;
+              }
+              break;
+          }
+          if (!recordEnd) {
+            continue;
+          }
+          if (inHeader) {
+            header.write(buffer, start, i + 1 - start);
+            out.write(buffer, start, i + 1 - start);
+            partBytes += i + 1 - start;
+            start = i + 1;
+            inHeader = false;
+          } else if (partBytes + i + 1 - start >= chunkSizeBytes) {
+            out.write(buffer, start, i + 1 - start);
+            start = i + 1;
+            out.close();
+            out = null;
+          }
+        }
+        if (start < read) {
+          if (inHeader) {
+            header.write(buffer, start, read - start);
+          }
+          out.write(buffer, start, read - start);
+          partBytes += read - start;
+        }
+      }
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+    }
+    LOG.debug(
+        "Split {} into {} parts in {} ms", source, parts.size(), System.currentTimeMillis() - time);
+    return parts;
+  }
+
+  /**
+   * @return the single byte the character is encoded as
+   * @throws IllegalArgumentException if the encoding does not encode the character as its single ASCII byte
+   */
+  private static byte asciiByte(Charset charset, char c) {
+    byte[] bytes = String.valueOf(c).getBytes(charset);
+    if (c > 127 || !Arrays.equals(bytes, new byte[] {(byte) c})) {
+      throw new IllegalArgumentException(
+          "Cannot split " + charset + " encoded files on the character " + (int) c);
+    }
+    return bytes[0];
+  }
+
+  private TabularFileSplitter() {
+    throw new UnsupportedOperationException("Can't initialize class");
+  }
+}
@@ -22,10 +22,12 @@ import org.apache.commons.lang3.text.StrTokenizer;
  * This allows to sort for example tab delimited files by any column and not only the first one.
  * <p/>
  * If no explicit comparator is given a string comparison is done for the actual column content.
+ * <p/>
+ * Instances are thread safe, each thread uses its own tokenizer.
  */
 public class LineComparator implements Comparator<String> {
 
-  private final StrTokenizer tokenizer;
+  private final ThreadLocal<StrTokenizer> tokenizer;
   private final int column;
   private final Comparator<String> comp;
 
@@ -47,13 +49,18 @@ public class LineComparator implements Comparator<String> {
         columnComparator == null
             ? Comparator.nullsFirst(Comparator.naturalOrder())
             : columnComparator;
-    tokenizer = new StrTokenizer();
-    tokenizer.setEmptyTokenAsNull(true);
-    tokenizer.setIgnoreEmptyTokens(false);
-    if (quoteChar != null) {
-      tokenizer.setQuoteChar(quoteChar);
-    }
-    tokenizer.setDelimiterString(columnDelimiter);
+    tokenizer =
+        ThreadLocal.withInitial(
+            () -> {
+              StrTokenizer t = new StrTokenizer();
+              t.setEmptyTokenAsNull(true);
+              t.setIgnoreEmptyTokens(false);
+              if (quoteChar != null) {
+                t.setQuoteChar(quoteChar);
+              }
+              t.setDelimiterString(columnDelimiter);
+              return t;
+            });
   }
 
   public LineComparator(int column, String columnDelimiter, Comparator<String> columnComparator) {
@@ -71,18 +78,8 @@ public class LineComparator implements Comparator<String> {
         return -1;
       }
     } else {
-      tokenizer.reset(o1);
-      String[] parts = tokenizer.getTokenArray();
-      String s1 = null;
-      if (parts != null && parts.length > column) {
-        s1 = parts[column];
-      }
-      tokenizer.reset(o2);
-      parts = tokenizer.getTokenArray();
-      String s2 = null;
-      if (parts != null && parts.length > column) {
-        s2 = parts[column];
-      }
+      String s1 = getKey(o1);
+      String s2 = getKey(o2);
 
       if (s1 == null && s2 == null) {
         return 0;
@@ -96,6 +93,27 @@ public class LineComparator implements Comparator<String> {
     }
   }
 
+  /**
+   * @return the content of the compared column of the line, or null if the column is missing or empty
+   */
+  public String getKey(String line) {
+    StrTokenizer tokenizer = this.tokenizer.get();
+    tokenizer.reset(line);
+    String[] parts = tokenizer.getTokenArray();
+    if (parts != null && parts.length > column) {
+      return parts[column];
+    }
+    return null;
+  }
+
+  /**
+   * @return a comparator for keys extracted with {@link #getKey(String)} that orders them as this comparator orders
+   *         their lines, with missing keys last
+   */
+  public Comparator<String> getKeyComparator() {
+    return Comparator.nullsLast(comp);
+  }
+
   public Comparator<String> getColumnComparator() {
     return comp;
   }
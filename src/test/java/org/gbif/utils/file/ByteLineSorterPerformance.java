@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the multikey quicksort of the byte sort chunks with the comparison based merge sort.
+ * <p/>
+ * The keys are identifiers sharing long prefixes, such as LSIDs and URLs, where a comparison sort compares the shared
+ * prefix again on every comparison.
+ */
+public class ByteLineSorterPerformance {
+
+  private static final int LINES = 1_000_000;
+  private static final int RUNS = 5;
+  private static final String[] PREFIXES = {
+    "urn:lsid:ipni.org:names:", "urn:lsid:marinespecies.org:taxname:", "https://www.gbif.org/occurrence/"
+  };
+
+  public static void main(String[] argv) {
+    List<String> lines = lines();
+    ByteLineSorter.Chunk chunk = chunk(lines);
+    ComparisonLineSort comparisonSort = new ComparisonLineSort(lines, 0, "\t");
+
+    // first, get the JIT going
+    chunk.sort();
+    comparisonSort.sort();
+
+    long radix = 0;
+    long comparison = 0;
+    for (int i = 0; i < RUNS; i++) {
+      long start = System.nanoTime();
+      chunk.sort();
+      radix += System.nanoTime() - start;
+      start = System.nanoTime();
+      comparisonSort.sort();
+      comparison += System.nanoTime() - start;
+    }
+    System.out.printf(
+        "Sorting %d lines took %d ms with the multikey quicksort and %d ms with the merge sort%n",
+        LINES, radix / RUNS / 1_000_000, comparison / RUNS / 1_000_000);
+  }
+
+  private static List<String> lines() {
+    Random random = new Random(1);
+    List<String> lines = new ArrayList<>();
+    for (int i = 0; i < LINES; i++) {
+      lines.add(
+          PREFIXES[random.nextInt(PREFIXES.length)]
+              + random.nextInt(LINES * 10)
+              + "\tAbies alba Mill.\t"
+              + i);
+    }
+    return lines;
+  }
+
+  private static ByteLineSorter.Chunk chunk(List<String> lines) {
+    ByteLineSorter sorter = new ByteLineSorter(0, "\t".getBytes(StandardCharsets.UTF_8));
+    ByteLineSorter.Chunk chunk = sorter.newChunk();
+    for (String line : lines) {
+      byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+      chunk.add(bytes, bytes.length);
+    }
+    return chunk;
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+public class ByteLineSorterTest {
+
+  private static final String[] PREFIXES = {
+    "urn:lsid:ipni.org:names:", "urn:lsid:zoobank.org:act:", "https://www.gbif.org/species/", "ü", "a\u0000", ""
+  };
+
+  /**
+   * The multikey quicksort must give the same stable order as the comparison sort.
+   */
+  @Test
+  public void testRadixSortMatchesComparisonSort() {
+    Random random = new Random(42);
+    for (int size : new int[] {0, 1, 2, 15, 16, 17, 100, 5000}) {
+      ByteLineSorter sorter = new ByteLineSorter(1, "\t".getBytes(StandardCharsets.UTF_8));
+      ByteLineSorter.Chunk chunk = sorter.newChunk();
+      List<String> lines = new ArrayList<>();
+      for (int i = 0; i < size; i++) {
+        lines.add(line(random, i));
+        byte[] line = lines.get(i).getBytes(StandardCharsets.UTF_8);
+        chunk.add(line, line.length);
+      }
+      assertArrayEquals(
+          new ComparisonLineSort(lines, 1, "\t").sort(), chunk.sort(), "Chunk of " + size + " lines");
+    }
+  }
+
+  /**
+   * Long shared prefixes and many duplicates, where the equal part of a partition is often the largest.
+   */
+  @Test
+  public void testRadixSortOfDuplicateKeys() {
+    Random random = new Random(7);
+    ByteLineSorter sorter = new ByteLineSorter(0, null);
+    ByteLineSorter.Chunk chunk = sorter.newChunk();
+    List<String> lines = new ArrayList<>();
+    for (int i = 0; i < 100_000; i++) {
+      lines.add(PREFIXES[0] + PREFIXES[1] + (i % 3 == 0 ? "same" : random.nextInt(100)));
+      byte[] line = lines.get(i).getBytes(StandardCharsets.UTF_8);
+      chunk.add(line, line.length);
+    }
+    assertArrayEquals(new ComparisonLineSort(lines, 0, "\t").sort(), chunk.sort());
+  }
+
+  private static String line(Random random, int i) {
+    switch (random.nextInt(10)) {
+      case 0:
+        // missing key
+        return i + "";
+      case 1:
+        // empty key
+        return i + "\t\tx";
+      default:
+        String key = PREFIXES[random.nextInt(PREFIXES.length)] + random.nextInt(random.nextBoolean() ? 20 : 100_000);
+        return i + "\t" + key + "\t" + random.nextInt(3);
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The reference for the multikey quicksort of {@link ByteLineSorter.Chunk#sort()}: a stable merge sort of the line
+ * indices comparing whole keys. Lines with a missing or empty key sort last.
+ */
+final class ComparisonLineSort {
+
+  private final byte[][] keys;
+
+  ComparisonLineSort(List<String> lines, int column, String delimiter) {
+    keys = new byte[lines.size()][];
+    Pattern split = Pattern.compile(Pattern.quote(delimiter));
+    for (int i = 0; i < keys.length; i++) {
+      String[] fields = split.split(lines.get(i), -1);
+      if (column < fields.length && !fields[column].isEmpty()) {
+        keys[i] = fields[column].getBytes(StandardCharsets.UTF_8);
+      }
+    }
+  }
+
+  /**
+   * @return the line indices in sort order
+   */
+  int[] sort() {
+    int[] order = new int[keys.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    int[] aux = order.clone();
+    mergeSort(aux, order, 0, order.length);
+    return order;
+  }
+
+  /**
+   * Sorts dst[from, to) using src as scratch space, both holding the same indices on entry.
+   */
+  private void mergeSort(int[] src, int[] dst, int from, int to) {
+    if (to - from < 16) {
+      for (int i = from + 1; i < to; i++) {
+        int line = dst[i];
+        int j = i;
+        while (j > from && compare(line, dst[j - 1]) < 0) {
+          dst[j] = dst[j - 1];
+          j--;
+        }
+        dst[j] = line;
+      }
+      return;
+    }
+    int mid = (from + to) >>> 1;
+    mergeSort(dst, src, from, mid);
+    mergeSort(dst, src, mid, to);
+    if (compare(src[mid - 1], src[mid]) <= 0) {
+      System.arraycopy(src, from, dst, from, to - from);
+      return;
+    }
+    for (int i = from, p = from, q = mid; i < to; i++) {
+      if (q >= to || (p < mid && compare(src[p], src[q]) <= 0)) {
+        dst[i] = src[p++];
+      } else {
+        dst[i] = src[q++];
+      }
+    }
+  }
+
+  private int compare(int a, int b) {
+    if (keys[a] == null || keys[b] == null) {
+      return keys[a] == null ? (keys[b] == null ? 0 : 1) : -1;
+    }
+    return Arrays.compareUnsigned(keys[a], keys[b]);
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class ExternalSorterTest {
+
+  private static final Comparator<List<String>> BY_NAME =
+      Comparator.comparing(row -> row.get(1), Comparator.nullsLast(Comparator.naturalOrder()));
+
+  private static List<List<String>> rows(int size, long seed) {
+    Random rnd = new Random(seed);
+    List<List<String>> rows = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      String name = rnd.nextInt(10) == 0 ? null : "Abies " + rnd.nextInt(size / 3);
+      rows.add(Arrays.asList(Integer.toString(i), name, "\t\n" + i));
+    }
+    return rows;
+  }
+
+  private static <T> List<T> read(ClosableIterator<T> iter) throws Exception {
+    List<T> result = new ArrayList<>();
+    try (ClosableIterator<T> it = iter) {
+      it.forEachRemaining(result::add);
+    }
+    return result;
+  }
+
+  @Test
+  public void testSortInMemory() throws Exception {
+    List<List<String>> rows = rows(500, 1);
+    List<List<String>> expected = new ArrayList<>(rows);
+    expected.sort(BY_NAME);
+
+    ExternalSorter<List<String>> sorter =
+        new ExternalSorter<>(new FileUtils(), BY_NAME, RecordCodec.stringLists());
+    assertEquals(expected, read(sorter.sort(rows.iterator())));
+  }
+
+  /**
+   * Spilled, merged in several passes and compressed, the records must keep the stable order of an in memory sort.
+   */
+  @Test
+  public void testSortSpilled() throws Exception {
+    List<List<String>> rows = rows(20_000, 2);
+    List<List<String>> expected = new ArrayList<>(rows);
+    expected.sort(BY_NAME);
+
+    File tmp = FileUtils.createTempDir();
+    try {
+      for (SpillCodec codec : new SpillCodec[] {SpillCodec.BINARY, SpillCodec.DEFLATE}) {
+        FileUtils futils = new FileUtils();
+        futils.setLinesPerSortChunk(700);
+        futils.setMaxMergeFanIn(4);
+        futils.setSortThreads(2);
+        futils.setSortTempDir(tmp);
+        futils.setSpillCodec(codec);
+        ExternalSorter<List<String>> sorter =
+            new ExternalSorter<>(futils, BY_NAME, RecordCodec.stringLists());
+        assertEquals(expected, read(sorter.sort(rows.iterator())), codec.toString());
+        // the chunk files are deleted when the sorted records are closed
+        assertEquals(0, tmp.list().length);
+      }
+    } finally {
+      FileUtils.deleteDirectoryRecursively(tmp);
+    }
+  }
+
+  @Test
+  public void testSortByMemoryBudget() throws Exception {
+    List<String> values = new ArrayList<>();
+    Random rnd = new Random(3);
+    for (int i = 0; i < 10_000; i++) {
+      values.add(Long.toString(rnd.nextLong(), 36));
+    }
+    List<String> expected = new ArrayList<>(values);
+    expected.sort(Comparator.naturalOrder());
+
+    FileUtils futils = new FileUtils();
+    futils.setSortMemoryBudget(50_000);
+    ExternalSorter<String> sorter =
+        new ExternalSorter<>(
+            futils, Comparator.naturalOrder(), RecordCodec.strings(), FileUtils::estimateRetainedSize);
+    ClosableIterator<String> sorted = sorter.sort(values.iterator());
+    assertEquals(expected, read(sorted));
+    assertFalse(sorted.hasNext());
+  }
+
+  @Test
+  public void testStringCodecs() throws IOException {
+    File f = File.createTempFile("gbif-common-external-sort", ".bin");
+    f.deleteOnExit();
+    String large = String.join("", Collections.nCopies(70_000, "é"));
+    List<String> values = Arrays.asList("", null, large, "𐃍");
+    try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(f.toPath()))) {
+      for (String value : values) {
+        RecordCodec.strings().write(value, out);
+      }
+      RecordCodec.stringLists().write(values, out);
+      RecordCodec.stringLists().write(null, out);
+    }
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(f.toPath()))) {
+      for (String value : values) {
+        assertEquals(value, RecordCodec.strings().read(in));
+      }
+      assertEquals(values, RecordCodec.stringLists().read(in));
+      assertEquals(null, RecordCodec.stringLists().read(in));
+    }
+  }
+}
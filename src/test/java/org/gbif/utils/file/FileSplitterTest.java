@@ -0,0 +1,164 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FileSplitterTest {
+
+  @TempDir File tempDir;
+
+  private File write(String name, String content) throws IOException {
+    File f = new File(tempDir, name);
+    Files.write(f.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    return f;
+  }
+
+  /**
+   * Joins the parts, checks they cover the source in order and end after a newline.
+   */
+  private static void assertParts(File source, List<FileSplitter.Part> parts, long chunkSize)
+      throws IOException {
+    byte[] content = Files.readAllBytes(source.toPath());
+    ByteArrayOutputStream joined = new ByteArrayOutputStream();
+    long start = 0;
+    long lines = 0;
+    for (int i = 0; i < parts.size(); i++) {
+      FileSplitter.Part part = parts.get(i);
+      byte[] bytes = Files.readAllBytes(part.getFile().toPath());
+      assertEquals(start, part.getStart());
+      assertEquals(bytes.length, part.getLength());
+      if (i < parts.size() - 1) {
+        assertTrue(bytes.length >= chunkSize);
+        assertEquals('\n', bytes[bytes.length - 1]);
+      }
+      lines += part.getLines();
+      joined.write(bytes);
+      start = part.getEnd();
+    }
+    assertArrayEquals(content, joined.toByteArray());
+    assertEquals(new String(content, StandardCharsets.UTF_8).lines().count(), lines);
+  }
+
+  @Test
+  public void testSplitLongLines() throws IOException {
+    Random rnd = new Random(7);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 500; i++) {
+      // lines much longer than the read ahead and the chunk size
+      int length = rnd.nextInt(10) == 0 ? 5_000 + rnd.nextInt(5_000) : rnd.nextInt(100);
+      for (int j = 0; j < length; j++) {
+        sb.append((char) ('a' + rnd.nextInt(26)));
+      }
+      sb.append('\n');
+    }
+    sb.append("last line without newline");
+    File source = write("long.lines.txt", sb.toString());
+    File target = new File(tempDir, "parts");
+    target.mkdirs();
+
+    List<FileSplitter.Part> parts = FileSplitter.splitParts(source, target, "part", 1_000);
+    assertTrue(parts.size() > 10);
+    assertEquals("long_part_0.lines.txt", parts.get(0).getFile().getName());
+    assertParts(source, parts, 1_000);
+
+    List<Long> ends = FileSplitter.scanToChunk(source, 1_000);
+    assertEquals(parts.size() - 1, ends.size());
+    for (int i = 0; i < ends.size(); i++) {
+      assertEquals(parts.get(i).getEnd(), (long) ends.get(i));
+    }
+  }
+
+  @Test
+  public void testSplitSmallFiles() throws IOException {
+    File target = new File(tempDir, "parts");
+    target.mkdirs();
+    File empty = write("empty.txt", "");
+    assertTrue(FileSplitter.split(empty, target, "part", 10).isEmpty());
+
+    // a chunk size equal to the file size gives a single part
+    File source = write("lines.txt", "a\nbb\nccc\n");
+    List<FileSplitter.Part> parts = FileSplitter.splitParts(source, target, "part", 9);
+    assertEquals(1, parts.size());
+    assertEquals(3, parts.get(0).getLines());
+    assertParts(source, parts, 9);
+
+    // a chunk ending on a newline is not extended to the next line
+    parts = FileSplitter.splitParts(source, target, "part", 2);
+    assertEquals(
+        Arrays.asList(2L, 5L, 9L),
+        Arrays.asList(parts.get(0).getEnd(), parts.get(1).getEnd(), parts.get(2).getEnd()));
+    assertParts(source, parts, 2);
+  }
+
+  @Test
+  public void testParallelLines() throws IOException {
+    Random rnd = new Random(11);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 20_000; i++) {
+      sb.append(i).append('\t');
+      int length = rnd.nextInt(100) == 0 ? 1_000 + rnd.nextInt(2_000) : rnd.nextInt(20);
+      for (int j = 0; j < length; j++) {
+        sb.append(rnd.nextInt(3) == 0 ? 'ü' : (char) ('a' + rnd.nextInt(26)));
+      }
+      sb.append(i % 3 == 0 ? "\r\n" : "\n");
+    }
+    File source = write("lines.txt", sb.toString());
+    List<String> expected = Files.readAllLines(source.toPath());
+
+    try (Stream<String> lines = FileSplitter.lines(source, StandardCharsets.UTF_8, 4_096)) {
+      assertEquals(expected, lines.parallel().collect(Collectors.toList()));
+    }
+    try (Stream<String> lines = FileSplitter.lines(source, StandardCharsets.UTF_8, 4_096)) {
+      assertEquals(expected.size(), lines.parallel().filter(l -> l.contains("\t")).count());
+    }
+
+    List<BufferedReader> readers = FileSplitter.readers(source, StandardCharsets.UTF_8, 8);
+    assertEquals(8, readers.size());
+    List<String> read = new ArrayList<>();
+    for (BufferedReader reader : readers) {
+      try (BufferedReader r = reader) {
+        r.lines().forEach(read::add);
+      }
+    }
+    assertEquals(expected, read);
+
+    // ranges aligned on the newline byte would split UTF-16 characters
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> FileSplitter.readers(source, StandardCharsets.UTF_16LE, 8));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> FileSplitter.lines(source, StandardCharsets.UTF_16, 4_096));
+  }
+}
@@ -20,19 +20,35 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.io.LineIterator;
 import org.apache.commons.lang3.time.StopWatch;
@@ -41,6 +57,7 @@ import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
@@ -198,6 +215,42 @@ public class FileUtilsTest {
     assertEquals(100, sorted.length);
   }
 
+  /**
+   * Merging many chunks must give the same result as sorting all lines at once, with equal lines kept in chunk order.
+   */
+  @Test
+  public void testMergeManySortedFiles() throws IOException {
+    Random rnd = new Random(7);
+    Comparator<String> lineComparator = new LineComparator(0, "\t");
+    List<String> all = new ArrayList<>();
+    List<File> sortedSplitFiles = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      List<String> chunk = new ArrayList<>();
+      for (int j = rnd.nextInt(50); j > 0; j--) {
+        chunk.add(rnd.nextInt(500) + "\t" + i);
+      }
+      chunk.sort(lineComparator);
+      all.addAll(chunk);
+      File f = File.createTempFile("gbif-common-file-merge", "chunk.txt");
+      Files.write(f.toPath(), chunk, StandardCharsets.UTF_8);
+      sortedSplitFiles.add(f);
+    }
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new FileUtils()
+        .mergeSortedFiles(
+            sortedSplitFiles,
+            new OutputStreamWriter(output, StandardCharsets.UTF_8),
+            lineComparator);
+
+    // a stable sort of the concatenated chunks keeps equal keys in chunk order, like the merge
+    all.sort(lineComparator);
+    assertEquals(all, Arrays.asList(output.toString(StandardCharsets.UTF_8).split("\n")));
+    for (File f : sortedSplitFiles) {
+      assertFalse(f.exists());
+    }
+  }
+
   @Test
   public void testMergeEmptyFiles() throws IOException {
     List<File> sortedSplitFiles = new ArrayList<>();
@@ -645,4 +698,1280 @@ public class FileUtilsTest {
       }
     }
   }
+
+  /**
+   * Writes tab delimited lines with a random key in the first column and the line number in the second.
+   */
+  private static File randomLinesFile(int lines, long seed) throws IOException {
+    File f = File.createTempFile("gbif-common-file-sort", "random.txt");
+    f.deleteOnExit();
+    Random rnd = new Random(seed);
+    try (Writer w = FileUtils.startNewUtf8File(f)) {
+      for (int i = 0; i < lines; i++) {
+        w.write(Integer.toString(rnd.nextInt(lines / 2), 36));
+        w.write('\t');
+        w.write(Integer.toString(i));
+        w.write('\n');
+      }
+    }
+    return f;
+  }
+
+  /**
+   * Sorting chunks in parallel must produce the same output as sorting them on the calling thread.
+   */
+  @Test
+  public void testSortInJavaParallel() throws IOException {
+    File source = randomLinesFile(20_000, 42);
+    File serial = File.createTempFile("gbif-common-file-sort", "serial.txt");
+    File parallel = File.createTempFile("gbif-common-file-sort", "parallel.txt");
+    serial.deleteOnExit();
+    parallel.deleteOnExit();
+    Comparator<String> lineComparator = new LineComparator(0, "\t");
+
+    FileUtils futils = new FileUtils();
+    futils.setLinesPerSortChunk(1_000);
+    futils.sortInJava(source, serial, ENCODING, lineComparator, 0);
+
+    futils.setSortThreads(4);
+    futils.setMaxChunksInFlight(2);
+    futils.sortInJava(source, parallel, ENCODING, lineComparator, 0);
+
+    List<String> parallelLines = Files.readAllLines(parallel.toPath());
+    assertEquals(20_000, parallelLines.size());
+    assertEquals(Files.readAllLines(serial.toPath()), parallelLines);
+  }
+
+  @Test
+  public void testEstimateRetainedSize() {
+    assertEquals(48, FileUtils.estimateRetainedSize(""));
+    assertEquals(56, FileUtils.estimateRetainedSize("abc"));
+    // Latin-1 uses one byte per char, anything else two
+    assertEquals(56, FileUtils.estimateRetainedSize("abcdéfgh"));
+    assertEquals(64, FileUtils.estimateRetainedSize("abcdefgĥ"));
+  }
+
+  /**
+   * Chunks cut by a small memory budget must give the same result as chunks cut by line count.
+   */
+  @Test
+  public void testSortInJavaMemoryBudget() throws IOException {
+    File source = randomLinesFile(20_000, 11);
+    File byLines = File.createTempFile("gbif-common-file-sort", "lines.txt");
+    File byBudget = File.createTempFile("gbif-common-file-sort", "budget.txt");
+    byLines.deleteOnExit();
+    byBudget.deleteOnExit();
+    Comparator<String> lineComparator = new LineComparator(0, "\t");
+
+    new FileUtils().sortInJava(source, byLines, ENCODING, lineComparator, 0);
+
+    FileUtils futils = new FileUtils();
+    futils.setSortMemoryBudget(64 * 1024);
+    assertEquals(64 * 1024, futils.getSortMemoryBudget());
+    futils.sortInJava(source, byBudget, ENCODING, lineComparator, 0);
+
+    List<String> budgetLines = Files.readAllLines(byBudget.toPath());
+    assertEquals(20_000, budgetLines.size());
+    for (int i = 1; i < budgetLines.size(); i++) {
+      assertTrue(lineComparator.compare(budgetLines.get(i - 1), budgetLines.get(i)) <= 0);
+    }
+    // ties are kept in input order by both
+    assertEquals(Files.readAllLines(byLines.toPath()), budgetLines);
+  }
+
+  @Test
+  public void testLinesPerSortChunk() {
+    FileUtils futils = new FileUtils();
+    assertEquals(100_000, futils.getLinesPerSortChunk());
+    futils.setLinesPerSortChunk(10);
+    assertEquals(10, futils.getLinesPerSortChunk());
+    assertEquals(10, futils.getLinesPerMemorySort());
+    // other instances keep their own setting
+    assertEquals(100_000, new FileUtils().getLinesPerSortChunk());
+  }
+
+  /**
+   * All spill codecs must give the same sorted output.
+   */
+  @Test
+  public void testSortInJavaSpillCodecs() throws IOException {
+    File source = randomLinesFile(5_000, 3);
+    Comparator<String> lineComparator = new LineComparator(0, "\t");
+    List<String> expected = null;
+    for (SpillCodec codec : SpillCodec.values()) {
+      File sorted = File.createTempFile("gbif-common-file-sort", codec + ".txt");
+      sorted.deleteOnExit();
+      FileUtils futils = new FileUtils();
+      futils.setLinesPerSortChunk(700);
+      futils.setSpillCodec(codec);
+      futils.sortInJava(source, sorted, ENCODING, lineComparator, 0);
+
+      List<String> lines = Files.readAllLines(sorted.toPath());
+      assertEquals(5_000, lines.size());
+      if (expected == null) {
+        expected = lines;
+      } else {
+        assertEquals(expected, lines, codec.name());
+      }
+    }
+  }
+
+  /**
+   * Sorting by keys extracted once per line must give the same output as comparing the lines.
+   */
+  @Test
+  public void testSortInJavaExtractSortKeys() throws IOException {
+    File source = randomLinesFile(5_000, 5);
+    // lines without the sort column sort last
+    try (Writer w = new FileWriter(source, true)) {
+      w.write("\tno key 1\n\tno key 2\n");
+    }
+    Comparator<String> lineComparator = new LineComparator(0, "\t");
+    File compared = File.createTempFile("gbif-common-file-sort", "compared.txt");
+    compared.deleteOnExit();
+    FileUtils futils = new FileUtils();
+    futils.setLinesPerSortChunk(700);
+    futils.sortInJava(source, compared, ENCODING, lineComparator, 0);
+
+    for (SpillCodec codec : SpillCodec.values()) {
+      File keyed = File.createTempFile("gbif-common-file-sort", "keyed.txt");
+      keyed.deleteOnExit();
+      futils.setExtractSortKeys(true);
+      futils.setSpillCodec(codec);
+      futils.sortInJava(source, keyed, ENCODING, lineComparator, 0);
+
+      List<String> lines = Files.readAllLines(keyed.toPath());
+      assertEquals(5_002, lines.size());
+      assertEquals("\tno key 2", lines.get(5_001));
+      assertEquals(Files.readAllLines(compared.toPath()), lines, codec.name());
+    }
+  }
+
+  /**
+   * The byte level sort must give the same order as the String sort for text within the Basic Multilingual Plane.
+   */
+  @Test
+  public void testSortBytesInJava() throws IOException {
+    File source = randomLinesFile(20_000, 7);
+    File expected = File.createTempFile("gbif-common-file-sort", "expected.txt");
+    File sorted = File.createTempFile("gbif-common-file-sort", "bytes.txt");
+    expected.deleteOnExit();
+    sorted.deleteOnExit();
+    FileUtils futils = new FileUtils();
+    futils.setLinesPerSortChunk(3_000);
+    for (int column = 0; column < 2; column++) {
+      futils.sortInJava(source, expected, ENCODING, new LineComparator(column, "\t"), 1);
+      futils.sortBytesInJava(
+          Collections.singletonList(source), sorted, ENCODING, column, "\t", 1);
+      assertEquals(Files.readAllLines(expected.toPath()), Files.readAllLines(sorted.toPath()));
+    }
+
+    futils.setSortThreads(3);
+    futils.setSortMemoryBudget(64 * 1024);
+    futils.sortBytesInJava(Collections.singletonList(source), sorted, ENCODING, 1, "\t", 1);
+    assertEquals(Files.readAllLines(expected.toPath()), Files.readAllLines(sorted.toPath()));
+  }
+
+  @Test
+  public void testSortBytesInJavaUnicode() throws IOException {
+    File source = File.createTempFile("gbif-common-file-sort", "unicode.txt");
+    File sorted = File.createTempFile("gbif-common-file-sort", "sorted.txt");
+    source.deleteOnExit();
+    sorted.deleteOnExit();
+    try (Writer w = FileUtils.startNewUtf8File(source)) {
+      w.write("id||name\r\n");
+      w.write("1||Él\r\n");
+      w.write("2||\n");
+      w.write("3||𐃍\n");
+      w.write("4||Abies\n");
+      w.write("5\n");
+      w.write("6||\uFFFD\n");
+      w.write("7||El");
+    }
+    new FileUtils()
+        .sortBytesInJava(Collections.singletonList(source), sorted, ENCODING, 1, "||", 1);
+    assertEquals(
+        Arrays.asList(
+            "id||name", "4||Abies", "7||El", "1||Él", "6||\uFFFD", "3||𐃍", "2||", "5"),
+        Files.readAllLines(sorted.toPath()));
+  }
+
+  /**
+   * GNU sort and the Java sort must order the lines the same way for a composite sort key.
+   */
+  @Test
+  public void testSortBySortKey() throws IOException {
+    File source = File.createTempFile("gbif-common-file-sort", "composite.txt");
+    source.deleteOnExit();
+    Random rnd = new Random(11);
+    try (Writer w = FileUtils.startNewUtf8File(source)) {
+      w.write("datasetKey,taxonKey,eventDate,id\n");
+      for (int i = 0; i < 5_000; i++) {
+        w.write(rnd.nextInt(5) == 0 ? "" : "dataset" + rnd.nextInt(5));
+        w.write(',');
+        w.write(rnd.nextInt(10) == 0 ? "" : Integer.toString(rnd.nextInt(2000) - 100));
+        w.write(',');
+        w.write("20" + (10 + rnd.nextInt(10)) + "-0" + (1 + rnd.nextInt(9)));
+        w.write(',');
+        w.write(Integer.toString(i));
+        w.write('\n');
+      }
+    }
+    SortKey sortKey =
+        SortKey.by(0).thenBy(1, SortKey.Type.NUMERIC, false).thenBy(2, SortKey.Type.STRING, true);
+
+    File java = File.createTempFile("gbif-common-file-sort", "java.txt");
+    java.deleteOnExit();
+    FileUtils futils = new FileUtils();
+    futils.setLinesPerSortChunk(700);
+    futils.sortInJava(
+        Collections.singletonList(source),
+        java,
+        ENCODING,
+        sortKey.keyExtractor(",", null),
+        Comparator.naturalOrder(),
+        1);
+    List<String> lines = Files.readAllLines(java.toPath());
+    assertEquals(5_001, lines.size());
+    assertEquals("datasetKey,taxonKey,eventDate,id", lines.get(0));
+
+    File sorted = File.createTempFile("gbif-common-file-sort", "sorted.txt");
+    sorted.deleteOnExit();
+    futils.sort(source, sorted, ENCODING, sortKey, ",", null, "\n", 1);
+    assertEquals(lines, Files.readAllLines(sorted.toPath()));
+  }
+
+  /**
+   * Dropping duplicates while merging must give the same result in the Java sort and in GNU sort.
+   */
+  @Test
+  public void testSortDistinct() throws IOException {
+    File source = File.createTempFile("gbif-common-file-sort", "duplicates.txt");
+    source.deleteOnExit();
+    Random rnd = new Random(13);
+    try (Writer w = FileUtils.startNewUtf8File(source)) {
+      for (int i = 0; i < 5_000; i++) {
+        w.write(rnd.nextInt(300) + "\t" + rnd.nextInt(3) + "\n");
+      }
+    }
+    File java = File.createTempFile("gbif-common-file-sort", "java.txt");
+    File gnu = File.createTempFile("gbif-common-file-sort", "gnu.txt");
+    java.deleteOnExit();
+    gnu.deleteOnExit();
+    FileUtils futils = new FileUtils();
+    futils.setLinesPerSortChunk(700);
+
+    futils.setDistinctMode(DistinctMode.KEYS);
+    futils.sortInJava(source, java, ENCODING, new LineComparator(0, "\t"), 0);
+    List<String> lines = Files.readAllLines(java.toPath());
+    assertEquals(300, lines.size());
+    futils.sort(source, gnu, ENCODING, SortKey.by(0), "\t", null, "\n", 0);
+    assertEquals(lines, Files.readAllLines(gnu.toPath()));
+
+    futils.setDistinctMode(DistinctMode.LINES);
+    futils.setExtractSortKeys(true);
+    futils.sortInJava(source, java, ENCODING, new LineComparator(0, "\t"), 0);
+    lines = Files.readAllLines(java.toPath());
+    assertEquals(900, lines.size());
+    assertEquals(900, new HashSet<>(lines).size());
+    futils.sort(source, gnu, ENCODING, SortKey.by(0), "\t", null, "\n", 0);
+    assertEquals(lines, Files.readAllLines(gnu.toPath()));
+  }
+
+  @Test
+  public void testSortMergeFunction() throws IOException {
+    File source = File.createTempFile("gbif-common-file-sort", "counts.txt");
+    File sorted = File.createTempFile("gbif-common-file-sort", "sums.txt");
+    source.deleteOnExit();
+    sorted.deleteOnExit();
+    Random rnd = new Random(17);
+    int[] sums = new int[50];
+    try (Writer w = FileUtils.startNewUtf8File(source)) {
+      w.write("key\tcount\n");
+      for (int i = 0; i < 2_000; i++) {
+        int key = rnd.nextInt(sums.length);
+        sums[key] += i;
+        w.write(key + "\t" + i + "\n");
+      }
+    }
+    FileUtils futils = new FileUtils();
+    futils.setLinesPerSortChunk(300);
+    futils.setMergeFunction(
+        (group, line) -> {
+          String[] g = group.split("\t");
+          String[] l = line.split("\t");
+          return g[0] + '\t' + (Integer.parseInt(g[1]) + Integer.parseInt(l[1]));
+        });
+    futils.sort(
+        source, sorted, ENCODING, SortKey.by(0, SortKey.Type.NUMERIC, false), "\t", null, "\n", 1);
+
+    List<String> lines = Files.readAllLines(sorted.toPath());
+    assertEquals("key\tcount", lines.get(0));
+    assertEquals(sums.length + 1, lines.size());
+    for (int key = 0; key < sums.length; key++) {
+      assertEquals(key + "\t" + sums[key], lines.get(key + 1));
+    }
+  }
+
+  /**
+   * Concurrent Java sorts of the same input must not share chunk files, and must clean up their chunk directories.
+   */
+  @Test
+  public void testConcurrentSortsOfSameInput() throws Exception {
+    File dir = FileUtils.createTempDir();
+    try {
+      File source = new File(dir, "source.txt");
+      Files.copy(randomLinesFile(10_000, 19).toPath(), source.toPath());
+      File expected = new File(dir, "expected.txt");
+      FileUtils futils = new FileUtils();
+      futils.setLinesPerSortChunk(500);
+      futils.sortInJava(source, expected, ENCODING, new LineComparator(0, "\t"), 0);
+
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+      try {
+        List<Future<File>> sorts = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+          File sorted = new File(dir, "sorted_" + i + ".txt");
+          sorts.add(
+              executor.submit(
+                  () -> {
+                    futils.sortInJava(source, sorted, ENCODING, new LineComparator(0, "\t"), 0);
+                    return sorted;
+                  }));
+        }
+        for (Future<File> sort : sorts) {
+          assertEquals(
+              Files.readAllLines(expected.toPath()), Files.readAllLines(sort.get().toPath()));
+        }
+      } finally {
+        executor.shutdown();
+      }
+      assertEquals(10, dir.list().length);
+    } finally {
+      FileUtils.deleteDirectoryRecursively(dir);
+    }
+  }
+
+  @Test
+  public void testSortIterator() throws Exception {
+    List<String> lines = new ArrayList<>();
+    Random rnd = new Random(23);
+    for (int i = 0; i < 10_000; i++) {
+      lines.add(Integer.toString(rnd.nextInt(5_000), 36) + "\t" + i);
+    }
+    List<String> expected = new ArrayList<>(lines);
+    Comparator<String> lineComparator = new LineComparator(0, "\t");
+    expected.sort(lineComparator);
+
+    // fits into a single chunk and is sorted in memory
+    FileUtils futils = new FileUtils();
+    try (ClosableIterator<String> sorted = futils.sortInJava(lines.iterator(), lineComparator)) {
+      List<String> result = new ArrayList<>();
+      sorted.forEachRemaining(result::add);
+      assertEquals(expected, result);
+    }
+
+    // spilled to chunk files
+    futils.setLinesPerSortChunk(700);
+    try (ClosableIterator<String> sorted = futils.sortInJava(lines.iterator(), lineComparator)) {
+      List<String> result = new ArrayList<>();
+      sorted.forEachRemaining(result::add);
+      assertEquals(expected, result);
+      assertFalse(sorted.hasNext());
+    }
+
+    futils.setDistinctMode(DistinctMode.KEYS);
+    try (ClosableIterator<String> sorted = futils.sortInJava(lines.iterator(), lineComparator)) {
+      String previous = null;
+      int count = 0;
+      while (sorted.hasNext()) {
+        String key = sorted.next().split("\t")[0];
+        assertTrue(previous == null || previous.compareTo(key) < 0);
+        previous = key;
+        count++;
+      }
+      assertEquals(expected.stream().map(l -> l.split("\t")[0]).distinct().count(), count);
+    }
+  }
+
+  /**
+   * Lines with line breaks come back whole also when they are spilled, and the input is closed if the sort fails.
+   */
+  @Test
+  public void testSortIteratorOfMultilineValues() throws Exception {
+    List<String> lines = new ArrayList<>();
+    for (int i = 0; i < 1_000; i++) {
+      lines.add((999 - i) + (i % 3 == 0 ? "\nsecond line\r\nthird\r" : ""));
+    }
+    List<String> expected = new ArrayList<>(lines);
+    expected.sort(Comparator.naturalOrder());
+    FileUtils futils = new FileUtils();
+    futils.setLinesPerSortChunk(100);
+    try (ClosableIterator<String> sorted =
+        futils.sortInJava(lines.iterator(), Comparator.naturalOrder())) {
+      List<String> result = new ArrayList<>();
+      sorted.forEachRemaining(result::add);
+      assertEquals(expected, result);
+    }
+
+    AtomicInteger closed = new AtomicInteger();
+    class FailingLines implements Iterator<String>, AutoCloseable {
+      private int i = 0;
+
+      @Override
+      public boolean hasNext() {
+        return true;
+      }
+
+      @Override
+      public String next() {
+        if (i == 500) {
+          throw new IllegalStateException("Broken input");
+        }
+        return lines.get(i++);
+      }
+
+      @Override
+      public void close() {
+        closed.incrementAndGet();
+      }
+    }
+    assertThrows(
+        IllegalStateException.class,
+        () -> futils.sortInJava(new FailingLines(), Comparator.naturalOrder()));
+    assertEquals(1, closed.get());
+    ExternalSorter<String> sorter =
+        new ExternalSorter<>(futils, Comparator.<String>naturalOrder(), RecordCodec.strings());
+    assertThrows(IllegalStateException.class, () -> sorter.sort(new FailingLines()));
+    assertEquals(2, closed.get());
+  }
+
+  /**
+   * Intermediate merge passes must not change the order of the sorted lines.
+   */
+  @Test
+  public void testSortWithBoundedMergeFanIn() throws Exception {
+    File source = randomLinesFile(10_000, 29);
+    Comparator<String> lineComparator = new LineComparator(0, "\t");
+    File expected = File.createTempFile("gbif-common-file-sort", "expected.txt");
+    File sorted = File.createTempFile("gbif-common-file-sort", "sorted.txt");
+    expected.deleteOnExit();
+    sorted.deleteOnExit();
+    FileUtils futils = new FileUtils();
+    futils.setLinesPerSortChunk(100);
+    futils.sortInJava(source, expected, ENCODING, lineComparator, 0);
+    List<String> lines = Files.readAllLines(expected.toPath());
+
+    futils.setMaxMergeFanIn(3);
+    futils.sortInJava(source, sorted, ENCODING, lineComparator, 0);
+    assertEquals(lines, Files.readAllLines(sorted.toPath()));
+
+    futils.setSortThreads(4);
+    futils.setSortMemoryBudget(1024 * 1024);
+    futils.setExtractSortKeys(true);
+    futils.setSpillCodec(SpillCodec.DEFLATE);
+    futils.sortInJava(source, sorted, ENCODING, lineComparator, 0);
+    assertEquals(lines, Files.readAllLines(sorted.toPath()));
+
+    try (ClosableIterator<String> it =
+        futils.sortInJava(Files.readAllLines(source.toPath()).iterator(), lineComparator)) {
+      List<String> result = new ArrayList<>();
+      it.forEachRemaining(result::add);
+      assertEquals(lines, result);
+    }
+
+    futils.setSortMemoryBudget(0);
+    futils.sortBytesInJava(Collections.singletonList(source), expected, ENCODING, 0, "\t", 0);
+    futils.setMaxMergeFanIn(1_000);
+    futils.sortBytesInJava(Collections.singletonList(source), sorted, ENCODING, 0, "\t", 0);
+    assertEquals(Files.readAllLines(expected.toPath()), Files.readAllLines(sorted.toPath()));
+  }
+
+  @Test
+  public void testReduceFanInFailure() throws Exception {
+    File dir = Files.createTempDirectory("gbif-common-fan-in").toFile();
+    List<File> chunks = new ArrayList<>();
+    for (int i = 0; i < 9; i++) {
+      File chunk = new File(dir, "chunk_" + i + ".txt");
+      Files.write(chunk.toPath(), Collections.singletonList(String.valueOf(i)));
+      chunks.add(chunk);
+    }
+    FileUtils futils = new FileUtils();
+    futils.setMaxMergeFanIn(2);
+    // the first pass merges, the second one fails
+    assertThrows(
+        IOException.class,
+        () ->
+            futils.reduceFanIn(
+                chunks,
+                (group, target) -> {
+                  if (target.getName().startsWith("merge_2_")) {
+                    throw new IOException("Merge failed");
+                  }
+                  try (OutputStream out = new FileOutputStream(target)) {
+                    for (File f : group) {
+                      Files.copy(f.toPath(), out);
+                    }
+                  }
+                }));
+    assertTrue(Arrays.stream(dir.list()).noneMatch(name -> name.startsWith("merge_")));
+    FileUtils.deleteDirectoryRecursively(dir);
+  }
+
+  @Test
+  public void testSortEngineSelection() throws Exception {
+    File source = randomLinesFile(1_000, 31);
+    File sorted = File.createTempFile("gbif-common-file-sort", "sorted.txt");
+    sorted.deleteOnExit();
+    List<String> used = new ArrayList<>();
+    FileUtils futils = new FileUtils();
+    futils.setSortEngines(Collections.singletonList(new JavaSortEngine()));
+    futils.registerSortEngine(
+        new SortEngine() {
+          @Override
+          public boolean canSort(SortRequest request, FileUtils settings) {
+            return request.getColumn() == 0;
+          }
+
+          @Override
+          public boolean sort(SortRequest request, FileUtils settings) {
+            used.add("failing");
+            return false;
+          }
+        });
+    futils.registerSortEngine(
+        new SortEngine() {
+          @Override
+          public boolean canSort(SortRequest request, FileUtils settings) {
+            return request.getColumn() == 1;
+          }
+
+          @Override
+          public boolean sort(SortRequest request, FileUtils settings) throws IOException {
+            used.add("custom");
+            Files.write(request.getSorted().toPath(), Collections.singletonList("custom"));
+            return true;
+          }
+        });
+    assertEquals(3, futils.getSortEngines().size());
+
+    futils.sort(source, sorted, ENCODING, 1, "\t", null, "\n", 0);
+    assertEquals(Collections.singletonList("custom"), Files.readAllLines(sorted.toPath()));
+
+    // the failing engine falls back to the Java sort
+    futils.sort(source, sorted, ENCODING, 0, "\t", null, "\n", 0);
+    assertEquals(Arrays.asList("custom", "failing"), used);
+    List<String> lines = Files.readAllLines(source.toPath());
+    lines.sort(new LineComparator(0, "\t"));
+    assertEquals(lines, Files.readAllLines(sorted.toPath()));
+  }
+
+  @Test
+  public void testGnuSortEngineSettings() throws Exception {
+    FileUtils futils = new FileUtils();
+    futils.setSortThreads(4);
+    futils.setSortMemoryBudget(1024 * 1024);
+    File tmp = FileUtils.createTempDir();
+    tmp.deleteOnExit();
+    futils.setSortTempDir(tmp);
+    futils.setGnuSortCompressProgram("gzip");
+    futils.setDistinctMode(DistinctMode.KEYS);
+    File input = new File("input.txt");
+    SortRequest request =
+        new SortRequest(
+            Collections.singletonList(input),
+            new File("sorted.txt"),
+            ENCODING,
+            SortKey.by(0).thenBy(2, SortKey.Type.NUMERIC, true),
+            0,
+            ",",
+            null,
+            "\n",
+            1,
+            null,
+            false,
+            true);
+    GnuSortEngine gnu = new GnuSortEngine();
+    assertEquals(
+        Arrays.asList(
+            "sort",
+            "-t",
+            ",",
+            "-s",
+            "-k1,1",
+            "-k3,3nr",
+            "-u",
+            "-S",
+            "1048576b",
+            "--parallel=4",
+            "-T",
+            tmp.getAbsolutePath(),
+            "--compress-program=gzip"),
+        gnu.sortCommand(request, futils));
+
+    // only the first column of a single column sort
+    futils.setDistinctMode(DistinctMode.NONE);
+    request =
+        new SortRequest(
+            Collections.singletonList(input),
+            new File("sorted.txt"),
+            ENCODING,
+            null,
+            1,
+            "\t",
+            null,
+            "\n",
+            0,
+            null,
+            false,
+            true);
+    assertFalse(gnu.canSort(request, futils));
+    ByteSortEngine bytes = new ByteSortEngine();
+    assertTrue(bytes.canSort(request, futils));
+    // the byte sort does not support these settings of the Java sort
+    futils.setMergePartitions(2);
+    assertFalse(bytes.canSort(request, futils));
+    futils.setMergePartitions(1);
+    futils.setExtractSortKeys(true);
+    assertFalse(bytes.canSort(request, futils));
+    futils.setExtractSortKeys(false);
+    futils.setSpillCodec(SpillCodec.DEFLATE);
+    assertFalse(bytes.canSort(request, futils));
+    futils.setSpillCodec(SpillCodec.TEXT);
+    futils.setSortCheckpointDir(tmp);
+    assertFalse(bytes.canSort(request, futils));
+    // and is only used when opted in to
+    assertFalse(new FileUtils().getSortEngines().stream().anyMatch(e -> e instanceof ByteSortEngine));
+  }
+
+  @Test
+  public void testGnuSortEngineHeaderLines() throws Exception {
+    if (!GnuSortEngine.isAvailable()) {
+      return;
+    }
+    File source = randomLinesFile(5_000, 37);
+    List<String> lines = Files.readAllLines(source.toPath());
+    File expected = File.createTempFile("gbif-common-file-sort", "expected.txt");
+    File sorted = File.createTempFile("gbif-common-file-sort", "sorted.txt");
+    expected.deleteOnExit();
+    sorted.deleteOnExit();
+    FileUtils futils = new FileUtils();
+    futils.setSortEngines(Collections.singletonList(new JavaSortEngine()));
+    futils.sort(source, expected, ENCODING, 0, "\t", null, "\n", 2);
+
+    futils.setSortEngines(Collections.singletonList(new GnuSortEngine()));
+    futils.setSortThreads(2);
+    futils.setSortTempDir(source.getParentFile());
+    futils.sort(source, sorted, ENCODING, 0, "\t", null, "\n", 2);
+    List<String> result = Files.readAllLines(sorted.toPath());
+    assertEquals(lines.subList(0, 2), result.subList(0, 2));
+    // GNU sort orders lines with equal keys by the whole line
+    LineComparator keys = new LineComparator(0, "\t");
+    List<String> expectedLines = Files.readAllLines(expected.toPath());
+    assertEquals(expectedLines.size(), result.size());
+    for (int i = 0; i < result.size(); i++) {
+      assertEquals(keys.getKey(expectedLines.get(i)), keys.getKey(result.get(i)));
+    }
+  }
+
+  @Test
+  public void testSortNoInputs() throws Exception {
+    File sorted = File.createTempFile("gbif-common-file-sort", "sorted.txt");
+    sorted.deleteOnExit();
+    Files.write(sorted.toPath(), Collections.singletonList("stale"));
+    FileUtils futils = new FileUtils();
+    futils.sortInJava(Collections.emptyList(), sorted, ENCODING, new LineComparator(0, "\t"), 1);
+    assertEquals(0, sorted.length());
+  }
+
+  @Test
+  public void testMergeDelta() throws Exception {
+    File base = File.createTempFile("gbif-common-file-sort", "base.txt");
+    File delta1 = File.createTempFile("gbif-common-file-sort", "delta1.txt");
+    File delta2 = File.createTempFile("gbif-common-file-sort", "delta2.txt");
+    File merged = File.createTempFile("gbif-common-file-sort", "merged.txt");
+    base.deleteOnExit();
+    delta1.deleteOnExit();
+    delta2.deleteOnExit();
+    merged.deleteOnExit();
+    Files.write(base.toPath(), Arrays.asList("id\tname", "1\ta", "2\tb", "2\tbb", "4\td", "5\te"));
+    Files.write(delta1.toPath(), Arrays.asList("id\tname", "6\tf", "2\tb2", "0\tz"));
+    Files.write(delta2.toPath(), Arrays.asList("id\tname", "4\tDELETE", "3\tc", "7\tDELETE"));
+    Comparator<String> lineComparator = new LineComparator(0, "\t");
+    Predicate<String> isDeletion = line -> line.endsWith("\tDELETE");
+    FileUtils futils = new FileUtils();
+
+    futils.mergeDelta(
+        base,
+        Arrays.asList(delta1, delta2),
+        merged,
+        ENCODING,
+        lineComparator,
+        1,
+        DeltaMode.INSERT,
+        isDeletion);
+    assertEquals(
+        Arrays.asList("id\tname", "0\tz", "1\ta", "2\tb", "2\tbb", "2\tb2", "3\tc", "5\te", "6\tf"),
+        Files.readAllLines(merged.toPath()));
+
+    futils.mergeDelta(
+        base,
+        Arrays.asList(delta1, delta2),
+        merged,
+        ENCODING,
+        lineComparator,
+        1,
+        DeltaMode.REPLACE,
+        isDeletion);
+    assertEquals(
+        Arrays.asList("id\tname", "0\tz", "1\ta", "2\tb2", "3\tc", "5\te", "6\tf"),
+        Files.readAllLines(merged.toPath()));
+
+    // a merged delta is the same as sorting base and delta together
+    File source = randomLinesFile(5_000, 41);
+    File change = randomLinesFile(100, 43);
+    File sorted = File.createTempFile("gbif-common-file-sort", "sorted.txt");
+    sorted.deleteOnExit();
+    futils.setLinesPerSortChunk(20);
+    futils.sortInJava(source, sorted, ENCODING, lineComparator, 0);
+    futils.mergeDelta(
+        sorted,
+        Collections.singletonList(change),
+        merged,
+        ENCODING,
+        lineComparator,
+        0,
+        DeltaMode.INSERT,
+        null);
+    futils.sortInJava(Arrays.asList(source, change), sorted, ENCODING, lineComparator, 0);
+    assertEquals(Files.readAllLines(sorted.toPath()), Files.readAllLines(merged.toPath()));
+
+    // without deltas the base is copied
+    futils.mergeDelta(
+        base, Collections.emptyList(), merged, ENCODING, lineComparator, 1, DeltaMode.INSERT, null);
+    assertEquals(Files.readAllLines(base.toPath()), Files.readAllLines(merged.toPath()));
+  }
+
+  /**
+   * Deltas in an encoding other than the platform default keep their characters.
+   */
+  @Test
+  public void testMergeDeltaEncoding() throws Exception {
+    File base = File.createTempFile("gbif-common-file-sort", "base.txt");
+    File delta = File.createTempFile("gbif-common-file-sort", "delta.txt");
+    File merged = File.createTempFile("gbif-common-file-sort", "merged.txt");
+    base.deleteOnExit();
+    delta.deleteOnExit();
+    merged.deleteOnExit();
+    // never the platform default
+    String encoding = "UTF-16LE";
+    Files.write(base.toPath(), Arrays.asList("1\tä", "3\tø"), Charset.forName(encoding));
+    Files.write(delta.toPath(), Arrays.asList("2\té", "4\tπ"), Charset.forName(encoding));
+    new FileUtils()
+        .mergeDelta(
+            base,
+            Collections.singletonList(delta),
+            merged,
+            encoding,
+            new LineComparator(0, "\t"),
+            0,
+            DeltaMode.INSERT,
+            null);
+    assertEquals(
+        Arrays.asList("1\tä", "2\té", "3\tø", "4\tπ"),
+        Files.readAllLines(merged.toPath(), Charset.forName(encoding)));
+  }
+
+  @Test
+  public void testGnuSortKeyPrefix() throws Exception {
+    if (!GnuSortEngine.isAvailable()) {
+      return;
+    }
+    File source = File.createTempFile("gbif-common-file-sort", "quoted.csv");
+    source.deleteOnExit();
+    Random rnd = new Random(47);
+    List<String> lines = new ArrayList<>();
+    lines.add("id,name,count");
+    for (int i = 0; i < 2_000; i++) {
+      String name = rnd.nextInt(10) == 0 ? "" : "\"n" + rnd.nextInt(300) + ", é\u0001\"";
+      lines.add(i + "," + name + "," + (rnd.nextInt(200) - 100));
+    }
+    Files.write(source.toPath(), lines, StandardCharsets.UTF_8);
+    File expected = File.createTempFile("gbif-common-file-sort", "expected.txt");
+    File sorted = File.createTempFile("gbif-common-file-sort", "sorted.txt");
+    expected.deleteOnExit();
+    sorted.deleteOnExit();
+    List<SortEngine> java = Collections.singletonList(new JavaSortEngine());
+    List<SortEngine> gnu = Collections.singletonList(new GnuSortEngine());
+
+    FileUtils futils = new FileUtils();
+    futils.setGnuSortKeyPrefix(true);
+    futils.setSortEngines(java);
+    futils.sort(source, expected, ENCODING, 1, ",", '"', "\n", 1);
+    futils.setSortEngines(gnu);
+    futils.sort(source, sorted, ENCODING, 1, ",", '"', "\n", 1);
+    assertEquals(Files.readAllLines(expected.toPath()), Files.readAllLines(sorted.toPath()));
+
+    SortKey sortKey = SortKey.by(1).thenBy(2, SortKey.Type.NUMERIC, true);
+    futils.setSortEngines(java);
+    futils.sort(source, expected, ENCODING, sortKey, ",", '"', "\n", 1);
+    futils.setSortEngines(gnu);
+    futils.sort(source, sorted, ENCODING, sortKey, ",", '"', "\n", 1);
+    assertEquals(Files.readAllLines(expected.toPath()), Files.readAllLines(sorted.toPath()));
+
+    // a custom comparator cannot be reproduced by GNU sort
+    SortRequest request =
+        new SortRequest(
+            Collections.singletonList(source),
+            sorted,
+            ENCODING,
+            null,
+            1,
+            ",",
+            '"',
+            "\n",
+            1,
+            Comparator.reverseOrder(),
+            false,
+            false);
+    assertFalse(new GnuSortEngine().canSort(request, futils));
+  }
+
+  @Test
+  public void testKeyPrefixOrder() {
+    Random rnd = new Random(53);
+    // control characters, the characters around the surrogates and supplementary characters
+    String[] chars = {
+      "\u0000", "\u0001", "\t", "\n", "\u000f", "a", "\uD7FE", "\uD7FF", "\uE000", "\uFFFF",
+      "\uD800\uDC00", "\uD83D\uDE00", "\uDBFF\uDFFF", "\uD800", "\uDFFF"
+    };
+    List<String> keys = new ArrayList<>();
+    for (int i = 0; i < 2_000; i++) {
+      StringBuilder key = new StringBuilder();
+      int length = rnd.nextInt(5);
+      for (int j = 0; j < length; j++) {
+        key.append(chars[rnd.nextInt(chars.length)]);
+      }
+      keys.add(key.toString());
+    }
+    keys.add(null);
+    keys.sort(Comparator.nullsLast(Comparator.naturalOrder()));
+    List<String> prefixes = new ArrayList<>();
+    for (String key : keys) {
+      StringBuilder sb = new StringBuilder();
+      GnuSortEngine.appendKeyPrefix(key, sb);
+      String prefix = sb.toString();
+      assertEquals(prefix.length() - 1, prefix.indexOf('\t'));
+      assertFalse(prefix.contains("\n"));
+      prefixes.add(prefix.substring(0, prefix.length() - 1));
+    }
+    // GNU sort compares the UTF-8 bytes
+    List<String> sortedPrefixes = new ArrayList<>(prefixes);
+    sortedPrefixes.sort(
+        Comparator.comparing(
+            p -> p.getBytes(StandardCharsets.UTF_8),
+            (a, b) -> {
+              for (int i = 0; i < Math.min(a.length, b.length); i++) {
+                if (a[i] != b[i]) {
+                  return (a[i] & 0xff) - (b[i] & 0xff);
+                }
+              }
+              return a.length - b.length;
+            }));
+    assertEquals(sortedPrefixes, prefixes);
+  }
+
+  @Test
+  public void testSortTopK() throws Exception {
+    File source = randomLinesFile(5_000, 61);
+    File expected = File.createTempFile("gbif-common-file-sort", "expected.txt");
+    File top = File.createTempFile("gbif-common-file-sort", "top.txt");
+    expected.deleteOnExit();
+    top.deleteOnExit();
+    FileUtils futils = new FileUtils();
+    for (Comparator<String> lineComparator :
+        Arrays.asList(new LineComparator(0, "\t"), new LineComparator(0, "\t").reversed())) {
+      futils.sortInJava(source, expected, ENCODING, lineComparator, 1);
+      List<String> lines = Files.readAllLines(expected.toPath());
+      // a k far larger than the input, e.g. to keep all lines, allocates no queue of k lines
+      for (int k : new int[] {0, 1, 10, 1_000, 10_000, Integer.MAX_VALUE}) {
+        futils.sortTopK(source, top, ENCODING, lineComparator, 1, k);
+        assertEquals(
+            lines.subList(0, Math.min(k, lines.size() - 1) + 1), Files.readAllLines(top.toPath()));
+      }
+    }
+  }
+
+  @Test
+  public void testSortWithParallelMerge() throws Exception {
+    File source = randomLinesFile(20_000, 67);
+    Comparator<String> lineComparator = new LineComparator(0, "\t");
+    File expected = File.createTempFile("gbif-common-file-sort", "expected.txt");
+    File sorted = File.createTempFile("gbif-common-file-sort", "sorted.txt");
+    expected.deleteOnExit();
+    sorted.deleteOnExit();
+    FileUtils futils = new FileUtils();
+    futils.setLinesPerSortChunk(1_000);
+    futils.sortInJava(source, expected, ENCODING, lineComparator, 1);
+    List<String> lines = Files.readAllLines(expected.toPath());
+
+    futils.setMergePartitions(4);
+    futils.sortInJava(source, sorted, ENCODING, lineComparator, 1);
+    assertEquals(lines, Files.readAllLines(sorted.toPath()));
+
+    futils.setSortThreads(3);
+    futils.setMaxMergeFanIn(4);
+    futils.setExtractSortKeys(true);
+    futils.setSpillCodec(SpillCodec.DEFLATE);
+    futils.sortInJava(source, sorted, ENCODING, lineComparator, 1);
+    assertEquals(lines, Files.readAllLines(sorted.toPath()));
+
+    // groups of equal keys are never split between ranges
+    futils.setDistinctMode(DistinctMode.KEYS);
+    futils.setMergePartitions(1);
+    futils.sortInJava(source, expected, ENCODING, lineComparator, 1);
+    futils.setMergePartitions(8);
+    futils.sortInJava(source, sorted, ENCODING, lineComparator, 1);
+    assertEquals(Files.readAllLines(expected.toPath()), Files.readAllLines(sorted.toPath()));
+  }
+
+  /**
+   * Inputs with fewer distinct keys than partitions still write every key range.
+   */
+  @Test
+  public void testSortWithParallelMergeOfFewKeys() throws Exception {
+    File tiny = File.createTempFile("gbif-common-file-sort", "tiny.txt");
+    File fewKeys = File.createTempFile("gbif-common-file-sort", "fewkeys.txt");
+    File sorted = File.createTempFile("gbif-common-file-sort", "sorted.txt");
+    tiny.deleteOnExit();
+    fewKeys.deleteOnExit();
+    sorted.deleteOnExit();
+    Files.write(tiny.toPath(), Arrays.asList("b\t1", "a\t2"), StandardCharsets.UTF_8);
+    Random rnd = new Random(79);
+    List<String> lines = new ArrayList<>();
+    for (int i = 0; i < 1_000; i++) {
+      lines.add((rnd.nextBoolean() ? "a" : "b") + "\t" + i);
+    }
+    Files.write(fewKeys.toPath(), lines, StandardCharsets.UTF_8);
+    Comparator<String> lineComparator = new LineComparator(0, "\t");
+
+    FileUtils futils = new FileUtils();
+    futils.setMergePartitions(4);
+    futils.sortInJava(tiny, sorted, ENCODING, lineComparator, 0);
+    assertEquals(Arrays.asList("a\t2", "b\t1"), Files.readAllLines(sorted.toPath()));
+
+    futils.setLinesPerSortChunk(100);
+    futils.sortInJava(fewKeys, sorted, ENCODING, lineComparator, 0);
+    List<String> expected = new ArrayList<>(lines);
+    expected.sort(lineComparator);
+    assertEquals(expected, Files.readAllLines(sorted.toPath()));
+  }
+
+  @Test
+  public void testKeySampleOfPresortedRecords() {
+    FileUtils.KeySample<String> sample = new FileUtils.KeySample<>(line -> line);
+    assertTrue(sample.splits(Comparator.naturalOrder(), 4).isEmpty());
+    // far more records than one chunk, in order, so the first records alone would put all others in the last range
+    for (int i = 0; i < 1_000_000; i++) {
+      sample.add(String.format("%07d", i));
+    }
+    List<String> splits = sample.splits(Comparator.naturalOrder(), 4);
+    assertEquals(3, splits.size());
+    for (int i = 0; i < 3; i++) {
+      int expected = (i + 1) * 250_000;
+      int split = Integer.parseInt(splits.get(i));
+      assertTrue(Math.abs(split - expected) < 25_000);
+    }
+  }
+
+  @Test
+  public void testSortPresortedInput() throws Exception {
+    File source = randomLinesFile(5_000, 71);
+    File presorted = File.createTempFile("gbif-common-file-sort", "presorted.txt");
+    File sorted = File.createTempFile("gbif-common-file-sort", "sorted.txt");
+    presorted.deleteOnExit();
+    sorted.deleteOnExit();
+    FileUtils futils = new FileUtils();
+    futils.setSortEngines(Collections.singletonList(new JavaSortEngine()));
+    futils.sort(source, presorted, ENCODING, 0, "\t", null, "\n", 1);
+    byte[] expected = Files.readAllBytes(presorted.toPath());
+    // CRLF endings and no final newline are normalized as by a real sort
+    List<String> lines = Files.readAllLines(presorted.toPath(), StandardCharsets.UTF_8);
+    Files.write(presorted.toPath(), String.join("\r\n", lines).getBytes(StandardCharsets.UTF_8));
+
+    futils.sort(presorted, sorted, ENCODING, 0, "\t", null, "\n", 1);
+    assertTrue(Arrays.equals(expected, Files.readAllBytes(sorted.toPath())));
+
+    futils.setDetectPresorted(false);
+    futils.sort(presorted, sorted, ENCODING, 0, "\t", null, "\n", 1);
+    assertTrue(Arrays.equals(expected, Files.readAllBytes(sorted.toPath())));
+
+    // the order is not checked for another engine, which may collate differently
+    List<String> used = new ArrayList<>();
+    futils.setDetectPresorted(true);
+    futils.registerSortEngine(
+        new SortEngine() {
+          @Override
+          public boolean canSort(SortRequest request, FileUtils settings) {
+            return true;
+          }
+
+          @Override
+          public boolean sort(SortRequest request, FileUtils settings) throws IOException {
+            used.add("custom");
+            Files.write(request.getSorted().toPath(), Collections.singletonList("custom"));
+            return true;
+          }
+        });
+    futils.sort(presorted, sorted, ENCODING, 0, "\t", null, "\n", 1);
+    assertEquals(Collections.singletonList("custom"), used);
+  }
+
+  @Test
+  public void testSortNaturalRuns() throws Exception {
+    // ascending runs longer than a chunk, separated by shuffled lines
+    File source = File.createTempFile("gbif-common-file-sort", "runs.txt");
+    source.deleteOnExit();
+    Random rnd = new Random(73);
+    List<String> lines = new ArrayList<>();
+    lines.add("header");
+    for (int run = 0; run < 5; run++) {
+      List<String> runLines = new ArrayList<>();
+      for (int i = 0; i < 1_000; i++) {
+        runLines.add(String.format("%05d\t%d", rnd.nextInt(10_000), run));
+      }
+      runLines.sort(new LineComparator(0, "\t"));
+      lines.addAll(runLines);
+      for (int i = 0; i < 150; i++) {
+        lines.add(String.format("%05d\tx%d", rnd.nextInt(10_000), run));
+      }
+    }
+    Files.write(source.toPath(), lines, StandardCharsets.UTF_8);
+    List<String> expected = new ArrayList<>(lines.subList(1, lines.size()));
+    expected.sort(new LineComparator(0, "\t"));
+    expected.add(0, "header");
+
+    File sorted = File.createTempFile("gbif-common-file-sort", "sorted.txt");
+    sorted.deleteOnExit();
+    FileUtils futils = new FileUtils();
+    futils.setLinesPerSortChunk(100);
+    Comparator<String> lineComparator = new LineComparator(0, "\t");
+    futils.sortInJava(source, sorted, ENCODING, lineComparator, 1);
+    assertEquals(expected, Files.readAllLines(sorted.toPath()));
+
+    futils.setSortThreads(2);
+    futils.setMergePartitions(3);
+    futils.setExtractSortKeys(true);
+    futils.setSpillCodec(SpillCodec.DEFLATE);
+    futils.sortInJava(source, sorted, ENCODING, lineComparator, 1);
+    assertEquals(expected, Files.readAllLines(sorted.toPath()));
+    // runs of a few distinct keys write every key range too
+    List<String> fewKeys = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      fewKeys.add((i < 250 ? "a" : "b") + "\t" + i);
+    }
+    Files.write(source.toPath(), fewKeys, StandardCharsets.UTF_8);
+    futils.setMergePartitions(4);
+    futils.setDetectPresorted(false);
+    futils.sortInJava(source, sorted, ENCODING, lineComparator, 0);
+    assertEquals(fewKeys, Files.readAllLines(sorted.toPath()));
+  }
+
+  @Test
+  public void testSortCompressedFiles() throws Exception {
+    File source = randomLinesFile(5_000, 79);
+    File gzipped = File.createTempFile("gbif-common-file-sort", "random.txt.gz");
+    File zipped = File.createTempFile("gbif-common-file-sort", "random.zip");
+    File expected = File.createTempFile("gbif-common-file-sort", "expected.txt");
+    File sorted = File.createTempFile("gbif-common-file-sort", "sorted.txt.gz");
+    gzipped.deleteOnExit();
+    zipped.deleteOnExit();
+    expected.deleteOnExit();
+    sorted.deleteOnExit();
+    try (OutputStream out = new GZIPOutputStream(new FileOutputStream(gzipped))) {
+      Files.copy(source.toPath(), out);
+    }
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipped))) {
+      out.putNextEntry(new ZipEntry("random.txt"));
+      Files.copy(source.toPath(), out);
+    }
+    FileUtils futils = new FileUtils();
+    futils.setSortEngines(Collections.singletonList(new JavaSortEngine()));
+    futils.sort(Arrays.asList(source, source), expected, ENCODING, 0, "\t", null, "\n", 1);
+    List<String> expectedLines = Files.readAllLines(expected.toPath());
+
+    List<SortEngine> engines = new ArrayList<>();
+    engines.add(new JavaSortEngine());
+    engines.add(new ByteSortEngine());
+    if (GnuSortEngine.isAvailable()) {
+      engines.add(new GnuSortEngine());
+    }
+    LineComparator keys = new LineComparator(0, "\t");
+    for (SortEngine engine : engines) {
+      futils.setSortEngines(Collections.singletonList(engine));
+      futils.sort(Arrays.asList(gzipped, zipped), sorted, ENCODING, 0, "\t", null, "\n", 1);
+      List<String> result;
+      try (BufferedReader reader =
+          new BufferedReader(
+              new InputStreamReader(
+                  new GZIPInputStream(new FileInputStream(sorted)), StandardCharsets.UTF_8))) {
+        result = reader.lines().collect(Collectors.toList());
+      }
+      // GNU sort orders lines with equal keys by the whole line
+      assertEquals(expectedLines.size(), result.size(), engine.toString());
+      assertEquals(expectedLines.get(0), result.get(0));
+      for (int i = 1; i < result.size(); i++) {
+        assertEquals(keys.getKey(expectedLines.get(i)), keys.getKey(result.get(i)), engine.toString());
+      }
+
+      // a sorted file is never written as a zip archive, also not when the input is presorted
+      File sortedZip = new File(sorted.getParentFile(), "sorted-" + System.nanoTime() + ".zip");
+      assertThrows(
+          IllegalArgumentException.class,
+          () -> futils.sort(zipped, sortedZip, ENCODING, 0, "\t", null, "\n", 1));
+      assertThrows(
+          IllegalArgumentException.class,
+          () -> futils.sort(expected, sortedZip, ENCODING, 0, "\t", null, "\n", 1));
+      assertFalse(sortedZip.exists());
+    }
+    File mergedZip = new File(sorted.getParentFile(), "merged-" + System.nanoTime() + ".zip");
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            futils.mergeDelta(
+                expected,
+                Collections.singletonList(source),
+                mergedZip,
+                ENCODING,
+                keys,
+                1,
+                DeltaMode.INSERT,
+                line -> false));
+    assertFalse(mergedZip.exists());
+
+    // a zip archive with more than one file cannot be sorted
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipped))) {
+      out.putNextEntry(new ZipEntry("random.txt"));
+      Files.copy(source.toPath(), out);
+      out.putNextEntry(new ZipEntry("other.txt"));
+      Files.copy(source.toPath(), out);
+    }
+    futils.setSortEngines(Collections.singletonList(new JavaSortEngine()));
+    assertThrows(
+        IOException.class,
+        () -> futils.sort(zipped, sorted, ENCODING, 0, "\t", null, "\n", 1));
+  }
+
+  /**
+   * A sort failing halfway must resume from its checkpoint and produce the same output as an uninterrupted sort.
+   */
+  @Test
+  public void testResumeSortFromCheckpoint() throws Exception {
+    List<File> inputs = Arrays.asList(randomLinesFile(10_000, 23), randomLinesFile(10_000, 29));
+    File expected = File.createTempFile("gbif-common-file-sort", "expected.txt");
+    File sorted = File.createTempFile("gbif-common-file-sort", "sorted.txt");
+    File checkpointDir = new File(FileUtils.createTempDir(), "checkpoint");
+    expected.deleteOnExit();
+    sorted.deleteOnExit();
+    Comparator<String> lineComparator = new LineComparator(0, "\t");
+    FileUtils futils = new FileUtils();
+    futils.setLinesPerSortChunk(500);
+    futils.sortInJava(inputs, expected, ENCODING, lineComparator, 1);
+
+    futils.setSortCheckpointDir(checkpointDir);
+    AtomicInteger compares = new AtomicInteger();
+    Comparator<String> failing =
+        (a, b) -> {
+          if (compares.incrementAndGet() > 100_000) {
+            throw new IllegalStateException("Interrupted sort");
+          }
+          return lineComparator.compare(a, b);
+        };
+    assertThrows(Exception.class, () -> futils.sortInJava(inputs, sorted, ENCODING, failing, 1));
+    List<String> manifest =
+        Files.readAllLines(new File(checkpointDir, SortCheckpoint.MANIFEST).toPath());
+    assertTrue(manifest.stream().anyMatch(l -> l.startsWith("chunk\t")));
+    assertTrue(manifest.stream().filter(l -> l.startsWith("chunk\t")).count() < 40);
+
+    // the internal sort of a delta merge keeps the checkpoint
+    File merged = File.createTempFile("gbif-common-file-sort", "merged.txt");
+    merged.deleteOnExit();
+    futils.mergeDelta(
+        expected,
+        Collections.singletonList(inputs.get(0)),
+        merged,
+        ENCODING,
+        lineComparator,
+        1,
+        DeltaMode.INSERT,
+        line -> false);
+    assertTrue(new File(checkpointDir, SortCheckpoint.MANIFEST).exists());
+
+    futils.resumeSortInJava(inputs, sorted, ENCODING, lineComparator, 1);
+    assertEquals(Files.readAllLines(expected.toPath()), Files.readAllLines(sorted.toPath()));
+    assertFalse(checkpointDir.exists());
+
+    // a checkpoint of other inputs cannot be resumed
+    assertThrows(Exception.class, () -> futils.sortInJava(inputs, sorted, ENCODING, failing, 1));
+    assertThrows(
+        IOException.class,
+        () -> futils.resumeSortInJava(inputs.subList(0, 1), sorted, ENCODING, lineComparator, 1));
+  }
+
+  @Test
+  public void testSortCheckpointInOtherDirectory() throws Exception {
+    File input = randomLinesFile(1_000, 83);
+    File sorted = File.createTempFile("gbif-common-file-sort", "sorted.txt");
+    sorted.deleteOnExit();
+    File dir = FileUtils.createTempDir();
+    File data = new File(dir, "data.txt");
+    Files.write(data.toPath(), Collections.singletonList("not a checkpoint"));
+    FileUtils futils = new FileUtils();
+    futils.setSortCheckpointDir(dir);
+    assertThrows(
+        IOException.class,
+        () -> futils.sortInJava(input, sorted, ENCODING, new LineComparator(0, "\t"), 0));
+    assertTrue(data.exists());
+    FileUtils.deleteDirectoryRecursively(dir);
+  }
+
+  @Test
+  public void testResumeSortWithCarriageReturns() throws Exception {
+    Random rnd = new Random(89);
+    StringBuilder sb = new StringBuilder("id\r\n");
+    String[] ends = {"\n", "\r", "\r\n"};
+    for (int i = 0; i < 5_000; i++) {
+      sb.append(rnd.nextInt(1_000)).append('\t').append(i).append(ends[rnd.nextInt(3)]);
+    }
+    File input = File.createTempFile("gbif-common-file-sort", "cr.txt");
+    File expected = File.createTempFile("gbif-common-file-sort", "expected.txt");
+    File sorted = File.createTempFile("gbif-common-file-sort", "sorted.txt");
+    input.deleteOnExit();
+    expected.deleteOnExit();
+    sorted.deleteOnExit();
+    Files.write(input.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+    List<File> inputs = Collections.singletonList(input);
+    Comparator<String> lineComparator = new LineComparator(0, "\t");
+    FileUtils futils = new FileUtils();
+    futils.setLinesPerSortChunk(100);
+    futils.sortInJava(inputs, expected, ENCODING, lineComparator, 1);
+    assertEquals(5_001, Files.readAllLines(expected.toPath()).size());
+
+    futils.setSortCheckpointDir(new File(FileUtils.createTempDir(), "checkpoint"));
+    AtomicInteger compares = new AtomicInteger();
+    Comparator<String> failing =
+        (a, b) -> {
+          if (compares.incrementAndGet() > 10_000) {
+            throw new IllegalStateException("Interrupted sort");
+          }
+          return lineComparator.compare(a, b);
+        };
+    assertThrows(Exception.class, () -> futils.sortInJava(inputs, sorted, ENCODING, failing, 1));
+    futils.resumeSortInJava(inputs, sorted, ENCODING, lineComparator, 1);
+    assertEquals(Files.readAllLines(expected.toPath()), Files.readAllLines(sorted.toPath()));
+
+    // an uninterrupted checkpointed sort too
+    futils.sortInJava(inputs, sorted, ENCODING, lineComparator, 1);
+    assertEquals(Files.readAllLines(expected.toPath()), Files.readAllLines(sorted.toPath()));
+  }
 }
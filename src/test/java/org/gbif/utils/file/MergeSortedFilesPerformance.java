@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import org.gbif.utils.text.LineComparator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how the merge phase of the Java sort scales with the number of chunk files.
+ * <p/>
+ * The same number of lines is spread over an increasing number of sorted chunks and merged into a discarding writer.
+ * With the heap based merge the time per line should only grow logarithmically with the number of chunks.
+ */
+public class MergeSortedFilesPerformance {
+
+  private static final int TOTAL_LINES = 2_000_000;
+
+  public static void main(String[] argv) throws IOException {
+    LineComparator lineComparator = new LineComparator(0, "\t");
+    File dir = FileUtils.createTempDir();
+    try {
+      // first, get the JIT going
+      merge(dir, 10, lineComparator);
+
+      for (int chunks : new int[] {10, 100, 500, 1000, 2000, 4000}) {
+        long time = merge(dir, chunks, lineComparator);
+        System.out.printf(
+            "Merging %d lines from %d chunks took %d ms (%d ns per line)%n",
+            TOTAL_LINES, chunks, time, time * 1_000_000 / TOTAL_LINES);
+      }
+    } finally {
+      FileUtils.deleteDirectoryRecursively(dir);
+    }
+  }
+
+  private static long merge(File dir, int chunks, LineComparator lineComparator)
+      throws IOException {
+    List<File> sortFiles = writeChunks(dir, chunks);
+    Writer devNull =
+        new OutputStreamWriter(OutputStream.nullOutputStream(), StandardCharsets.UTF_8);
+    long start = System.currentTimeMillis();
+    new FileUtils().mergeSortedFiles(sortFiles, devNull, lineComparator);
+    return System.currentTimeMillis() - start;
+  }
+
+  /**
+   * Writes the lines of an ascending id sequence round robin into the chunks, so every chunk is sorted and the merge
+   * has to switch chunks on every line.
+   */
+  private static List<File> writeChunks(File dir, int chunks) throws IOException {
+    Random rnd = new Random(chunks);
+    List<File> sortFiles = new ArrayList<>();
+    List<Writer> writers = new ArrayList<>();
+    for (int i = 0; i < chunks; i++) {
+      File f = new File(dir, "chunk_" + i + ".txt");
+      sortFiles.add(f);
+      writers.add(FileUtils.startNewUtf8File(f));
+    }
+    for (int i = 0; i < TOTAL_LINES; i++) {
+      Writer w = writers.get(rnd.nextInt(chunks));
+      w.write(String.format("%010d", i));
+      w.write("\tsome payload of a record\n");
+    }
+    for (Writer w : writers) {
+      w.close();
+    }
+    return sortFiles;
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SortKeyTest {
+
+  @Test
+  public void testParseNumber() {
+    assertEquals(0, new BigDecimal("12").compareTo(SortKey.parseNumber("12")));
+    assertEquals(0, new BigDecimal("-0.5").compareTo(SortKey.parseNumber(" -.5abc")));
+    assertEquals(0, new BigDecimal("3.25").compareTo(SortKey.parseNumber("3.25.1")));
+    assertEquals(0, BigDecimal.ZERO.compareTo(SortKey.parseNumber("abc")));
+    assertEquals(0, BigDecimal.ZERO.compareTo(SortKey.parseNumber("-")));
+    assertEquals(0, BigDecimal.ZERO.compareTo(SortKey.parseNumber(null)));
+  }
+
+  @Test
+  public void testNumericOrder() {
+    List<String> numbers =
+        Arrays.asList(
+            "-1000", "-99.5", "-10", "-1.25", "-1.2", "-1", "-0.001", "0", "0.001", "1", "1.2",
+            "1.25", "10", "99.5", "100", "1000", "123456789012345678901234567890");
+    List<String> shuffled = new ArrayList<>(numbers);
+    Collections.shuffle(shuffled);
+
+    SortKey key = SortKey.by(0, SortKey.Type.NUMERIC, false);
+    shuffled.sort(key.comparator("\t", null));
+    assertEquals(numbers, shuffled);
+
+    SortKey desc = SortKey.by(0, SortKey.Type.NUMERIC, true);
+    shuffled.sort(desc.comparator("\t", null));
+    List<String> reversed = new ArrayList<>(numbers);
+    Collections.reverse(reversed);
+    assertEquals(reversed, shuffled);
+  }
+
+  @Test
+  public void testCompositeOrder() {
+    SortKey key =
+        SortKey.by(0).thenBy(1, SortKey.Type.NUMERIC, false).thenBy(2, SortKey.Type.STRING, true);
+    List<String> expected =
+        Arrays.asList(
+            "\t5\t2020",
+            "a\t2\t2020-01-02",
+            "a\t2\t2020-01",
+            "a\t2\t2019",
+            "a\t2\t",
+            "a\t10\t\u0001",
+            "a\t10\t\u0000",
+            "ab\t1\tx",
+            "b\tx\tx",
+            "b\t1\tx");
+    List<String> lines = new ArrayList<>(expected);
+    Collections.shuffle(lines);
+    lines.sort(key.comparator("\t", null));
+    assertEquals(expected, lines);
+  }
+
+  @Test
+  public void testGnuSortArgs() {
+    SortKey key =
+        SortKey.by(0).thenBy(3, SortKey.Type.NUMERIC, false).thenBy(5, SortKey.Type.STRING, true);
+    assertEquals("-k1,1 -k4,4n -k6,6r", key.toGnuSortArgs());
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import org.gbif.utils.text.LineComparator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SortedFileIndexTest {
+
+  private static final LineComparator COMPARATOR = new LineComparator(1, "\t");
+
+  private static File sortedFile(FileUtils futils) throws IOException {
+    File source = File.createTempFile("gbif-common-index", "source.txt");
+    File sorted = File.createTempFile("gbif-common-index", "sorted.txt");
+    source.deleteOnExit();
+    sorted.deleteOnExit();
+    SortedFileIndex.indexFile(sorted).deleteOnExit();
+    Random rnd = new Random(59);
+    List<String> lines = new ArrayList<>();
+    lines.add("id\tkey");
+    for (int i = 0; i < 5_000; i++) {
+      String key = rnd.nextInt(20) == 0 ? "" : "k" + rnd.nextInt(1_000);
+      lines.add(i + "\t" + key + "\tü");
+    }
+    Files.write(source.toPath(), lines, StandardCharsets.UTF_8);
+    futils.setSortIndexBlockSize(512);
+    futils.sort(source, sorted, FileUtils.UTF8, 1, "\t", null, "\n", 1);
+    return sorted;
+  }
+
+  private static List<String> scan(File sorted, String from, String to, boolean toInclusive)
+      throws IOException {
+    return Files.readAllLines(sorted.toPath()).stream()
+        .skip(1)
+        .filter(
+            l -> {
+              String key = COMPARATOR.getKey(l);
+              return key != null
+                  && key.compareTo(from) >= 0
+                  && (toInclusive ? key.compareTo(to) <= 0 : key.compareTo(to) < 0);
+            })
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  public void testLookups() throws IOException {
+    FileUtils futils = new FileUtils();
+    File sorted = sortedFile(futils);
+    assertTrue(SortedFileIndex.indexFile(sorted).exists());
+    try (SortedFileIndex index = SortedFileIndex.open(sorted, FileUtils.UTF8, COMPARATOR)) {
+      assertTrue(index.size() > 100);
+      for (String key : new String[] {"k0", "k1", "k500", "k999", "k99", "a", "z", "k5000"}) {
+        assertEquals(scan(sorted, key, key, true), index.get(key), key);
+      }
+      assertFalse(index.get("k500").isEmpty());
+      assertEquals(scan(sorted, "k2", "k3", false), index.range("k2", "k3"));
+      assertEquals(scan(sorted, "a", "z", false), index.range("a", "z"));
+    }
+  }
+
+  @Test
+  public void testLookupsInJavaSortedFile() throws IOException {
+    // the Java sort puts the lines without a key last
+    FileUtils futils = new FileUtils();
+    futils.setSortEngines(Collections.singletonList(new JavaSortEngine()));
+    File sorted = sortedFile(futils);
+    try (SortedFileIndex index = SortedFileIndex.open(sorted, FileUtils.UTF8, COMPARATOR)) {
+      for (String key : new String[] {"k0", "k1", "k500", "k999", "z"}) {
+        assertEquals(scan(sorted, key, key, true), index.get(key), key);
+      }
+    }
+  }
+
+  @Test
+  public void testStaleIndexRejected() throws IOException {
+    File sorted = sortedFile(new FileUtils());
+    SortedFileIndex.open(sorted, FileUtils.UTF8, COMPARATOR).close();
+
+    // an index of an older version of the file gives wrong offsets
+    List<String> lines = Files.readAllLines(sorted.toPath(), StandardCharsets.UTF_8);
+    lines.add(1, "x	k0");
+    Files.write(sorted.toPath(), lines, StandardCharsets.UTF_8);
+    assertThrows(IOException.class, () -> SortedFileIndex.open(sorted, FileUtils.UTF8, COMPARATOR));
+
+    // same length, only modified later
+    SortedFileIndex.write(sorted, FileUtils.UTF8, COMPARATOR, 1, 512);
+    assertTrue(sorted.setLastModified(sorted.lastModified() + 10_000));
+    assertThrows(IOException.class, () -> SortedFileIndex.open(sorted, FileUtils.UTF8, COMPARATOR));
+  }
+
+  @Test
+  public void testIndexOnlyForNaturalOrder() throws IOException {
+    File source = sortedFile(new FileUtils());
+    File sorted = File.createTempFile("gbif-common-index", "reversed.txt");
+    sorted.deleteOnExit();
+    FileUtils futils = new FileUtils();
+    futils.setSortIndexBlockSize(512);
+    futils.sort(
+        source,
+        sorted,
+        FileUtils.UTF8,
+        1,
+        "\t",
+        null,
+        "\n",
+        1,
+        Collections.reverseOrder(),
+        false);
+    assertFalse(SortedFileIndex.indexFile(sorted).exists());
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SpillCodecTest {
+
+  private static final List<String> LINES =
+      Arrays.asList(
+          "",
+          "a",
+          "urn:lsid:ipni.org:names:123-1\tAbies alba Mill.",
+          "heohè\t𐃍 LINEAR B IDEOGRAM",
+          StringUtils.repeat("long line ", 1000));
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    for (SpillCodec codec : SpillCodec.values()) {
+      File chunk = File.createTempFile("gbif-common-spill", codec.name());
+      chunk.deleteOnExit();
+      try (ChunkWriter writer = codec.newWriter(chunk)) {
+        for (String line : LINES) {
+          writer.write(line);
+        }
+        assertTrue(writer.getRawBytes() > 10_000);
+      }
+
+      List<String> read = new ArrayList<>();
+      try (ChunkReader reader = codec.newReader(chunk)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          read.add(line);
+        }
+      }
+      assertEquals(LINES, read, codec.name());
+    }
+  }
+
+  @Test
+  public void testKeyedRoundTrip() throws IOException {
+    for (SpillCodec codec : Arrays.asList(SpillCodec.BINARY, SpillCodec.DEFLATE)) {
+      File chunk = File.createTempFile("gbif-common-spill", codec.name());
+      chunk.deleteOnExit();
+      try (ChunkWriter writer = codec.newWriter(chunk, true)) {
+        for (String line : LINES) {
+          writer.write(line.isEmpty() ? null : line.substring(0, 1), line);
+        }
+      }
+
+      List<String> read = new ArrayList<>();
+      List<String> keys = new ArrayList<>();
+      try (ChunkReader reader = codec.newReader(chunk, true)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          read.add(line);
+          keys.add(reader.getKey());
+        }
+      }
+      assertEquals(LINES, read, codec.name());
+      assertEquals(Arrays.asList(null, "a", "u", "h", "l"), keys, codec.name());
+    }
+  }
+
+  @Test
+  public void testDeflateIsSmaller() throws IOException {
+    File text = File.createTempFile("gbif-common-spill", "text");
+    File deflate = File.createTempFile("gbif-common-spill", "deflate");
+    text.deleteOnExit();
+    deflate.deleteOnExit();
+    try (ChunkWriter t = SpillCodec.TEXT.newWriter(text);
+        ChunkWriter d = SpillCodec.DEFLATE.newWriter(deflate)) {
+      for (int i = 0; i < 10_000; i++) {
+        String line = i + "\tAnimalia\tChordata\tMammalia\tCarnivora\tFelidae\tPuma concolor";
+        t.write(line);
+        d.write(line);
+      }
+    }
+    assertTrue(deflate.length() * 4 < text.length());
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.utils.file.tabular;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit test related to {@link TabularFileSplitter}
+ */
+public class TabularFileSplitterTest {
+
+  @TempDir File tempDir;
+
+  private static List<List<String>> readRecords(File file, boolean headerLine)
+      throws IOException, ParseException {
+    List<List<String>> records = new ArrayList<>();
+    try (TabularDataFileReader<List<String>> reader =
+        TabularFiles.newTabularFileReader(
+            Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8),
+            ',',
+            "\n",
+            '"',
+            headerLine)) {
+      List<String> rec;
+      while ((rec = reader.read()) != null) {
+        records.add(rec);
+      }
+    }
+    return records;
+  }
+
+  private File quotedCsv() throws IOException {
+    Random rnd = new Random(13);
+    StringBuilder sb = new StringBuilder("id,\"remarks\nmultiline\",name\n");
+    for (int i = 0; i < 2_000; i++) {
+      sb.append(i).append(',');
+      switch (rnd.nextInt(4)) {
+        case 0:
+          sb.append("\"line one\nline two, with a \"\"quote\"\"\n\"");
+          break;
+        case 1:
+          sb.append("\"\"\"\n\"");
+          break;
+        case 2:
+          sb.append("plain é");
+          break;
+        default:
+          break;
+      }
+      sb.append(",Puma concolor ").append(i).append('\n');
+    }
+    File csv = new File(tempDir, "occurrence.csv");
+    Files.write(csv.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+    return csv;
+  }
+
+  private static TabularFileMetadata metadata() {
+    TabularFileMetadata metadata = new TabularFileMetadata();
+    metadata.setDelimiter(',');
+    metadata.setQuotedBy('"');
+    metadata.setEncoding(StandardCharsets.UTF_8);
+    return metadata;
+  }
+
+  @Test
+  public void testSplitWithRepeatedHeader() throws Exception {
+    File csv = quotedCsv();
+    File target = new File(tempDir, "parts");
+    target.mkdirs();
+    List<File> parts = TabularFileSplitter.split(csv, target, "part", 2_000, metadata(), true);
+    assertTrue(parts.size() > 10);
+    assertEquals("occurrence_part_0.csv", parts.get(0).getName());
+
+    String header = "id,\"remarks\nmultiline\",name\n";
+    List<List<String>> records = new ArrayList<>();
+    for (File part : parts) {
+      String content = new String(Files.readAllBytes(part.toPath()), StandardCharsets.UTF_8);
+      assertTrue(content.startsWith(header), part.getName());
+      records.addAll(readRecords(part, true));
+    }
+    assertEquals(readRecords(csv, true), records);
+  }
+
+  @Test
+  public void testSplitWithoutHeader() throws Exception {
+    File csv = quotedCsv();
+    File target = new File(tempDir, "parts");
+    target.mkdirs();
+    List<File> parts = TabularFileSplitter.split(csv, target, "part", 5_000, metadata(), false);
+    assertTrue(parts.size() > 1);
+
+    List<List<String>> records = new ArrayList<>();
+    for (int i = 0; i < parts.size(); i++) {
+      records.addAll(readRecords(parts.get(i), i == 0));
+    }
+    assertEquals(readRecords(csv, true), records);
+  }
+
+  @Test
+  public void testUnsupportedEncoding() throws IOException {
+    TabularFileMetadata metadata = metadata();
+    metadata.setEncoding(StandardCharsets.UTF_16);
+    File csv = quotedCsv();
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> TabularFileSplitter.split(csv, tempDir, "part", 1_000, metadata, false));
+  }
+}
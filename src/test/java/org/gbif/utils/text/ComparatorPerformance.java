@@ -64,7 +64,7 @@ public class ComparatorPerformance {
     List<Comparator<String>> comparators = availableComparators();
 
     for (Integer linesInMen : Collections.singletonList(100000)) {
-      FileUtils.setLinesPerMemorySort(linesInMen);
+      futils.setLinesPerSortChunk(linesInMen);
       for (Comparator<String> comp : comparators) {
 
         start = System.currentTimeMillis();
@@ -20,6 +20,7 @@ import java.util.List;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
 public class LineComparatorTest {
 
@@ -86,6 +87,25 @@ public class LineComparatorTest {
     assertEquals(l3, lines.get(3));
   }
 
+  @Test
+  public void testGetKey() {
+    LineComparator comp = new LineComparator(1, ",", '"');
+    assertEquals("Frieda karla L.,Ahrens", comp.getKey("121,\"Frieda karla L.,Ahrens\",9099053"));
+    assertNull(comp.getKey("121,,9099053"));
+    assertNull(comp.getKey("121"));
+
+    Comparator<String> keyComparator = comp.getKeyComparator();
+    String l1 = "1,b";
+    String l2 = "2,a";
+    String l3 = "3,";
+    assertEquals(
+        Integer.signum(comp.compare(l1, l2)),
+        Integer.signum(keyComparator.compare(comp.getKey(l1), comp.getKey(l2))));
+    assertEquals(
+        Integer.signum(comp.compare(l3, l2)),
+        Integer.signum(keyComparator.compare(comp.getKey(l3), comp.getKey(l2))));
+  }
+
   // Direct copy from IPT codebase
   // see
   // https://code.google.com/p/gbif-providertoolkit/source/browse/trunk/gbif-ipt/src/main/java/org/gbif/ipt/task/GenerateDwca.java#93